@@ -0,0 +1,426 @@
+package backend;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Supplier;
+
+/**
+ * Per-protein summary statistics of a patient collection, split by treatment response
+ * (e.g. "CR", "DP" and "unk").
+ * <p>
+ * The first computation is a single parallel pass over the patients: each task accumulates the
+ * patients of its slice into per-response groups, and groups are merged pairwise. A group keeps, for
+ * every protein, a Welford running mean and sum of squared deviations (merged with Chan's formula),
+ * the minimum and maximum, and a {@link TDigest} for quantiles.
+ * <p>
+ * Within a slice, each group is filled protein by protein, so one protein's accumulators stay in
+ * cache while all of the slice's patients are added to them.
+ * <p>
+ * Afterwards the statistics are kept up to date as patients are added, removed or change response.
+ * Adding a patient updates its group in place. Means and variances are also updated in place on
+ * removal, but a minimum or maximum cannot forget a value, so a protein whose minimum or maximum
+ * was the removed level is marked stale and rebuilt from the group's own members the next time that
+ * protein is asked for. A digest cannot forget values either; it keeps counting removed levels until
+ * they are more than one in {@value #DIGEST_SLACK} of the group's patients, and is rebuilt then.
+ * <p>
+ * Methods are synchronized. Apart from {@link #recompute()}, which reads the collection, they only
+ * read the patients the groups hold, so statistics can be read from another thread while the
+ * collection is changed from one thread.
+ *
+ * @author Matt Ellis
+ */
+public final class CohortStatistics {
+
+    private static final int MIN_TASK_PATIENTS = 64;
+    // a digest may count one removed level for this many patients of its group before it is rebuilt
+    private static final int DIGEST_SLACK = 100;
+
+    private final int proteinCount;
+    private final Supplier<? extends Collection<Patient>> patients;
+    private final ForkJoinPool pool;
+    private final TreeMap<String, Group> groups;
+
+    /**
+     * Computes the statistics of a collection in one parallel pass
+     *
+     * @param proteinCount proteins per patient
+     * @param patients     the collection's current patients, asked for again on {@link #recompute()}
+     * @param pool         pool used for full passes
+     */
+    CohortStatistics(int proteinCount, Supplier<? extends Collection<Patient>> patients, ForkJoinPool pool) {
+        this.proteinCount = proteinCount;
+        this.patients = patients;
+        this.pool = pool;
+        this.groups = new TreeMap<>();
+        recompute();
+    }
+
+    /**
+     * Recomputes all statistics in one parallel pass over the collection. Must not run while the
+     * collection is changed.
+     */
+    public synchronized void recompute() {
+        groups.clear();
+        groups.putAll(pass());
+    }
+
+    /**
+     * Returns the responses that at least one patient has
+     *
+     * @return responses in String order
+     */
+    public synchronized Set<String> getResponses() {
+        return new TreeSet<>(groups.keySet());
+    }
+
+    /**
+     * Returns the number of patients with a response
+     *
+     * @param response e.g. "CR", or null for the whole collection
+     * @return number of patients
+     */
+    public synchronized long getCount(String response) {
+        if (response != null) {
+            Group group = groups.get(response);
+            return group != null ? group.count : 0;
+        }
+        long count = 0;
+        for (Group group : groups.values()) {
+            count += group.count;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the statistics of one protein
+     *
+     * @param response e.g. "CR", or null for the whole collection
+     * @param protein  1-based protein number
+     * @return statistics of the patients with the response; empty if there are none
+     */
+    public synchronized ProteinStats getProteinStats(String response, int protein) {
+        if (protein < 1 || protein > proteinCount) {
+            throw new IndexOutOfBoundsException("protein " + protein);
+        }
+        int i = protein - 1;
+        Group summary = new Group(1);
+        for (String key : selected(response)) {
+            summary.mergeProtein(fresh(key, i), i);
+        }
+        return new ProteinStats(protein, summary.count, summary.mean[0], summary.m2[0], summary.min[0],
+                summary.max[0], summary.digests[0]);
+    }
+
+    /**
+     * Returns the mean level of every protein
+     *
+     * @param response e.g. "CR", or null for the whole collection
+     * @return means indexed by 0-based protein, NaN if there are no such patients
+     */
+    public synchronized double[] getMeans(String response) {
+        double[] sums = new double[proteinCount];
+        long count = 0;
+        for (String key : selected(response)) {
+            Group group = groups.get(key);
+            for (int i = 0; i < proteinCount; i++) {
+                sums[i] += group.mean[i] * group.count;
+            }
+            count += group.count;
+        }
+        for (int i = 0; i < proteinCount; i++) {
+            sums[i] = count > 0 ? sums[i] / count : Double.NaN;
+        }
+        return sums;
+    }
+
+    /**
+     * Adds a patient that was added to the collection
+     */
+    synchronized void add(Patient p) {
+        groups.computeIfAbsent(key(p.getResponse()), k -> new Group(proteinCount)).add(p);
+    }
+
+    /**
+     * Removes a patient that was removed from the collection
+     */
+    synchronized void remove(Patient p) {
+        remove(p, key(p.getResponse()));
+    }
+
+    /**
+     * Moves a patient whose response changed to the group of its new response
+     *
+     * @param p           the patient, already holding its new response
+     * @param oldResponse its previous response
+     */
+    synchronized void responseChanged(Patient p, String oldResponse) {
+        if (!key(oldResponse).equals(key(p.getResponse()))) {
+            remove(p, key(oldResponse));
+            add(p);
+        }
+    }
+
+    private void remove(Patient p, String response) {
+        Group group = groups.get(response);
+        if (group == null) {
+            return;
+        }
+        if (group.count <= 1) {
+            groups.remove(response);
+        } else {
+            group.remove(p);
+        }
+    }
+
+    private List<String> selected(String response) {
+        List<String> selected = new ArrayList<>();
+        if (response == null) {
+            selected.addAll(groups.keySet());
+        } else if (groups.containsKey(response)) {
+            selected.add(response);
+        }
+        return selected;
+    }
+
+    /**
+     * Returns a group with the minimum, maximum and digest of a protein up to date, rebuilding
+     * them from the group's members if removals left them stale
+     */
+    private Group fresh(String response, int protein) {
+        Group group = groups.get(response);
+        if (group.stale.get(protein)
+                || (group.removals - group.digestRemovals[protein]) * DIGEST_SLACK > group.count) {
+            TDigest digest = new TDigest();
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (Patient p : group.members.values()) {
+                double x = p.getLevel(protein);
+                digest.add(x);
+                min = Math.min(min, x);
+                max = Math.max(max, x);
+            }
+            group.digests[protein] = digest;
+            group.digestRemovals[protein] = group.removals;
+            group.min[protein] = min;
+            group.max[protein] = max;
+            group.stale.clear(protein);
+        }
+        return group;
+    }
+
+    /**
+     * Accumulates all patients in parallel
+     */
+    private Map<String, Group> pass() {
+        Patient[] all = patients.get().toArray(new Patient[0]);
+        int slice = Math.max(MIN_TASK_PATIENTS, all.length / (pool.getParallelism() * 4));
+        return pool.invoke(new PassTask(all, 0, all.length, slice));
+    }
+
+    private static String key(String response) {
+        return String.valueOf(response);
+    }
+
+    /**
+     * Accumulates a slice of the patients, splitting it in halves until it is small enough
+     */
+    private final class PassTask extends RecursiveTask<Map<String, Group>> {
+        private static final long serialVersionUID = 1L;
+        private final Patient[] all;
+        private final int from;
+        private final int to;
+        private final int slice;
+
+        PassTask(Patient[] all, int from, int to, int slice) {
+            this.all = all;
+            this.from = from;
+            this.to = to;
+            this.slice = slice;
+        }
+
+        @Override
+        protected Map<String, Group> compute() {
+            if (to - from > slice) {
+                int mid = (from + to) >>> 1;
+                PassTask left = new PassTask(all, from, mid, slice);
+                left.fork();
+                Map<String, Group> result = new PassTask(all, mid, to, slice).compute();
+                for (Map.Entry<String, Group> entry : left.join().entrySet()) {
+                    Group other = result.get(entry.getKey());
+                    if (other == null) {
+                        result.put(entry.getKey(), entry.getValue());
+                    } else {
+                        entry.getValue().merge(other);
+                        result.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                return result;
+            }
+            Map<String, List<Patient>> members = new TreeMap<>();
+            for (int i = from; i < to; i++) {
+                members.computeIfAbsent(key(all[i].getResponse()), k -> new ArrayList<>()).add(all[i]);
+            }
+            Map<String, Group> result = new TreeMap<>();
+            for (Map.Entry<String, List<Patient>> entry : members.entrySet()) {
+                Group group = new Group(proteinCount);
+                group.addAll(entry.getValue());
+                result.put(entry.getKey(), group);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Running statistics of every protein over a group of patients
+     */
+    private static final class Group {
+        long count;
+        final double[] mean;
+        final double[] m2;
+        final double[] min;
+        final double[] max;
+        final TDigest[] digests;
+        // proteins whose min, max and digest a removal left out of date
+        final BitSet stale;
+        // the group's patients by id, to rebuild stale proteins from
+        final Map<String, Patient> members = new HashMap<>();
+        // patients removed so far, and how many had been when each protein's digest was built
+        long removals;
+        final long[] digestRemovals;
+
+        Group(int proteins) {
+            mean = new double[proteins];
+            m2 = new double[proteins];
+            min = new double[proteins];
+            max = new double[proteins];
+            digests = new TDigest[proteins];
+            stale = new BitSet(proteins);
+            digestRemovals = new long[proteins];
+            for (int i = 0; i < proteins; i++) {
+                min[i] = Double.POSITIVE_INFINITY;
+                max[i] = Double.NEGATIVE_INFINITY;
+                digests[i] = new TDigest();
+            }
+        }
+
+        void add(Patient p) {
+            ProteinVector levels = p.getProteins();
+            members.put(p.getId(), p);
+            count++;
+            for (int i = 0; i < mean.length; i++) {
+                double x = levels.getLevel(i);
+                double delta = x - mean[i];
+                mean[i] += delta / count;
+                m2[i] += delta * (x - mean[i]);
+                if (!stale.get(i)) {
+                    min[i] = Math.min(min[i], x);
+                    max[i] = Math.max(max[i], x);
+                    digests[i].add(x);
+                }
+            }
+        }
+
+        void remove(Patient p) {
+            ProteinVector levels = p.getProteins();
+            members.remove(p.getId());
+            count--;
+            removals++;
+            for (int i = 0; i < mean.length; i++) {
+                double x = levels.getLevel(i);
+                double delta = x - mean[i];
+                mean[i] -= delta / count;
+                m2[i] -= delta * (x - mean[i]);
+                if (x == min[i] || x == max[i]) {
+                    stale.set(i);
+                }
+            }
+        }
+
+        /**
+         * Adds patients protein by protein
+         */
+        void addAll(List<Patient> patients) {
+            ProteinVector[] levels = new ProteinVector[patients.size()];
+            for (int j = 0; j < levels.length; j++) {
+                Patient p = patients.get(j);
+                members.put(p.getId(), p);
+                levels[j] = p.getProteins();
+            }
+            for (int i = 0; i < mean.length; i++) {
+                long n = count;
+                double mu = mean[i];
+                double sq = m2[i];
+                double lo = min[i];
+                double hi = max[i];
+                TDigest digest = digests[i];
+                for (ProteinVector patient : levels) {
+                    double x = patient.getLevel(i);
+                    n++;
+                    double delta = x - mu;
+                    mu += delta / n;
+                    sq += delta * (x - mu);
+                    lo = Math.min(lo, x);
+                    hi = Math.max(hi, x);
+                    digest.add(x);
+                }
+                mean[i] = mu;
+                m2[i] = sq;
+                min[i] = lo;
+                max[i] = hi;
+            }
+            count += levels.length;
+        }
+
+        /**
+         * Merges another group of the same proteins into this one
+         */
+        void merge(Group other) {
+            long n = count + other.count;
+            for (int i = 0; i < mean.length; i++) {
+                combine(i, other, i, n);
+            }
+            count = n;
+            stale.or(other.stale);
+            members.putAll(other.members);
+        }
+
+        /**
+         * Merges one protein of a group into this single protein summary
+         */
+        void mergeProtein(Group other, int protein) {
+            long n = count + other.count;
+            if (count == 0) {
+                // keep the source digest untouched; digests are merged into a copy
+                digests[0] = other.digests[protein].copy();
+                mean[0] = other.mean[protein];
+                m2[0] = other.m2[protein];
+                min[0] = other.min[protein];
+                max[0] = other.max[protein];
+            } else {
+                combine(0, other, protein, n);
+            }
+            count = n;
+        }
+
+        private void combine(int i, Group other, int j, long n) {
+            if (n == 0) {
+                return;
+            }
+            double delta = other.mean[j] - mean[i];
+            mean[i] += delta * other.count / n;
+            m2[i] += other.m2[j] + delta * delta * count * other.count / n;
+            min[i] = Math.min(min[i], other.min[j]);
+            max[i] = Math.max(max[i], other.max[j]);
+            digests[i].merge(other.digests[j]);
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package backend;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts and times what the patient collections do: imports of new patient files, loads of
+ * collection files, saves, lookups by id and predictions, along with the bytes read and written
+ * and the rows rejected by an import, by reason.
+ * <p>
+ * There is one set of metrics per process, shared by every collection, see {@link #get()}. Counters
+ * are {@link LongAdder}s and durations go to {@link LatencyHistogram}s, so recording never blocks.
+ * Lookups and predictions are too quick to time each one without slowing them down noticeably,
+ * so they are all counted but only one in {@value #SAMPLE_RATE} is timed.
+ * <p>
+ * The metrics can be read through JMX once {@link #registerMBean()} has been called, or printed
+ * periodically with {@link #startReporting(long, TimeUnit, PrintStream)}.
+ *
+ * @author Matt Ellis
+ */
+public final class CollectionMetrics implements CollectionMetricsMBean {
+
+    /**
+     * Name the metrics are registered under by {@link #registerMBean()}
+     */
+    public static final String OBJECT_NAME = "backend:type=CollectionMetrics";
+    static final int SAMPLE_RATE = 64;
+    private static final CollectionMetrics INSTANCE = new CollectionMetrics();
+
+    /**
+     * Why an import skipped a line of a new patient file
+     */
+    public enum Rejection {
+        /**
+         * the line did not have an id and 4776 proteins
+         */
+        FORMAT,
+        /**
+         * the id was already in the collection
+         */
+        DUPLICATE_ID
+    }
+
+    private volatile boolean enabled = true;
+    private final LatencyHistogram imports = new LatencyHistogram();
+    private final LatencyHistogram loads = new LatencyHistogram();
+    private final LatencyHistogram saves = new LatencyHistogram();
+    private final LatencyHistogram lookupTimes = new LatencyHistogram();
+    private final LatencyHistogram predictionTimes = new LatencyHistogram();
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder predictions = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder[] rejected = new LongAdder[Rejection.values().length];
+    private final LongAdder filesUnreadable = new LongAdder();
+    private ScheduledExecutorService reporter;
+
+    private CollectionMetrics() {
+        for (int i = 0; i < rejected.length; i++) {
+            rejected[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @return the metrics of this process
+     */
+    public static CollectionMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server under {@value #OBJECT_NAME}, unless they
+     * already are
+     *
+     * @return true if the metrics are registered
+     */
+    public boolean registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+            return true;
+        } catch (JMException | SecurityException e) {
+            e.printStackTrace();
+            System.err.println("could not register " + OBJECT_NAME + " with JMX");
+            return false;
+        }
+    }
+
+    /**
+     * Prints {@link #snapshot()} at a fixed rate on a daemon thread
+     *
+     * @param period time between snapshots
+     * @param unit   unit of the period
+     * @param out    stream the snapshots are printed to
+     * @return cancel it to stop the reports
+     */
+    public synchronized Future<?> startReporting(long period, TimeUnit unit, PrintStream out) {
+        if (reporter == null) {
+            reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "collection-metrics");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return reporter.scheduleAtFixedRate(() -> out.print(snapshot()), period, period, unit);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns recording on or off; the values recorded so far are kept
+     */
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return start time of an operation timed every time, in {@link System#nanoTime()} units, or 0
+     * when disabled
+     */
+    long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * @return start time of an operation timed one time in {@value #SAMPLE_RATE}, or 0 when it is not
+     * timed this time
+     */
+    long sampleStart() {
+        return enabled && ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0 ? System.nanoTime() : 0;
+    }
+
+    void imported(long start, long bytes) {
+        if (start != 0) {
+            imports.record(System.nanoTime() - start);
+            bytesRead.add(bytes);
+        }
+    }
+
+    void loaded(long start, long bytes) {
+        if (start != 0) {
+            loads.record(System.nanoTime() - start);
+            bytesRead.add(bytes);
+        }
+    }
+
+    void saved(long start, long bytes) {
+        if (start != 0) {
+            saves.record(System.nanoTime() - start);
+            bytesWritten.add(bytes);
+        }
+    }
+
+    void lookedUp(long sampleStart) {
+        if (enabled) {
+            lookups.increment();
+            if (sampleStart != 0) {
+                lookupTimes.record(System.nanoTime() - sampleStart);
+            }
+        }
+    }
+
+    void predicted(long sampleStart) {
+        if (enabled) {
+            predictions.increment();
+            if (sampleStart != 0) {
+                predictionTimes.record(System.nanoTime() - sampleStart);
+            }
+        }
+    }
+
+    /**
+     * Counts predictions made in one batch, which are not timed
+     */
+    void predicted(int count) {
+        if (enabled) {
+            predictions.add(count);
+        }
+    }
+
+    void rejected(Rejection reason) {
+        if (enabled) {
+            rejected[reason.ordinal()].increment();
+        }
+    }
+
+    void fileUnreadable() {
+        if (enabled) {
+            filesUnreadable.increment();
+        }
+    }
+
+    /**
+     * @return durations of imports of new patient files
+     */
+    public LatencyHistogram getImports() {
+        return imports;
+    }
+
+    /**
+     * @return durations of reads of collection files
+     */
+    public LatencyHistogram getLoads() {
+        return loads;
+    }
+
+    /**
+     * @return durations of saves, both rewrites and change log syncs
+     */
+    public LatencyHistogram getSaves() {
+        return saves;
+    }
+
+    /**
+     * @return durations of the sampled lookups by id
+     */
+    public LatencyHistogram getLookupTimes() {
+        return lookupTimes;
+    }
+
+    /**
+     * @return durations of the sampled predictions
+     */
+    public LatencyHistogram getPredictionTimes() {
+        return predictionTimes;
+    }
+
+    /**
+     * @param reason why the rows were rejected
+     * @return rows rejected by imports for the reason
+     */
+    public long getRowsRejected(Rejection reason) {
+        return rejected[reason.ordinal()].sum();
+    }
+
+    @Override
+    public long getImportCount() {
+        return imports.getCount();
+    }
+
+    @Override
+    public double getImportMeanMillis() {
+        return imports.getMean() / 1e6;
+    }
+
+    @Override
+    public double getImportP99Millis() {
+        return imports.getValueAtPercentile(99) / 1e6;
+    }
+
+    @Override
+    public long getLoadCount() {
+        return loads.getCount();
+    }
+
+    @Override
+    public double getLoadMeanMillis() {
+        return loads.getMean() / 1e6;
+    }
+
+    @Override
+    public long getSaveCount() {
+        return saves.getCount();
+    }
+
+    @Override
+    public double getSaveMeanMillis() {
+        return saves.getMean() / 1e6;
+    }
+
+    @Override
+    public double getSaveP99Millis() {
+        return saves.getValueAtPercentile(99) / 1e6;
+    }
+
+    @Override
+    public long getLookupCount() {
+        return lookups.sum();
+    }
+
+    @Override
+    public double getLookupP99Micros() {
+        return lookupTimes.getValueAtPercentile(99) / 1e3;
+    }
+
+    @Override
+    public long getPredictionCount() {
+        return predictions.sum();
+    }
+
+    @Override
+    public double getPredictionP99Micros() {
+        return predictionTimes.getValueAtPercentile(99) / 1e3;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getRowsRejectedFormat() {
+        return getRowsRejected(Rejection.FORMAT);
+    }
+
+    @Override
+    public long getRowsRejectedDuplicateId() {
+        return getRowsRejected(Rejection.DUPLICATE_ID);
+    }
+
+    @Override
+    public long getFilesUnreadable() {
+        return filesUnreadable.sum();
+    }
+
+    @Override
+    public String snapshot() {
+        StringBuilder sb = new StringBuilder();
+        appendTimes(sb, "imports", imports, 1e6, "ms");
+        appendTimes(sb, "loads", loads, 1e6, "ms");
+        appendTimes(sb, "saves", saves, 1e6, "ms");
+        sb.append(String.format("lookups     %10d, sampled:", getLookupCount()));
+        appendPercentiles(sb, lookupTimes, 1e3, "us");
+        sb.append(String.format("predictions %10d, sampled:", getPredictionCount()));
+        appendPercentiles(sb, predictionTimes, 1e3, "us");
+        sb.append(String.format("bytes read %d, written %d%n", getBytesRead(), getBytesWritten()));
+        sb.append(String.format("rows rejected: format %d, duplicate id %d; files unreadable %d%n",
+                getRowsRejectedFormat(), getRowsRejectedDuplicateId(), getFilesUnreadable()));
+        return sb.toString();
+    }
+
+    private static void appendTimes(StringBuilder sb, String name, LatencyHistogram h, double scale, String unit) {
+        sb.append(String.format("%-11s %10d,", name, h.getCount()));
+        appendPercentiles(sb, h, scale, unit);
+    }
+
+    private static void appendPercentiles(StringBuilder sb, LatencyHistogram h, double scale, String unit) {
+        sb.append(String.format(" mean %.3f, p50 %.3f, p99 %.3f, max %.3f %s%n", h.getMean() / scale,
+                h.getValueAtPercentile(50) / scale, h.getValueAtPercentile(99) / scale, h.getMax() / scale, unit));
+    }
+}
@@ -0,0 +1,54 @@
+package backend;
+
+/**
+ * Management interface of {@link CollectionMetrics}, as seen through JMX, e.g. in JConsole under
+ * {@value CollectionMetrics#OBJECT_NAME}. Durations are in milliseconds for whole-file operations
+ * and in microseconds for single lookups and predictions.
+ *
+ * @author Matt Ellis
+ */
+public interface CollectionMetricsMBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getImportCount();
+
+    double getImportMeanMillis();
+
+    double getImportP99Millis();
+
+    long getLoadCount();
+
+    double getLoadMeanMillis();
+
+    long getSaveCount();
+
+    double getSaveMeanMillis();
+
+    double getSaveP99Millis();
+
+    long getLookupCount();
+
+    double getLookupP99Micros();
+
+    long getPredictionCount();
+
+    double getPredictionP99Micros();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getRowsRejectedFormat();
+
+    long getRowsRejectedDuplicateId();
+
+    long getFilesUnreadable();
+
+    /**
+     * @return all the metrics as text, one operation per line
+     */
+    String snapshot();
+}
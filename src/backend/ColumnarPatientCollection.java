@@ -0,0 +1,333 @@
+package backend;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * A patient collection that stores protein levels column by column.
+ * <p>
+ * Each of the 4776 proteins has one contiguous array holding that protein's level for every patient,
+ * and patients occupy dense rows 0 to size() - 1. Scans over a single protein across the cohort are
+ * then sequential sweeps of one array instead of a walk over every Patient object.
+ * <p>
+ * Reads and writes the same csv formats as {@link PatientCollection}.
+ * Patients returned by {@link #getPatient(String)} are copies built from the columns; changes to a
+ * patient's response must go through {@link #setResultForPatient(String, String)}.
+ *
+ * @author Matt Ellis
+ */
+public class ColumnarPatientCollection implements PatientCollectionADT {
+
+    private static final int NO_PROTEINS = 4776;
+    private static final int INITIAL_CAPACITY = 32;
+
+    private final double[][] columns;
+    private String[] ids;
+    private String[] responses;
+    private String[] predictions;
+    private int size;
+    private final HashMap<String, Integer> rowIndex;
+    private final SortedIdIndex idIndex;
+    private final PatientChangeSupport changes = new PatientChangeSupport();
+
+    /**
+     * Builds an empty columnar patient collection
+     */
+    public ColumnarPatientCollection() {
+        columns = new double[NO_PROTEINS][INITIAL_CAPACITY];
+        ids = new String[INITIAL_CAPACITY];
+        responses = new String[INITIAL_CAPACITY];
+        predictions = new String[INITIAL_CAPACITY];
+        rowIndex = new HashMap<>();
+        idIndex = new SortedIdIndex();
+    }
+
+    /**
+     * Builds a columnar patient collection from a collection csv file
+     *
+     * @param fn a csv file
+     */
+    public ColumnarPatientCollection(String fn) {
+        this();
+        readFile(fn);
+    }
+
+    /**
+     * Given a patient's id returns a copy of the patient from the collection
+     *
+     * @param id patient's id
+     * @return the Patient or null if Patient does not exist
+     */
+    @Override
+    public Patient getPatient(String id) {
+        Integer row = rowIndex.get(id);
+        if (row == null) {
+            return null;
+        }
+        return new Patient(ids[row], responses[row], predictions[row], getRow(row));
+    }
+
+    /**
+     * Given a patient's id removes the patient from the collection.
+     * The last row is moved into the vacated row to keep rows dense.
+     *
+     * @param id patient's id
+     * @return the Patient or null if Patient does not exist
+     */
+    @Override
+    public Patient removePatient(String id) {
+        Patient removed = getPatient(id);
+        if (removed == null) {
+            return null;
+        }
+        int row = rowIndex.remove(id);
+        idIndex.remove(id);
+        int last = size - 1;
+        if (row != last) {
+            for (double[] column : columns) {
+                column[row] = column[last];
+            }
+            ids[row] = ids[last];
+            responses[row] = responses[last];
+            predictions[row] = predictions[last];
+            rowIndex.put(ids[row], row);
+        }
+        ids[last] = null;
+        responses[last] = null;
+        predictions[last] = null;
+        size--;
+        changes.fire(PatientChange.Type.REMOVED, id, null);
+        return removed;
+    }
+
+    /**
+     * Sets the treatment response field for the patient with given id.
+     *
+     * @param id     patient's id
+     * @param result patient's response
+     */
+    @Override
+    public void setResultForPatient(String id, String result) {
+        Integer row = rowIndex.get(id);
+        if (row != null) {
+            responses[row] = result;
+            changes.fire(PatientChange.Type.RESPONSE_UPDATED, id, result);
+        }
+    }
+
+    /**
+     * Returns an ArrayList containing all the collection's patient ids in ascending order
+     *
+     * @return list of patient ids
+     */
+    @Override
+    public ArrayList<String> getIds() {
+        return idIndex.toList();
+    }
+
+    /**
+     * Opens a feed of the changes made from now on, see {@link PatientCollectionADT}
+     *
+     * @param capacity most changes queued for the handler before they are dropped
+     * @param executor runs the handler
+     * @param handler  receives the batches
+     * @return the open feed
+     */
+    @Override
+    public PatientChangeFeed subscribe(int capacity, Executor executor, PatientChangeFeed.Handler handler) {
+        return changes.subscribe(capacity, executor, handler);
+    }
+
+    /**
+     * Imports patients to a collection from a file
+     *
+     * @param fileName a csv file
+     * @return if an error occurs, returns the error
+     */
+    @Override
+    public String addPatientsFromFile(String fileName) {
+        return PatientCsvLoader.addNewPatients(fileName, rowIndex::containsKey, this::addNewRow);
+    }
+
+    /**
+     * Imports patients to a collection from a file, optionally parsing the file in parallel.
+     * <p>
+     * In parallel mode the file is split into newline-aligned chunks that are parsed on the common
+     * ForkJoinPool. Errors and the resulting collection are the same as in sequential mode.
+     *
+     * @param fileName a csv file
+     * @param parallel true to parse the file in parallel
+     * @return if an error occurs, returns the error
+     */
+    public String addPatientsFromFile(String fileName, boolean parallel) {
+        if (!parallel) {
+            return addPatientsFromFile(fileName);
+        }
+        return PatientCsvLoader.addNewPatientsParallel(fileName, rowIndex::containsKey, this::addNewRow,
+                ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Re-runs the predictor for every patient in the collection, e.g. after the model changed.
+     * The current model reads its protein columns directly.
+     */
+    public void rescoreAll() {
+        DecisionTreeModel model = Predictor.getModel();
+        byte[] codes = new byte[size];
+        model.classifyColumns(columns, size, codes);
+        for (int row = 0; row < size; row++) {
+            String label = model.getLabel(codes[row]);
+            if (!label.equals(predictions[row])) {
+                predictions[row] = label;
+                changes.fire(PatientChange.Type.PREDICTION_UPDATED, ids[row], label);
+            }
+        }
+    }
+
+    /**
+     * Finds the patients matching a query by scanning only the columns of the proteins it tests
+     * and selects, without copying patients out of the columns
+     *
+     * @param query conditions and projection
+     * @return matching patients in ascending id order
+     */
+    @Override
+    public QueryResult query(PatientQuery query) {
+        QueryResult.Builder result = new QueryResult.Builder(query.getProjection());
+        for (int i = 0; i < idIndex.size(); i++) {
+            int row = rowIndex.get(idIndex.get(i));
+            if (query.matches(responses[row], predictions[row], protein -> columns[protein][row])) {
+                result.add(ids[row], responses[row], predictions[row], protein -> columns[protein][row]);
+            }
+        }
+        return result.build();
+    }
+
+    /**
+     * A string representation of a patient collection
+     * <p>
+     * Only includes the 3698th and 3259th protein values
+     *
+     * @return string representation
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < idIndex.size(); i++) {
+            int row = rowIndex.get(idIndex.get(i));
+            sb.append(Patient.toString(ids[row], responses[row], predictions[row], protein -> columns[protein - 1][row]));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the number of patients in the collection
+     *
+     * @return number of patients
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns one protein's level for every patient in row order
+     *
+     * @param protein 1-based protein number, e.g. 3698
+     * @return the protein's levels, one per patient row
+     */
+    public double[] getProteinColumn(int protein) {
+        return Arrays.copyOf(columns[protein - 1], size);
+    }
+
+    /**
+     * Returns the id of the patient stored in a row
+     *
+     * @param row row between 0 and size() - 1
+     * @return patient id
+     */
+    public String getIdAt(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("row " + row + ", size " + size);
+        }
+        return ids[row];
+    }
+
+    /**
+     * Writes all the data in the patient collection to a csv file in the same format as
+     * {@link PatientCollection#writeFile(String)}.
+     *
+     * @param fn file to be written to
+     */
+    public void writeFile(String fn) {
+        Iterable<Patient> rows = () -> IntStream.range(0, size)
+                .mapToObj(row -> new Patient(ids[row], responses[row], predictions[row], getRow(row)))
+                .iterator();
+        try {
+            new PatientCsvWriter(fn).write(rows);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            System.err.println("Didn't save to " + fn);
+        }
+    }
+
+    /**
+     * Reads stored patient collection data from csv file and adds to collection
+     *
+     * @param fileName csv file
+     */
+    private void readFile(String fileName) {
+        PatientCsvLoader.readCollection(fileName, this::addRow);
+    }
+
+    private boolean addNewRow(Patient p) {
+        if (rowIndex.containsKey(p.getId())) {
+            return false;
+        }
+        addRow(p);
+        changes.fire(PatientChange.Type.ADDED, p.getId(), null);
+        return true;
+    }
+
+    private void addRow(Patient p) {
+        Integer existing = rowIndex.get(p.getId());
+        int row = existing != null ? existing : size;
+        if (row == ids.length) {
+            grow();
+        }
+        ProteinVector proteins = p.getProteins();
+        for (int i = 0; i < NO_PROTEINS; i++) {
+            columns[i][row] = proteins.getLevel(i);
+        }
+        ids[row] = p.getId();
+        responses[row] = p.getResponse();
+        predictions[row] = p.getPredict();
+        if (existing == null) {
+            rowIndex.put(p.getId(), row);
+            idIndex.add(p.getId());
+            size++;
+        }
+    }
+
+    private double[] getRow(int row) {
+        double[] proteins = new double[NO_PROTEINS];
+        for (int i = 0; i < NO_PROTEINS; i++) {
+            proteins[i] = columns[i][row];
+        }
+        return proteins;
+    }
+
+    private void grow() {
+        int capacity = ids.length * 2;
+        for (int i = 0; i < NO_PROTEINS; i++) {
+            columns[i] = Arrays.copyOf(columns[i], capacity);
+        }
+        ids = Arrays.copyOf(ids, capacity);
+        responses = Arrays.copyOf(responses, capacity);
+        predictions = Arrays.copyOf(predictions, capacity);
+    }
+}
@@ -0,0 +1,254 @@
+package backend;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+/**
+ * A thread-safe patient collection for serving many reader threads while imports and updates run.
+ * <p>
+ * Patients are kept in a ConcurrentHashMap, so {@link #getPatient(String)} never takes a lock, and
+ * their ids in a ConcurrentSkipListSet kept in ascending order, so listing them never sorts.
+ * Mutations (adds, removals, response updates) are serialized by the write side of a StampedLock.
+ * {@link #getIds()} and {@link #toString()} build their result under an optimistic read stamp
+ * and only keep it if no mutation happened meanwhile, so they see a consistent snapshot of the
+ * collection without blocking each other or writers. A reader that keeps losing the race to
+ * writers falls back to the shared read lock.
+ * <p>
+ * Reads the same csv and binary formats as {@link PatientCollection}.
+ * Changes to a patient's response must go through {@link #setResultForPatient(String, String)}
+ * to be part of a consistent snapshot.
+ *
+ * @author Matt Ellis
+ */
+public class ConcurrentPatientCollection implements PatientCollectionADT {
+
+    private static final int OPTIMISTIC_ATTEMPTS = 3;
+    private final ConcurrentHashMap<String, Patient> patientMap;
+    private final ConcurrentSkipListSet<String> idIndex;
+    private final StampedLock lock;
+    private final PatientChangeSupport changes = new PatientChangeSupport();
+
+    /**
+     * Builds an empty concurrent patient collection
+     */
+    public ConcurrentPatientCollection() {
+        patientMap = new ConcurrentHashMap<>();
+        idIndex = new ConcurrentSkipListSet<>(SortedIdIndex.ID_ORDER);
+        lock = new StampedLock();
+    }
+
+    /**
+     * Builds a concurrent patient collection from a csv or binary collection file
+     *
+     * @param fn a csv file or a {@link PatientBinaryFile}
+     */
+    public ConcurrentPatientCollection(String fn) {
+        this();
+        // patients are handed over from a collection that is not shared with any other thread
+        PatientCollection loaded = new PatientCollection(fn);
+        for (String id : loaded.getIds()) {
+            patientMap.put(id, loaded.getPatient(id));
+            idIndex.add(id);
+        }
+    }
+
+    /**
+     * Given a patient's id returns the patient from the collection without locking
+     *
+     * @param id patient's id
+     * @return the Patient or null if Patient does not exist
+     */
+    @Override
+    public Patient getPatient(String id) {
+        return patientMap.get(id);
+    }
+
+    /**
+     * Given a patient's id removes the patient from the collection
+     *
+     * @param id patient's id
+     * @return the Patient or null if Patient does not exist
+     */
+    @Override
+    public Patient removePatient(String id) {
+        long stamp = lock.writeLock();
+        try {
+            Patient removed = patientMap.remove(id);
+            if (removed != null) {
+                idIndex.remove(id);
+                changes.fire(PatientChange.Type.REMOVED, id, null);
+            }
+            return removed;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Sets the treatment response field for the patient with given id.
+     *
+     * @param id     patient's id
+     * @param result patient's response
+     */
+    @Override
+    public void setResultForPatient(String id, String result) {
+        long stamp = lock.writeLock();
+        try {
+            Patient p = patientMap.get(id);
+            if (p != null) {
+                p.setResponse(result);
+                changes.fire(PatientChange.Type.RESPONSE_UPDATED, id, result);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Adds a patient to the collection unless its id is already taken
+     *
+     * @param p patient to add
+     * @return false if a patient with the same id already exists
+     */
+    public boolean addPatient(Patient p) {
+        long stamp = lock.writeLock();
+        try {
+            if (patientMap.putIfAbsent(p.getId(), p) != null) {
+                return false;
+            }
+            idIndex.add(p.getId());
+            changes.fire(PatientChange.Type.ADDED, p.getId(), null);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Opens a feed of the changes made from now on. Changes are queued under the write lock, so
+     * they are delivered in the order they were made.
+     *
+     * @param capacity most changes queued for the handler before they are dropped
+     * @param executor runs the handler
+     * @param handler  receives the batches
+     * @return the open feed
+     */
+    @Override
+    public PatientChangeFeed subscribe(int capacity, Executor executor, PatientChangeFeed.Handler handler) {
+        return changes.subscribe(capacity, executor, handler);
+    }
+
+    /**
+     * Returns a consistent snapshot of the collection's patient ids in ascending order
+     *
+     * @return list of patient ids
+     */
+    @Override
+    public ArrayList<String> getIds() {
+        return snapshot(() -> new ArrayList<>(idIndex));
+    }
+
+    /**
+     * Imports patients to a collection from a file. Each patient is added as soon as it is parsed,
+     * so readers see the import progress; ids added by another thread during the import are reported
+     * as duplicates.
+     *
+     * @param fileName a csv file
+     * @return if an error occurs, returns the error
+     */
+    @Override
+    public String addPatientsFromFile(String fileName) {
+        return PatientCsvLoader.addNewPatients(fileName, patientMap::containsKey, this::addPatient);
+    }
+
+    /**
+     * Imports patients to a collection from a file, optionally parsing the file in parallel
+     *
+     * @param fileName a csv file
+     * @param parallel true to parse the file in parallel
+     * @return if an error occurs, returns the error
+     * @see PatientCollection#addPatientsFromFile(String, boolean)
+     */
+    public String addPatientsFromFile(String fileName, boolean parallel) {
+        if (!parallel) {
+            return addPatientsFromFile(fileName);
+        }
+        return PatientCsvLoader.addNewPatientsParallel(fileName, patientMap::containsKey, this::addPatient,
+                ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Writes a consistent snapshot of the collection to a csv file in the same format as
+     * {@link PatientCollection#writeFile(String)}.
+     * <p>
+     * Only taking the snapshot waits for writers; the file is written while mutations carry on.
+     *
+     * @param fn file to be written to
+     */
+    public void writeFile(String fn) {
+        List<Patient> rows = snapshot(() -> {
+            List<Patient> copies = new ArrayList<>(patientMap.size());
+            for (String id : idIndex) {
+                Patient p = patientMap.get(id);
+                // a patient removed during an optimistic read invalidates the snapshot anyway
+                if (p != null) {
+                    copies.add(p.copy());
+                }
+            }
+            return copies;
+        });
+        try {
+            new PatientCsvWriter(fn).write(rows);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            System.err.println("Didn't save to " + fn);
+        }
+    }
+
+    /**
+     * A string representation of a consistent snapshot of the patient collection
+     * <p>
+     * Only includes the 3698th and 3259th protein values
+     *
+     * @return string representation
+     */
+    @Override
+    public String toString() {
+        return snapshot(() -> {
+            StringBuilder sb = new StringBuilder();
+            for (String id : idIndex) {
+                sb.append(patientMap.get(id));
+            }
+            return sb.toString();
+        });
+    }
+
+    /**
+     * Runs a read-only computation so that it observes no concurrent mutation
+     */
+    private <T> T snapshot(Supplier<T> read) {
+        for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp != 0) {
+                T result = read.get();
+                if (lock.validate(stamp)) {
+                    return result;
+                }
+            }
+            Thread.onSpinWait();
+        }
+        long stamp = lock.readLock();
+        try {
+            return read.get();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package backend;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.function.IntToDoubleFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A binary decision tree over protein expression levels, compiled into flat arrays.
+ * <p>
+ * Node i tests "level of protein feature[i] &lt;= threshold[i]" and continues at left[i] when true or
+ * right[i] when false. Leaves have no feature and hold a class index into the prediction labels.
+ * Evaluating the tree is a loop over array indices and allocates nothing.
+ * <p>
+ * Trees are read from the text printed by the Weka J48 classifier, for example:
+ * <pre>
+ * P3698 &lt;= 20.903959: DP (11.0)
+ * P3698 &gt; 20.903959
+ * |   P3259 &lt;= 22.058599: CR (9.0/1.0)
+ * |   P3259 &gt; 22.058599: DP (2.0)
+ * </pre>
+ * The protein number, from 1 to 4776, is taken from the digits at the end of the attribute name, and class "CR"
+ * becomes the prediction "predCR". Instances are immutable, so a model can be shared between threads.
+ *
+ * @author Matt Ellis
+ */
+public final class DecisionTreeModel {
+
+    /**
+     * The tree originally generated with Weka J48 on the research data set, see {@link Predictor}
+     */
+    public static final DecisionTreeModel DEFAULT;
+
+    private static final int LEAF = -1;
+    private static final Pattern SPLIT = Pattern.compile(
+            "^((?:\\|\\s*)*)(\\S+)\\s*(<=|>)\\s*([^\\s:]+)\\s*(?::\\s*(\\S+).*)?$");
+    private static final Pattern SINGLE_LEAF = Pattern.compile("^:\\s*(\\S+).*$");
+
+    private final int[] feature;
+    private final double[] threshold;
+    private final int[] left;
+    private final int[] right;
+    private final int[] leafClass;
+    private final String[] labels;
+    private final int depth;
+    // for batch classification: the feature each node reads, a leaf reading the root's, and the
+    // children of node i at 2 * i (level at most the threshold) and 2 * i + 1, a leaf's being itself
+    private final int[] passFeature;
+    private final int[] children;
+
+    static {
+        try {
+            DEFAULT = parseJ48(new StringReader(
+                    "P3698 <= 20.903959: DP\n"
+                            + "P3698 > 20.903959\n"
+                            + "|   P3259 <= 22.058599: CR\n"
+                            + "|   P3259 > 22.058599: DP\n"));
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private DecisionTreeModel(int[] feature, double[] threshold, int[] left, int[] right, int[] leafClass,
+                              String[] labels) {
+        this.feature = feature;
+        this.threshold = threshold;
+        this.left = left;
+        this.right = right;
+        this.leafClass = leafClass;
+        this.labels = labels;
+        this.depth = depth(0);
+        passFeature = new int[feature.length];
+        children = new int[2 * feature.length];
+        for (int node = 0; node < feature.length; node++) {
+            boolean leaf = feature[node] == LEAF;
+            passFeature[node] = leaf ? Math.max(feature[0], 0) : feature[node];
+            children[2 * node] = leaf ? node : left[node];
+            children[2 * node + 1] = leaf ? node : right[node];
+        }
+    }
+
+    /**
+     * Loads a tree from a file holding Weka J48 text output
+     *
+     * @param fileName model file
+     * @return the compiled tree
+     * @throws IOException if the file cannot be read or does not hold a J48 tree
+     */
+    public static DecisionTreeModel load(String fileName) throws IOException {
+        try (Reader in = new FileReader(fileName)) {
+            return parseJ48(in);
+        }
+    }
+
+    /**
+     * Parses Weka J48 text output. Header and summary lines around the tree are ignored.
+     *
+     * @param in J48 text
+     * @return the compiled tree
+     * @throws IOException if the text cannot be read, does not hold a J48 tree or tests a protein
+     *                     patients do not have
+     */
+    public static DecisionTreeModel parseJ48(Reader in) throws IOException {
+        List<Matcher> lines = new ArrayList<>();
+        String leafOnly = null;
+        BufferedReader br = new BufferedReader(in);
+        String line;
+        while ((line = br.readLine()) != null) {
+            line = line.trim();
+            Matcher m = SPLIT.matcher(line);
+            Matcher leaf = SINGLE_LEAF.matcher(line);
+            if (m.matches()) {
+                lines.add(m);
+            } else if (lines.isEmpty() && leaf.matches()) {
+                leafOnly = leaf.group(1);
+            }
+        }
+
+        Builder builder = new Builder();
+        if (lines.isEmpty()) {
+            if (leafOnly == null) {
+                throw new IOException("no J48 tree found");
+            }
+            builder.addLeaf(leafOnly);
+        } else {
+            int[] next = {0};
+            builder.parse(lines, next, 0);
+            if (next[0] != lines.size()) {
+                throw new IOException("unexpected tree line: " + lines.get(next[0]).group());
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Classifies a patient
+     *
+     * @param proteins the patient's protein levels
+     * @return index of the predicted class, see {@link #getLabel(int)}
+     */
+    public int classify(ProteinVector proteins) {
+        // exact even when the vector is held at a lower precision
+        return classify(proteins::getExactLevel);
+    }
+
+    /**
+     * Classifies a patient reading only the levels the tree tests
+     *
+     * @param levels returns the level of a 0-based protein index
+     * @return index of the predicted class, see {@link #getLabel(int)}
+     */
+    int classify(IntToDoubleFunction levels) {
+        int node = 0;
+        while (feature[node] != LEAF) {
+            node = levels.applyAsDouble(feature[node]) <= threshold[node] ? left[node] : right[node];
+        }
+        return leafClass[node];
+    }
+
+    /**
+     * Predicts a patient's response to treatment
+     *
+     * @param proteins the patient's protein levels
+     * @return the prediction, e.g. "predCR" or "predDP"
+     */
+    public String predict(ProteinVector proteins) {
+        return labels[classify(proteins)];
+    }
+
+    /**
+     * Classifies many patients held in column-major arrays.
+     * <p>
+     * Every patient advances one tree level per pass, and leaves loop back to themselves, so after as
+     * many passes as the tree is deep every patient sits on its leaf. Each pass is a sequential sweep
+     * over the patients with no recursion or per-patient allocation. A patient on a leaf is moved like
+     * any other, to the leaf itself, and the comparison picks a child by index, so the sweep has no
+     * data dependent branches to mispredict however the levels fall around the thresholds.
+     *
+     * @param columns protein columns indexed by 0-based protein; only the columns of
+     *                {@link #getFeatures()} are read
+     * @param n       number of patients
+     * @param out     receives the class index of each patient
+     */
+    public void classifyColumns(double[][] columns, int n, byte[] out) {
+        int[] nodes = new int[n];
+        for (int level = 0; level < depth; level++) {
+            for (int i = 0; i < n; i++) {
+                int node = nodes[i];
+                // NaN is not at most the threshold and goes right, as in classify
+                int above = columns[passFeature[node]][i] <= threshold[node] ? 0 : 1;
+                nodes[i] = children[2 * node + above];
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            out[i] = (byte) leafClass[nodes[i]];
+        }
+        CollectionMetrics.get().predicted(n);
+    }
+
+    /**
+     * Returns the prediction label of a class
+     *
+     * @param classIndex index returned by {@link #classify(ProteinVector)}
+     * @return the prediction, e.g. "predCR"
+     */
+    public String getLabel(int classIndex) {
+        return labels[classIndex];
+    }
+
+    /**
+     * Returns the proteins tested by the tree
+     *
+     * @return 1-based protein numbers in ascending order
+     */
+    public int[] getFeatures() {
+        TreeSet<Integer> features = new TreeSet<>();
+        for (int f : feature) {
+            if (f != LEAF) {
+                features.add(f + 1);
+            }
+        }
+        return features.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Returns the tree in the J48 text format read by {@link #parseJ48(Reader)}
+     *
+     * @return J48 style text
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (feature[0] == LEAF) {
+            sb.append(": ").append(labels[leafClass[0]].substring("pred".length())).append('\n');
+        } else {
+            appendNode(sb, 0, 0);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof DecisionTreeModel)) {
+            return false;
+        }
+        DecisionTreeModel other = (DecisionTreeModel) o;
+        return Arrays.equals(feature, other.feature) && Arrays.equals(threshold, other.threshold)
+                && Arrays.equals(left, other.left) && Arrays.equals(right, other.right)
+                && Arrays.equals(leafClass, other.leafClass) && Arrays.equals(labels, other.labels);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(feature) * 31 + Arrays.hashCode(threshold);
+    }
+
+    private void appendNode(StringBuilder sb, int node, int indent) {
+        String prefix = "|   ".repeat(indent);
+        String[] branches = {" <= ", " > "};
+        int[] children = {left[node], right[node]};
+        for (int b = 0; b < 2; b++) {
+            sb.append(prefix).append('P').append(feature[node] + 1).append(branches[b]).append(threshold[node]);
+            int child = children[b];
+            if (feature[child] == LEAF) {
+                sb.append(": ").append(labels[leafClass[child]].substring("pred".length())).append('\n');
+            } else {
+                sb.append('\n');
+                appendNode(sb, child, indent + 1);
+            }
+        }
+    }
+
+    private int depth(int node) {
+        if (feature[node] == LEAF) {
+            return 0;
+        }
+        return 1 + Math.max(depth(left[node]), depth(right[node]));
+    }
+
+    /**
+     * Collects nodes while the J48 text is parsed
+     */
+    private static final class Builder {
+        private final List<Integer> feature = new ArrayList<>();
+        private final List<Double> threshold = new ArrayList<>();
+        private final List<Integer> left = new ArrayList<>();
+        private final List<Integer> right = new ArrayList<>();
+        private final List<Integer> leafClass = new ArrayList<>();
+        private final List<String> labels = new ArrayList<>();
+
+        /**
+         * Parses the "<=" line at lines[next] and its matching ">" line into a split node
+         */
+        int parse(List<Matcher> lines, int[] next, int level) throws IOException {
+            Matcher le = take(lines, next, level, "<=");
+            int node = addNode(protein(le.group(2)), parseThreshold(le.group(4)));
+            int leftChild = le.group(5) != null ? addLeaf(le.group(5)) : parse(lines, next, level + 1);
+
+            Matcher gt = take(lines, next, level, ">");
+            if (!gt.group(2).equals(le.group(2)) || !gt.group(4).equals(le.group(4))) {
+                throw new IOException("split does not match \"" + le.group().trim() + "\": " + gt.group());
+            }
+            int rightChild = gt.group(5) != null ? addLeaf(gt.group(5)) : parse(lines, next, level + 1);
+
+            left.set(node, leftChild);
+            right.set(node, rightChild);
+            return node;
+        }
+
+        int addLeaf(String className) {
+            String label = "pred" + className;
+            int cls = labels.indexOf(label);
+            if (cls < 0) {
+                cls = labels.size();
+                labels.add(label);
+            }
+            int node = addNode(LEAF, 0.0);
+            leafClass.set(node, cls);
+            // leaves point to themselves so column-wise evaluation can keep stepping
+            left.set(node, node);
+            right.set(node, node);
+            return node;
+        }
+
+        DecisionTreeModel build() throws IOException {
+            if (labels.size() > Byte.MAX_VALUE) {
+                throw new IOException("too many classes: " + labels.size());
+            }
+            return new DecisionTreeModel(toInts(feature), threshold.stream().mapToDouble(Double::doubleValue).toArray(),
+                    toInts(left), toInts(right), toInts(leafClass), labels.toArray(new String[0]));
+        }
+
+        private int addNode(int f, double t) {
+            feature.add(f);
+            threshold.add(t);
+            left.add(0);
+            right.add(0);
+            leafClass.add(0);
+            return feature.size() - 1;
+        }
+
+        private static Matcher take(List<Matcher> lines, int[] next, int level, String op) throws IOException {
+            if (next[0] >= lines.size()) {
+                throw new IOException("tree ends before a \"" + op + "\" branch at depth " + level);
+            }
+            Matcher m = lines.get(next[0]);
+            int lineLevel = m.group(1).replaceAll("[^|]", "").length();
+            if (lineLevel != level || !m.group(3).equals(op)) {
+                throw new IOException("expected a \"" + op + "\" branch at depth " + level + ": " + m.group());
+            }
+            next[0]++;
+            return m;
+        }
+
+        private static int protein(String attribute) throws IOException {
+            int start = attribute.length();
+            while (start > 0 && Character.isDigit(attribute.charAt(start - 1))) {
+                start--;
+            }
+            if (start == attribute.length()) {
+                throw new IOException("attribute " + attribute + " does not end with a protein number");
+            }
+            int protein;
+            try {
+                protein = Integer.parseInt(attribute.substring(start));
+            } catch (NumberFormatException e) {
+                throw new IOException("invalid protein number in attribute " + attribute, e);
+            }
+            if (protein < 1 || protein > PatientCsvLoader.NO_PROTEINS) {
+                throw new IOException("invalid protein number in attribute " + attribute);
+            }
+            return protein - 1;
+        }
+
+        private static double parseThreshold(String value) throws IOException {
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                throw new IOException("invalid split value " + value, e);
+            }
+        }
+
+        private static int[] toInts(List<Integer> values) {
+            int[] result = new int[values.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = values.get(i);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package backend;
+
+/**
+ * How far apart two patients' protein vectors are, for {@link PatientCollection#findNearest}.
+ *
+ * @author Matt Ellis
+ */
+public enum DistanceMetric {
+    /**
+     * Straight-line distance between the vectors
+     */
+    EUCLIDEAN,
+    /**
+     * One minus the cosine of the angle between the vectors, 0 for vectors pointing the same way and
+     * 2 for opposite ones. A zero vector is at distance 1 from everything.
+     */
+    COSINE
+}
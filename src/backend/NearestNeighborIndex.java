@@ -0,0 +1,361 @@
+package backend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Finds the patients whose protein vectors are closest to a query vector.
+ * <p>
+ * The exact search compares the query with every patient. Its loops read the primitive level arrays
+ * four elements at a time into independent sums, which lets the JIT keep several multiply-adds in
+ * flight instead of waiting on one running total. A Euclidean comparison also stops early, checking
+ * after each block of levels whether the partial sum already exceeds the k-th best distance so far.
+ * <p>
+ * The approximate search first compares short sketches of the vectors: each patient is projected
+ * onto {@value #SKETCH_DIMENSIONS} random directions when added, which keeps distances and angles
+ * close to those of the full vectors (Johnson-Lindenstrauss). The directions are sparse, a third of
+ * the proteins each with weight +1 or -1, so a projection costs additions only (Achlioptas). The
+ * patients whose sketches are closest, {@value #RERANK_FACTOR} times as many as asked for, are then
+ * compared exactly, so reported distances are exact and only patients missed by the sketches are lost.
+ * <p>
+ * Patients are added and removed one at a time as the collection changes. The index holds the
+ * sketch and norm of each patient, not its proteins, which are read through the patient when
+ * compared. Not thread-safe.
+ *
+ * @author Matt Ellis
+ */
+final class NearestNeighborIndex {
+
+    static final int SKETCH_DIMENSIONS = 64;
+    // patients compared exactly per neighbor asked for by an approximate search
+    static final int RERANK_FACTOR = 10;
+    private static final int MIN_RERANK = 50;
+    // levels summed between checks against the k-th best distance, a multiple of 4
+    private static final int BLOCK = 256;
+    private static final long SEED = 4776;
+
+    private final int dimensions;
+    // proteins weighted +1 and -1 in each sketch direction
+    private final int[][] plus = new int[SKETCH_DIMENSIONS][];
+    private final int[][] minus = new int[SKETCH_DIMENSIONS][];
+    private final double sketchScale = Math.sqrt(3.0 / SKETCH_DIMENSIONS);
+    // levels of a patient held at a lower precision, decoded for one comparison
+    private final double[] scratch;
+
+    private final HashMap<String, Integer> slots = new HashMap<>();
+    private Patient[] patients = new Patient[16];
+    private double[] norms = new double[16];
+    private double[] sketches = new double[16 * SKETCH_DIMENSIONS];
+    private double[] sketchNorms = new double[16];
+    private int size;
+
+    /**
+     * @param dimensions proteins per patient
+     */
+    NearestNeighborIndex(int dimensions) {
+        this.dimensions = dimensions;
+        this.scratch = new double[dimensions];
+        Random random = new Random(SEED);
+        int[] up = new int[dimensions];
+        int[] down = new int[dimensions];
+        for (int d = 0; d < SKETCH_DIMENSIONS; d++) {
+            int ups = 0;
+            int downs = 0;
+            for (int protein = 0; protein < dimensions; protein++) {
+                int r = random.nextInt(6);
+                if (r == 0) {
+                    up[ups++] = protein;
+                } else if (r == 1) {
+                    down[downs++] = protein;
+                }
+            }
+            plus[d] = Arrays.copyOf(up, ups);
+            minus[d] = Arrays.copyOf(down, downs);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Adds a patient, replacing any patient with the same id
+     */
+    void add(Patient p) {
+        remove(p.getId());
+        if (size == patients.length) {
+            int capacity = size * 2;
+            patients = Arrays.copyOf(patients, capacity);
+            norms = Arrays.copyOf(norms, capacity);
+            sketches = Arrays.copyOf(sketches, capacity * SKETCH_DIMENSIONS);
+            sketchNorms = Arrays.copyOf(sketchNorms, capacity);
+        }
+        double[] levels = levels(p);
+        patients[size] = p;
+        norms[size] = Math.sqrt(dot(levels, levels));
+        int offset = size * SKETCH_DIMENSIONS;
+        double sketchNorm = 0;
+        for (int d = 0; d < SKETCH_DIMENSIONS; d++) {
+            double v = sketchScale * (sum(levels, plus[d]) - sum(levels, minus[d]));
+            sketches[offset + d] = v;
+            sketchNorm += v * v;
+        }
+        sketchNorms[size] = Math.sqrt(sketchNorm);
+        slots.put(p.getId(), size++);
+    }
+
+    /**
+     * Removes a patient by moving the last patient into its slot
+     *
+     * @return true if the patient was indexed
+     */
+    boolean remove(String id) {
+        Integer slot = slots.remove(id);
+        if (slot == null) {
+            return false;
+        }
+        int last = --size;
+        if (slot != last) {
+            patients[slot] = patients[last];
+            norms[slot] = norms[last];
+            System.arraycopy(sketches, last * SKETCH_DIMENSIONS, sketches, slot * SKETCH_DIMENSIONS, SKETCH_DIMENSIONS);
+            sketchNorms[slot] = sketchNorms[last];
+            slots.put(patients[slot].getId(), slot);
+        }
+        patients[last] = null;
+        return true;
+    }
+
+    /**
+     * Compares the query with every patient
+     *
+     * @param query   protein levels, index 0 holding protein 1
+     * @param k       neighbors to find
+     * @param metric  distance to rank by
+     * @param exclude id of a patient to leave out, or null
+     * @return up to k nearest patients, nearest first, ties in ascending id order
+     */
+    List<Neighbor> exact(double[] query, int k, DistanceMetric metric, String exclude) {
+        checkQuery(query, k);
+        Best best = new Best(k);
+        double queryNorm = Math.sqrt(dot(query, query));
+        for (int slot = 0; slot < size; slot++) {
+            if (!patients[slot].getId().equals(exclude)) {
+                consider(best, slot, query, queryNorm, metric);
+            }
+        }
+        return best.toNeighbors(metric);
+    }
+
+    /**
+     * Compares the query's sketch with every patient's, then compares the closest patients exactly
+     *
+     * @param query   protein levels, index 0 holding protein 1
+     * @param k       neighbors to find
+     * @param metric  distance to rank by
+     * @param exclude id of a patient to leave out, or null
+     * @return up to k patients near the query, nearest first, with exact distances
+     */
+    List<Neighbor> approximate(double[] query, int k, DistanceMetric metric, String exclude) {
+        checkQuery(query, k);
+        int rerank = Math.max(MIN_RERANK, (int) Math.min(Integer.MAX_VALUE, (long) k * RERANK_FACTOR));
+        if (rerank >= size) {
+            return exact(query, k, metric, exclude);
+        }
+        double[] sketch = new double[SKETCH_DIMENSIONS];
+        double sketchNorm = 0;
+        for (int d = 0; d < SKETCH_DIMENSIONS; d++) {
+            sketch[d] = sketchScale * (sum(query, plus[d]) - sum(query, minus[d]));
+            sketchNorm += sketch[d] * sketch[d];
+        }
+        sketchNorm = Math.sqrt(sketchNorm);
+
+        Best candidates = new Best(rerank);
+        for (int slot = 0; slot < size; slot++) {
+            if (patients[slot].getId().equals(exclude)) {
+                continue;
+            }
+            int offset = slot * SKETCH_DIMENSIONS;
+            double dot = 0;
+            double squared = 0;
+            for (int d = 0; d < SKETCH_DIMENSIONS; d++) {
+                double v = sketches[offset + d];
+                dot += sketch[d] * v;
+                double diff = sketch[d] - v;
+                squared += diff * diff;
+            }
+            candidates.offer(slot, metric == DistanceMetric.EUCLIDEAN ? squared
+                    : cosineDistance(dot, sketchNorm, sketchNorms[slot]));
+        }
+
+        Best best = new Best(k);
+        double queryNorm = Math.sqrt(dot(query, query));
+        for (int i = 0; i < candidates.size; i++) {
+            consider(best, candidates.slots[i], query, queryNorm, metric);
+        }
+        return best.toNeighbors(metric);
+    }
+
+    private void consider(Best best, int slot, double[] query, double queryNorm, DistanceMetric metric) {
+        double[] levels = levels(patients[slot]);
+        if (metric == DistanceMetric.EUCLIDEAN) {
+            best.offer(slot, squaredDistance(query, levels, best.worst()));
+        } else {
+            best.offer(slot, cosineDistance(dot(query, levels), queryNorm, norms[slot]));
+        }
+    }
+
+    private void checkQuery(double[] query, int k) {
+        if (query.length != dimensions) {
+            throw new IllegalArgumentException("expected " + dimensions + " proteins, got " + query.length);
+        }
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be positive: " + k);
+        }
+    }
+
+    /**
+     * Returns the patient's levels, decoded into a scratch array if they are not held as doubles
+     */
+    private double[] levels(Patient p) {
+        ProteinVector proteins = p.getProteins();
+        double[] levels = proteins.array();
+        if (levels == null) {
+            proteins.decode(scratch);
+            levels = scratch;
+        }
+        return levels;
+    }
+
+    private static double sum(double[] levels, int[] proteins) {
+        double s = 0;
+        for (int protein : proteins) {
+            s += levels[protein];
+        }
+        return s;
+    }
+
+    private static double cosineDistance(double dot, double normA, double normB) {
+        if (normA == 0 || normB == 0) {
+            return 1;
+        }
+        return 1 - dot / (normA * normB);
+    }
+
+    /**
+     * Returns the squared Euclidean distance, or a partial sum above the bound once it is known to
+     * be above it
+     */
+    static double squaredDistance(double[] a, double[] b, double bound) {
+        double s0 = 0;
+        double s1 = 0;
+        double s2 = 0;
+        double s3 = 0;
+        int n = a.length;
+        int i = 0;
+        while (i + BLOCK <= n) {
+            for (int end = i + BLOCK; i < end; i += 4) {
+                double d0 = a[i] - b[i];
+                double d1 = a[i + 1] - b[i + 1];
+                double d2 = a[i + 2] - b[i + 2];
+                double d3 = a[i + 3] - b[i + 3];
+                s0 += d0 * d0;
+                s1 += d1 * d1;
+                s2 += d2 * d2;
+                s3 += d3 * d3;
+            }
+            if (s0 + s1 + s2 + s3 > bound) {
+                return s0 + s1 + s2 + s3;
+            }
+        }
+        for (; i + 3 < n; i += 4) {
+            double d0 = a[i] - b[i];
+            double d1 = a[i + 1] - b[i + 1];
+            double d2 = a[i + 2] - b[i + 2];
+            double d3 = a[i + 3] - b[i + 3];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        for (; i < n; i++) {
+            double d = a[i] - b[i];
+            s0 += d * d;
+        }
+        return s0 + s1 + s2 + s3;
+    }
+
+    static double dot(double[] a, double[] b) {
+        double s0 = 0;
+        double s1 = 0;
+        double s2 = 0;
+        double s3 = 0;
+        int n = a.length;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            s0 += a[i] * b[i];
+            s1 += a[i + 1] * b[i + 1];
+            s2 += a[i + 2] * b[i + 2];
+            s3 += a[i + 3] * b[i + 3];
+        }
+        for (; i < n; i++) {
+            s0 += a[i] * b[i];
+        }
+        return s0 + s1 + s2 + s3;
+    }
+
+    /**
+     * The k best slots seen so far, in ascending distance and then ascending id order
+     */
+    private final class Best {
+        final int[] slots;
+        final double[] distances;
+        int size;
+
+        Best(int k) {
+            int capacity = Math.min(k, NearestNeighborIndex.this.size);
+            slots = new int[capacity];
+            distances = new double[capacity];
+        }
+
+        /**
+         * @return distance a slot must not exceed to be kept
+         */
+        double worst() {
+            return size < slots.length ? Double.POSITIVE_INFINITY : distances[size - 1];
+        }
+
+        void offer(int slot, double distance) {
+            if (slots.length == 0 || (size == slots.length && !before(distance, slot, size - 1))) {
+                return;
+            }
+            int i = size < slots.length ? size++ : size - 1;
+            for (; i > 0 && before(distance, slot, i - 1); i--) {
+                slots[i] = slots[i - 1];
+                distances[i] = distances[i - 1];
+            }
+            slots[i] = slot;
+            distances[i] = distance;
+        }
+
+        private boolean before(double distance, int slot, int i) {
+            int c = Double.compare(distance, distances[i]);
+            if (c == 0) {
+                c = SortedIdIndex.ID_ORDER.compare(patients[slot].getId(), patients[slots[i]].getId());
+            }
+            return c < 0;
+        }
+
+        List<Neighbor> toNeighbors(DistanceMetric metric) {
+            List<Neighbor> neighbors = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                double d = distances[i];
+                neighbors.add(new Neighbor(patients[slots[i]].getId(), metric == DistanceMetric.EUCLIDEAN ? Math.sqrt(d) : d));
+            }
+            return neighbors;
+        }
+    }
+}
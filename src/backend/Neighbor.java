@@ -0,0 +1,37 @@
+package backend;
+
+/**
+ * A patient found by a nearest-neighbour search and its distance from the query. Immutable.
+ *
+ * @author Matt Ellis
+ */
+public final class Neighbor {
+    private final String id;
+    private final double distance;
+
+    Neighbor(String id, double distance) {
+        this.id = id;
+        this.distance = distance;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return exact distance from the query under the metric searched with
+     */
+    public double getDistance() {
+        return distance;
+    }
+
+    /**
+     * A string representation of a neighbor
+     *
+     * @return string representation
+     */
+    @Override
+    public String toString() {
+        return "[Id] " + id + ", [Distance] " + distance;
+    }
+}
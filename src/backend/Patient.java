@@ -1,6 +1,8 @@
 package backend;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.IntToDoubleFunction;
 
 /**
  * Patient attributes include:
@@ -9,20 +11,33 @@ import java.util.ArrayList;
  * <li>the patient's response to treatment</li>
  * <li>a list of the patient's normalized protein expression level for 4776 proteins</li></ul>
  * <p>
- * Note: The patient's predicted response is calculated using their 3698th and 3259th protein levels
+ * Note: The patient's predicted response is calculated by the current {@link Predictor} model, which
+ * originally uses their 3698th and 3259th protein levels
+ * <p>
+ * A patient read lazily from a binary collection file only holds its id, response, prediction and
+ * the levels of the proteins tested by the model that was current when the file was opened. Its
+ * other levels are read from the file one at a time, and its full protein levels are fetched through
+ * a {@link ProteinCache} whenever {@link #getProteins()} is called, until new levels are set.
  *
  * @author Matt Ellis
  */
 public class Patient {
-    private String id;
-    private String rspns;
-    private String predRspns;
-    private ArrayList<Double> proteins;
+    // volatile so a patient shared between threads is always seen with its latest values
+    private volatile String id;
+    private volatile String rspns;
+    private volatile String predRspns;
+    private volatile ProteinVector proteins;
+    // set instead of proteins for a lazily loaded patient
+    private ProteinCache cache;
+    private int row;
+    // 0-based proteins whose levels a lazily loaded patient holds, shared by the collection's patients
+    private int[] heldProteins;
+    private double[] heldLevels;
     private static final int PROTEIN1 = 3698;
     private static final int PROTEIN2 = 3259;
 
     public Patient() {
-        proteins = new ArrayList<>();
+        proteins = new ProteinVector(new double[0]);
     }
 
     /**
@@ -31,7 +46,17 @@ public class Patient {
      * @param id       patient id
      * @param proteins patient's protein levels
      */
-    public Patient(String id, ArrayList<Double> proteins) {
+    public Patient(String id, List<Double> proteins) {
+        this(id, toArray(proteins));
+    }
+
+    /**
+     * Constructor used when adding new patients from a file
+     *
+     * @param id       patient id
+     * @param proteins patient's protein levels, not copied
+     */
+    public Patient(String id, double[] proteins) {
         this();
         setId(id);
         setProteins(proteins);
@@ -47,7 +72,19 @@ public class Patient {
      * @param predRspns patient's predicated response
      * @param proteins  patient's protein levels
      */
-    public Patient(String id, String rspns, String predRspns, ArrayList<Double> proteins) {
+    public Patient(String id, String rspns, String predRspns, List<Double> proteins) {
+        this(id, rspns, predRspns, toArray(proteins));
+    }
+
+    /**
+     * Constructor used when reading existing patients from a collection csv file
+     *
+     * @param id        patient id
+     * @param rspns     patient's treatment response
+     * @param predRspns patient's predicated response
+     * @param proteins  patient's protein levels, not copied
+     */
+    public Patient(String id, String rspns, String predRspns, double[] proteins) {
         this();
         setId(id);
         setResponse(rspns);
@@ -56,10 +93,33 @@ public class Patient {
     }
 
     /**
-     * Predicts patient's response to treatment
+     * Constructor used when opening a binary collection file lazily; protein levels stay in the file
+     *
+     * @param cache    cache over the opened file
+     * @param row      the patient's row in the file
+     * @param proteins 0-based proteins whose levels are held in memory, e.g. those the current model
+     *                 tests; not copied
+     */
+    Patient(ProteinCache cache, int row, int[] proteins) {
+        PatientBinaryFile binary = cache.getFile();
+        this.id = binary.getId(row);
+        this.rspns = binary.getResponse(row).intern();
+        this.predRspns = binary.getPrediction(row).intern();
+        this.cache = cache;
+        this.row = row;
+        this.heldProteins = proteins;
+        this.heldLevels = new double[proteins.length];
+        for (int i = 0; i < proteins.length; i++) {
+            heldLevels[i] = binary.getLevel(row, proteins[i]);
+        }
+    }
+
+    /**
+     * Predicts patient's response to treatment with the current model. Only the levels the model
+     * tests are read, so a lazily loaded patient's other levels stay in its file.
      */
     public void predictResponse() {
-        predRspns = Predictor.predict(proteins.get(PROTEIN1 - 1), proteins.get(PROTEIN2 - 1));
+        predRspns = Predictor.predict(this::getExactLevel);
     }
 
     public void setId(String id) {
@@ -78,12 +138,80 @@ public class Patient {
         this.rspns = rspns;
     }
 
-    public ArrayList<Double> getProteins() {
-        return proteins;
+    /**
+     * Returns a read-only view of the patient's protein levels
+     *
+     * @return protein levels, index 0 holding protein 1
+     */
+    public ProteinVector getProteins() {
+        ProteinVector levels = proteins;
+        return levels != null ? levels : cache.get(row);
     }
 
-    public void setProteins(ArrayList<Double> proteins) {
-        this.proteins = proteins;
+    /**
+     * Returns a single protein level. A lazily loaded patient answers this without loading all of
+     * its proteins.
+     *
+     * @param protein 0-based index of the protein
+     * @return the protein's expression level
+     */
+    public double getLevel(int protein) {
+        ProteinVector levels = proteins;
+        if (levels != null) {
+            return levels.getLevel(protein);
+        }
+        for (int i = 0; i < heldProteins.length; i++) {
+            if (heldProteins[i] == protein) {
+                return heldLevels[i];
+            }
+        }
+        return cache.getLevel(row, protein);
+    }
+
+    /**
+     * Returns a single protein level exactly as it was read, even if the patient's levels are held
+     * at a lower precision, for predictions
+     *
+     * @param protein 0-based index of the protein
+     * @return the protein's expression level
+     */
+    double getExactLevel(int protein) {
+        ProteinVector levels = proteins;
+        return levels != null ? levels.getExactLevel(protein) : getLevel(protein);
+    }
+
+    /**
+     * Returns the protein levels of a lazily loaded patient as they are stored in its binary file,
+     * without loading them
+     *
+     * @return little-endian levels, or null if the patient's levels are held in memory
+     */
+    ByteBuffer storedLevels() {
+        return proteins == null && cache != null ? cache.getFile().levelBytes(row) : null;
+    }
+
+    public void setProteins(List<Double> proteins) {
+        setProteins(toArray(proteins));
+    }
+
+    /**
+     * Sets the patient's protein levels
+     *
+     * @param proteins protein levels, not copied
+     */
+    public void setProteins(double[] proteins) {
+        this.proteins = new ProteinVector(proteins);
+    }
+
+    /**
+     * Converts the patient's protein levels to the encoder's precision. A lazily loaded patient is
+     * left as it is.
+     */
+    void encodeProteins(ProteinEncoder encoder) {
+        ProteinVector levels = proteins;
+        if (levels != null) {
+            proteins = encoder.encode(levels);
+        }
     }
 
     public void setPredict(String predRspns) {
@@ -94,11 +222,47 @@ public class Patient {
         return predRspns;
     }
 
+    /**
+     * Returns a copy of the patient's current id, response and prediction. Protein levels are
+     * never modified in place, so the copy shares them.
+     *
+     * @return a copy of the patient
+     */
+    Patient copy() {
+        Patient copy = new Patient();
+        copy.id = id;
+        copy.rspns = rspns;
+        copy.predRspns = predRspns;
+        copy.proteins = proteins;
+        copy.cache = cache;
+        copy.row = row;
+        copy.heldProteins = heldProteins;
+        copy.heldLevels = heldLevels;
+        return copy;
+    }
+
     public String toString() {
-        String toReturn = "[Id] " + getId() + ", [Response] " + getResponse() + ", [Predicted] " + getPredict()
-                + ", [Protein " + PROTEIN1 + "] " + proteins.get(PROTEIN1 - 1) + ", [Protein " + PROTEIN2 + "] "
-                + proteins.get(PROTEIN2 - 1) + "\n";
+        return toString(getId(), getResponse(), getPredict(), protein -> getLevel(protein - 1));
+    }
+
+    /**
+     * Formats a patient as {@link #toString()} does, reading only the two proteins it shows
+     *
+     * @param levels returns the level of a 1-based protein number
+     */
+    static String toString(String id, String response, String predict, IntToDoubleFunction levels) {
+        String toReturn = "[Id] " + id + ", [Response] " + response + ", [Predicted] " + predict
+                + ", [Protein " + PROTEIN1 + "] " + levels.applyAsDouble(PROTEIN1) + ", [Protein " + PROTEIN2 + "] "
+                + levels.applyAsDouble(PROTEIN2) + "\n";
         return toReturn;
     }
 
+    private static double[] toArray(List<Double> proteins) {
+        double[] levels = new double[proteins.size()];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = proteins.get(i);
+        }
+        return levels;
+    }
+
 }
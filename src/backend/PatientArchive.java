@@ -0,0 +1,722 @@
+package backend;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed columnar patient collection file, for cohorts that are kept but rarely opened.
+ * <p>
+ * The protein levels are stored column by column, each column split into blocks of a fixed number of
+ * rows. A block is encoded one of two ways, both lossless:
+ * <ul><li>decimal: when every level of the block is a decimal with at most 15 digits after the point,
+ * as the research data is, the levels are stored as integers at the block's scale, each as its
+ * difference from the block's smallest, packed into as few bits as the largest difference needs</li>
+ * <li>XOR: otherwise each level is XORed with the previous one and only the bits that differ are
+ * stored, reusing the previous window of leading and trailing zeros when it fits (Gorilla)</li></ul>
+ * and then compressed with {@link Deflater} if that makes it smaller. The ids, responses and
+ * predictions are compressed together in one section.
+ * <p>
+ * The file starts with a 32 byte header:
+ * <ul><li>magic "PCMA"</li>
+ * <li>format version (int)</li>
+ * <li>proteins per patient (int)</li>
+ * <li>number of patient rows (int)</li>
+ * <li>rows per block (int)</li>
+ * <li>4 reserved bytes</li>
+ * <li>offset of the footer (long)</li></ul>
+ * The footer holds the offset and lengths of the label section, then for each column and each of its
+ * blocks the offset, stored length and encoded length of the block and the lowest and highest level
+ * in it, ignoring NaN. A range scan reads only the footer and the blocks whose range overlaps it.
+ * All values are little-endian. An opened archive is not thread-safe.
+ *
+ * @author Matt Ellis
+ */
+public final class PatientArchive implements Closeable {
+
+    public static final String EXTENSION = ".pca";
+    public static final int VERSION = 1;
+    static final int DEFAULT_BLOCK_ROWS = 1024;
+    static final int HEADER_BYTES = 32;
+    private static final int ENTRY_BYTES = 32;
+    private static final byte[] MAGIC = {'P', 'C', 'M', 'A'};
+    private static final byte XOR = 0;
+    private static final byte DECIMAL = 1;
+    private static final int MAX_SCALE = 15;
+    private static final long MAX_EXACT = 1L << 53;
+    private static final double[] POW10 = new double[MAX_SCALE + 1];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i <= MAX_SCALE; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    private final FileChannel channel;
+    private final int proteinCount;
+    private final int rowCount;
+    private final int blockRows;
+    private final int blockCount;
+    private final String[] ids;
+    private final String[] responses;
+    private final String[] predictions;
+    // by column, then block
+    private final long[] offsets;
+    private final int[] lengths;
+    private final int[] encodedLengths;
+    private final double[] mins;
+    private final double[] maxs;
+    private long blocksDecoded;
+
+    private PatientArchive(FileChannel channel) throws IOException {
+        this.channel = channel;
+        ByteBuffer header = read(channel, 0, HEADER_BYTES);
+        if (!hasMagic(header)) {
+            throw new IOException("not a patient archive");
+        }
+        int version = header.getInt(4);
+        if (version != VERSION) {
+            throw new IOException("unsupported archive version " + version);
+        }
+        proteinCount = header.getInt(8);
+        rowCount = header.getInt(12);
+        blockRows = header.getInt(16);
+        long footerOffset = header.getLong(24);
+        if (proteinCount < 0 || rowCount < 0 || blockRows < 1 || footerOffset < HEADER_BYTES) {
+            throw new IOException("archive header is corrupt");
+        }
+        blockCount = (rowCount + blockRows - 1) / blockRows;
+        int entries = proteinCount * blockCount;
+        ByteBuffer footer = read(channel, footerOffset, 16 + (long) entries * ENTRY_BYTES);
+        long labelOffset = footer.getLong();
+        int labelLength = footer.getInt();
+        int labelEncodedLength = footer.getInt();
+        offsets = new long[entries];
+        lengths = new int[entries];
+        encodedLengths = new int[entries];
+        mins = new double[entries];
+        maxs = new double[entries];
+        for (int i = 0; i < entries; i++) {
+            offsets[i] = footer.getLong();
+            lengths[i] = footer.getInt();
+            encodedLengths[i] = footer.getInt();
+            mins[i] = footer.getDouble();
+            maxs[i] = footer.getDouble();
+        }
+
+        ids = new String[rowCount];
+        responses = new String[rowCount];
+        predictions = new String[rowCount];
+        byte[] labels = inflate(read(channel, labelOffset, labelLength), labelEncodedLength);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(labels));
+        for (int row = 0; row < rowCount; row++) {
+            ids[row] = in.readUTF();
+            responses[row] = in.readUTF().intern();
+            predictions[row] = in.readUTF().intern();
+        }
+    }
+
+    /**
+     * Opens an archive for reading
+     *
+     * @param fileName archive file
+     * @return the opened archive
+     * @throws IOException if the file cannot be read or is not an archive
+     */
+    public static PatientArchive open(String fileName) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        try {
+            return new PatientArchive(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e instanceof IOException ? (IOException) e : new IOException("archive is corrupt", e);
+        }
+    }
+
+    /**
+     * Checks whether a file starts with the archive magic
+     *
+     * @param fileName file to check
+     * @return true if the file is an archive
+     */
+    public static boolean isArchive(String fileName) {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(MAGIC.length);
+            channel.read(header, 0);
+            header.flip();
+            return hasMagic(header);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes patients to an archive with {@value #DEFAULT_BLOCK_ROWS} rows per block, replacing any
+     * existing file
+     *
+     * @param fileName     archive file
+     * @param proteinCount proteins per patient
+     * @param patients     patients to write, in row order
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(String fileName, int proteinCount, List<Patient> patients) throws IOException {
+        write(fileName, proteinCount, patients, DEFAULT_BLOCK_ROWS);
+    }
+
+    /**
+     * Writes patients to an archive, replacing any existing file.
+     * <p>
+     * The archive is written to a temporary file that is renamed over the target once complete, so
+     * the previous file survives a failed write.
+     *
+     * @param fileName     archive file
+     * @param proteinCount proteins per patient
+     * @param patients     patients to write, in row order
+     * @param blockRows    rows per block; smaller blocks let scans skip more but compress less well
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(String fileName, int proteinCount, List<Patient> patients, int blockRows)
+            throws IOException {
+        if (blockRows < 1) {
+            throw new IllegalArgumentException("blockRows must be positive: " + blockRows);
+        }
+        for (Patient p : patients) {
+            if (p.getProteins().size() != proteinCount) {
+                throw new IllegalArgumentException("patient " + p.getId() + " has " + p.getProteins().size()
+                        + " proteins, expected " + proteinCount);
+            }
+        }
+        Path path = Paths.get(fileName).toAbsolutePath();
+        Path temp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            writeColumns(temp, proteinCount, patients, blockRows);
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    private static void writeColumns(Path path, int proteinCount, List<Patient> patients, int blockRows)
+            throws IOException {
+        int rows = patients.size();
+        int blocks = (rows + blockRows - 1) / blockRows;
+        ByteBuffer footer = ByteBuffer.allocate(16 + proteinCount * blocks * ENTRY_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        Deflater deflater = new Deflater();
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = HEADER_BYTES;
+
+            ByteArrayOutputStream labelBytes = new ByteArrayOutputStream();
+            DataOutputStream labels = new DataOutputStream(labelBytes);
+            for (Patient p : patients) {
+                labels.writeUTF(String.valueOf(p.getId()));
+                labels.writeUTF(String.valueOf(p.getResponse()));
+                labels.writeUTF(String.valueOf(p.getPredict()));
+            }
+            byte[] encoded = labelBytes.toByteArray();
+            byte[] stored = deflate(deflater, encoded, encoded.length);
+            footer.putLong(position).putInt(stored.length).putInt(encoded.length);
+            position += write(out, position, stored, stored.length);
+
+            ProteinVector[] vectors = new ProteinVector[Math.min(rows, blockRows)];
+            double[] column = new double[vectors.length];
+            BitWriter bits = new BitWriter();
+            ByteBuffer[] entries = new ByteBuffer[blocks];
+            for (int block = 0; block < blocks; block++) {
+                int first = block * blockRows;
+                int n = Math.min(blockRows, rows - first);
+                for (int i = 0; i < n; i++) {
+                    vectors[i] = patients.get(first + i).getProteins();
+                }
+                ByteBuffer entry = ByteBuffer.allocate(proteinCount * ENTRY_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                for (int protein = 0; protein < proteinCount; protein++) {
+                    double min = Double.POSITIVE_INFINITY;
+                    double max = Double.NEGATIVE_INFINITY;
+                    for (int i = 0; i < n; i++) {
+                        double x = vectors[i].getLevel(protein);
+                        column[i] = x;
+                        min = Math.min(min, x);
+                        max = Math.max(max, x);
+                    }
+                    if (Double.isNaN(min)) {
+                        // Math.min and max return NaN if either side is, so look again without the NaNs
+                        min = Double.POSITIVE_INFINITY;
+                        max = Double.NEGATIVE_INFINITY;
+                        for (int i = 0; i < n; i++) {
+                            if (!Double.isNaN(column[i])) {
+                                min = Math.min(min, column[i]);
+                                max = Math.max(max, column[i]);
+                            }
+                        }
+                    }
+                    bits.reset();
+                    encode(column, n, bits);
+                    stored = deflate(deflater, bits.bytes, bits.size);
+                    entry.putLong(position).putInt(stored.length).putInt(bits.size).putDouble(min).putDouble(max);
+                    position += write(out, position, stored, stored.length);
+                }
+                entry.flip();
+                entries[block] = entry;
+            }
+            // the footer lists the blocks column by column, while they are written row block by row block
+            for (int protein = 0; protein < proteinCount; protein++) {
+                for (int block = 0; block < blocks; block++) {
+                    ByteBuffer entry = entries[block];
+                    entry.limit((protein + 1) * ENTRY_BYTES).position(protein * ENTRY_BYTES);
+                    footer.put(entry);
+                }
+            }
+            long footerOffset = position;
+            position += write(out, position, footer.array(), footer.position());
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC).putInt(VERSION).putInt(proteinCount).putInt(rows).putInt(blockRows).putInt(0)
+                    .putLong(footerOffset);
+            write(out, 0, header.array(), HEADER_BYTES);
+            out.force(true);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getProteinCount() {
+        return proteinCount;
+    }
+
+    public int getBlockRows() {
+        return blockRows;
+    }
+
+    public String getId(int row) {
+        return ids[row];
+    }
+
+    public String getResponse(int row) {
+        return responses[row];
+    }
+
+    public String getPrediction(int row) {
+        return predictions[row];
+    }
+
+    /**
+     * @return number of blocks read and decoded since the archive was opened
+     */
+    public long getBlocksDecoded() {
+        return blocksDecoded;
+    }
+
+    /**
+     * Reads every level of a protein
+     *
+     * @param protein 0-based index of the protein
+     * @return the protein's level in each row
+     * @throws IOException if the archive cannot be read
+     */
+    public double[] readColumn(int protein) throws IOException {
+        double[] column = new double[rowCount];
+        for (int block = 0; block < blockCount; block++) {
+            readBlock(protein, block, column, block * blockRows);
+        }
+        return column;
+    }
+
+    /**
+     * Finds the rows whose level of a protein is within a range, reading only the blocks whose lowest
+     * and highest levels overlap it
+     *
+     * @param protein 0-based index of the protein
+     * @param low     lowest level matched
+     * @param high    highest level matched
+     * @return matching rows in ascending order
+     * @throws IOException if the archive cannot be read
+     */
+    public int[] findRows(int protein, double low, double high) throws IOException {
+        int[] matches = new int[16];
+        int found = 0;
+        double[] levels = new double[Math.min(rowCount, blockRows)];
+        for (int block = 0; block < blockCount; block++) {
+            int entry = entry(protein, block);
+            if (maxs[entry] < low || mins[entry] > high) {
+                continue;
+            }
+            int n = readBlock(protein, block, levels, 0);
+            for (int i = 0; i < n; i++) {
+                if (levels[i] >= low && levels[i] <= high) {
+                    if (found == matches.length) {
+                        matches = Arrays.copyOf(matches, found * 2);
+                    }
+                    matches[found++] = block * blockRows + i;
+                }
+            }
+        }
+        return Arrays.copyOf(matches, found);
+    }
+
+    /**
+     * Reads every patient in the archive
+     *
+     * @return patients in row order
+     * @throws IOException if the archive cannot be read
+     */
+    public List<Patient> readPatients() throws IOException {
+        double[][] levels = new double[rowCount][proteinCount];
+        double[] column = new double[Math.min(rowCount, blockRows)];
+        for (int protein = 0; protein < proteinCount; protein++) {
+            for (int block = 0; block < blockCount; block++) {
+                int n = readBlock(protein, block, column, 0);
+                int first = block * blockRows;
+                for (int i = 0; i < n; i++) {
+                    levels[first + i][protein] = column[i];
+                }
+            }
+        }
+        List<Patient> patients = new ArrayList<>(rowCount);
+        for (int row = 0; row < rowCount; row++) {
+            patients.add(new Patient(ids[row], responses[row], predictions[row], levels[row]));
+        }
+        return patients;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private int entry(int protein, int block) {
+        if (protein < 0 || protein >= proteinCount) {
+            throw new IndexOutOfBoundsException("protein " + protein + " of " + proteinCount);
+        }
+        return protein * blockCount + block;
+    }
+
+    /**
+     * Decodes one block of a column into an array
+     *
+     * @return number of rows in the block
+     */
+    private int readBlock(int protein, int block, double[] into, int at) throws IOException {
+        int entry = entry(protein, block);
+        int n = Math.min(blockRows, rowCount - block * blockRows);
+        byte[] encoded = inflate(read(channel, offsets[entry], lengths[entry]), encodedLengths[entry]);
+        try {
+            decode(new BitReader(encoded), n, into, at);
+        } catch (RuntimeException e) {
+            throw new IOException("block " + block + " of protein " + protein + " is corrupt", e);
+        }
+        blocksDecoded++;
+        return n;
+    }
+
+    /**
+     * Encodes levels as decimals if they all are, otherwise by XOR with the previous level
+     */
+    static void encode(double[] levels, int n, BitWriter out) {
+        int scale = decimalScale(levels, n);
+        if (scale >= 0) {
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            long[] units = new long[n];
+            for (int i = 0; i < n; i++) {
+                units[i] = Math.round(levels[i] * POW10[scale]);
+                min = Math.min(min, units[i]);
+                max = Math.max(max, units[i]);
+            }
+            int width = n == 0 ? 0 : 64 - Long.numberOfLeadingZeros(max - min);
+            out.write(DECIMAL, 8);
+            out.write(scale, 8);
+            out.write(min, 64);
+            out.write(width, 8);
+            for (int i = 0; i < n; i++) {
+                out.write(units[i] - min, width);
+            }
+        } else {
+            out.write(XOR, 8);
+            encodeXor(levels, n, out);
+        }
+        out.flush();
+    }
+
+    /**
+     * Returns the fewest digits after the decimal point that give back every level exactly, or -1 if
+     * some level is not such a decimal
+     */
+    private static int decimalScale(double[] levels, int n) {
+        int scale = 0;
+        for (int i = 0; i < n; i++) {
+            double x = levels[i];
+            while (scale <= MAX_SCALE && !isDecimal(x, scale)) {
+                scale++;
+            }
+            if (scale > MAX_SCALE) {
+                return -1;
+            }
+        }
+        // a level that is a decimal at one scale is at any larger one, but check rather than assume
+        for (int i = 0; i < n; i++) {
+            if (!isDecimal(levels[i], scale)) {
+                return -1;
+            }
+        }
+        return scale;
+    }
+
+    private static boolean isDecimal(double x, int scale) {
+        double scaled = x * POW10[scale];
+        if (!(Math.abs(scaled) < MAX_EXACT)) {
+            return false;
+        }
+        // dividing two exact integers rounds correctly, so this is the double the decimal text parses to
+        long units = Math.round(scaled);
+        return Double.doubleToRawLongBits(units / POW10[scale]) == Double.doubleToRawLongBits(x);
+    }
+
+    private static void encodeXor(double[] levels, int n, BitWriter out) {
+        if (n == 0) {
+            return;
+        }
+        long previous = Double.doubleToRawLongBits(levels[0]);
+        out.write(previous, 64);
+        int leading = -1;
+        int trailing = 0;
+        for (int i = 1; i < n; i++) {
+            long bits = Double.doubleToRawLongBits(levels[i]);
+            long xor = bits ^ previous;
+            previous = bits;
+            if (xor == 0) {
+                out.write(0, 1);
+                continue;
+            }
+            out.write(1, 1);
+            int lz = Math.min(31, Long.numberOfLeadingZeros(xor));
+            int tz = Long.numberOfTrailingZeros(xor);
+            if (leading >= 0 && lz >= leading && tz >= trailing) {
+                // the differing bits fit in the previous window
+                out.write(0, 1);
+                out.write(xor >>> trailing, 64 - leading - trailing);
+            } else {
+                int length = 64 - lz - tz;
+                out.write(1, 1);
+                out.write(lz, 5);
+                out.write(length - 1, 6);
+                out.write(xor >>> tz, length);
+                leading = lz;
+                trailing = tz;
+            }
+        }
+    }
+
+    static void decode(BitReader in, int n, double[] into, int at) {
+        int encoding = (int) in.read(8);
+        if (encoding == DECIMAL) {
+            double pow = POW10[(int) in.read(8)];
+            long min = in.read(64);
+            int width = (int) in.read(8);
+            for (int i = 0; i < n; i++) {
+                into[at + i] = (min + in.read(width)) / pow;
+            }
+        } else if (encoding == XOR) {
+            decodeXor(in, n, into, at);
+        } else {
+            throw new IllegalStateException("unknown block encoding " + encoding);
+        }
+    }
+
+    private static void decodeXor(BitReader in, int n, double[] into, int at) {
+        if (n == 0) {
+            return;
+        }
+        long previous = in.read(64);
+        into[at] = Double.longBitsToDouble(previous);
+        int leading = 0;
+        int trailing = 0;
+        for (int i = 1; i < n; i++) {
+            if (in.read(1) != 0) {
+                if (in.read(1) != 0) {
+                    leading = (int) in.read(5);
+                    int length = (int) in.read(6) + 1;
+                    trailing = 64 - leading - length;
+                }
+                previous ^= in.read(64 - leading - trailing) << trailing;
+            }
+            into[at + i] = Double.longBitsToDouble(previous);
+        }
+    }
+
+    /**
+     * @return the bytes deflated, or the bytes themselves if deflating does not make them smaller
+     */
+    private static byte[] deflate(Deflater deflater, byte[] bytes, int length) {
+        deflater.reset();
+        deflater.setInput(bytes, 0, length);
+        deflater.finish();
+        byte[] out = new byte[length];
+        int size = 0;
+        while (!deflater.finished() && size < length) {
+            size += deflater.deflate(out, size, length - size);
+        }
+        return deflater.finished() && size < length ? Arrays.copyOf(out, size) : Arrays.copyOf(bytes, length);
+    }
+
+    /**
+     * Reverses {@link #deflate(Deflater, byte[], int)}: stored bytes as long as the encoded length
+     * were not deflated
+     */
+    private static byte[] inflate(ByteBuffer stored, int encodedLength) throws IOException {
+        byte[] bytes = new byte[stored.remaining()];
+        stored.get(bytes);
+        if (bytes.length == encodedLength) {
+            return bytes;
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes);
+            byte[] out = new byte[encodedLength];
+            int size = 0;
+            while (size < encodedLength && !inflater.finished()) {
+                int n = inflater.inflate(out, size, encodedLength - size);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("archive block is truncated");
+                }
+                size += n;
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException("archive block is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, long length) throws IOException {
+        if (length > Integer.MAX_VALUE || position + length > channel.size()) {
+            throw new IOException("archive is truncated");
+        }
+        ByteBuffer buf = ByteBuffer.allocate((int) length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new IOException("archive is truncated");
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static int write(FileChannel out, long position, byte[] bytes, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(bytes, 0, length);
+        while (buf.hasRemaining()) {
+            out.write(buf, position + buf.position());
+        }
+        return length;
+    }
+
+    private static boolean hasMagic(ByteBuffer header) {
+        if (header.limit() < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header.get(i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Appends values of up to 64 bits, most significant bit first
+     */
+    static final class BitWriter {
+        byte[] bytes = new byte[1024];
+        int size;
+        // the low bits hold at most 7 bits not yet written plus the value being added
+        private long pending;
+        private int pendingBits;
+
+        void write(long value, int bits) {
+            if (bits > 32) {
+                write(value >>> 32, bits - 32);
+                value &= 0xFFFFFFFFL;
+                bits = 32;
+            }
+            pending = (pending << bits) | (value & ((1L << bits) - 1));
+            pendingBits += bits;
+            while (pendingBits >= 8) {
+                pendingBits -= 8;
+                if (size == bytes.length) {
+                    bytes = Arrays.copyOf(bytes, size * 2);
+                }
+                bytes[size++] = (byte) (pending >>> pendingBits);
+            }
+        }
+
+        /**
+         * Pads the last byte with zeros
+         */
+        void flush() {
+            if (pendingBits > 0) {
+                write(0, 8 - pendingBits);
+            }
+        }
+
+        void reset() {
+            size = 0;
+            pending = 0;
+            pendingBits = 0;
+        }
+    }
+
+    /**
+     * Reads values written by a {@link BitWriter}
+     */
+    static final class BitReader {
+        private final byte[] bytes;
+        private int position;
+        private long pending;
+        private int pendingBits;
+
+        BitReader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        long read(int bits) {
+            if (bits > 32) {
+                long high = read(bits - 32);
+                return (high << 32) | read(32);
+            }
+            while (pendingBits < bits) {
+                pending = (pending << 8) | (bytes[position++] & 0xFF);
+                pendingBits += 8;
+            }
+            pendingBits -= bits;
+            return (pending >>> pendingBits) & ((1L << bits) - 1);
+        }
+    }
+}
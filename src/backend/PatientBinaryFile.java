@@ -0,0 +1,450 @@
+package backend;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Fixed-width binary patient collection file, opened through a memory map.
+ * <p>
+ * The file starts with a 32 byte header:
+ * <ul><li>magic "PCMB"</li>
+ * <li>format version (int)</li>
+ * <li>proteins per patient (int)</li>
+ * <li>number of patient rows (int)</li>
+ * <li>16 reserved bytes</li></ul>
+ * followed by one fixed-width row per patient:
+ * <ul><li>offset of the row's text in the text section (long)</li>
+ * <li>protein levels, packed little-endian doubles</li></ul>
+ * and then the text section, holding for each row its id, response and prediction, each as a
+ * length (int) followed by that many bytes of UTF-8. Text of any length fits, while the rows keep a
+ * fixed width. Version 1 files, whose rows start with the id in 16 bytes and the labels in 8 bytes
+ * each, padded with zeros, can still be read.
+ * <p>
+ * All values are little-endian. Doubles are written bit for bit, so converting to and from the
+ * collection csv format is lossless. The operating system pages rows in as they are read. A
+ * {@link PatientCollection} copies every row to the heap when it reads the file, unless it was opened
+ * lazily with {@link PatientCollection#PatientCollection(String, int)}.
+ *
+ * @author Matt Ellis
+ */
+public final class PatientBinaryFile implements Closeable {
+
+    public static final String EXTENSION = ".pcb";
+    public static final int VERSION = 2;
+    static final int HEADER_BYTES = 32;
+    private static final byte[] MAGIC = {'P', 'C', 'M', 'B'};
+    private static final int ROW_HEADER_BYTES = Long.BYTES;
+    // widths of the text of version 1 rows
+    private static final int V1_ID_BYTES = 16;
+    private static final int V1_LABEL_BYTES = 8;
+    private static final int V1_ROW_HEADER_BYTES = V1_ID_BYTES + 2 * V1_LABEL_BYTES;
+
+    private final FileChannel channel;
+    private final int version;
+    private final int proteinCount;
+    private final int rowCount;
+    private final int rowHeaderBytes;
+    private final int rowBytes;
+    private final int rowsPerSegment;
+    private final MappedByteBuffer[] segments;
+    // ids and labels of version 2 files, null for version 1
+    private final MappedByteBuffer text;
+
+    private PatientBinaryFile(FileChannel channel) throws IOException {
+        this.channel = channel;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+            // read until the header is full or the file ends
+        }
+        header.flip();
+        if (!hasMagic(header)) {
+            throw new IOException("not a patient collection binary file");
+        }
+        version = header.getInt(4);
+        if (version != VERSION && version != 1) {
+            throw new IOException("unsupported binary file version " + version);
+        }
+        proteinCount = header.getInt(8);
+        rowCount = header.getInt(12);
+        rowHeaderBytes = version == 1 ? V1_ROW_HEADER_BYTES : ROW_HEADER_BYTES;
+        rowBytes = rowHeaderBytes + proteinCount * Double.BYTES;
+        long rowsEnd = HEADER_BYTES + (long) rowCount * rowBytes;
+        if (channel.size() < rowsEnd) {
+            throw new IOException("binary file is truncated");
+        }
+        if (version == 1) {
+            text = null;
+        } else if (channel.size() - rowsEnd > Integer.MAX_VALUE) {
+            throw new IOException("text section is larger than 2 GB");
+        } else {
+            text = channel.map(FileChannel.MapMode.READ_ONLY, rowsEnd, channel.size() - rowsEnd);
+            text.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        // a single mapping is limited to 2 GB, so large files are mapped in whole-row segments
+        rowsPerSegment = Math.max(1, Integer.MAX_VALUE / rowBytes);
+        segments = new MappedByteBuffer[(rowCount + rowsPerSegment - 1) / rowsPerSegment];
+        for (int i = 0; i < segments.length; i++) {
+            int rows = Math.min(rowsPerSegment, rowCount - i * rowsPerSegment);
+            long offset = HEADER_BYTES + (long) i * rowsPerSegment * rowBytes;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, (long) rows * rowBytes);
+            segments[i].order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /**
+     * Opens a binary collection file for reading
+     *
+     * @param fileName binary file
+     * @return the opened file
+     * @throws IOException if the file cannot be read or is not a binary collection file
+     */
+    public static PatientBinaryFile open(String fileName) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        try {
+            return new PatientBinaryFile(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks whether a file starts with the binary collection file magic
+     *
+     * @param fileName file to check
+     * @return true if the file is a binary collection file
+     */
+    public static boolean isBinaryFile(String fileName) {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(MAGIC.length);
+            channel.read(header, 0);
+            header.flip();
+            return hasMagic(header);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes patients to a binary collection file, replacing any existing file.
+     * <p>
+     * The rows are written to a temporary file that is renamed over the target once complete, so
+     * the previous file survives a failed write, and collections that still map it keep reading it.
+     *
+     * @param fileName     binary file
+     * @param proteinCount proteins per patient
+     * @param patients     patients to write, in row order
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(String fileName, int proteinCount, Iterable<Patient> patients) throws IOException {
+        Path path = Paths.get(fileName).toAbsolutePath();
+        Path temp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            writeRows(temp, proteinCount, patients);
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    private static void writeRows(Path path, int proteinCount, Iterable<Patient> patients) throws IOException {
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeRows(patients.iterator(), -1, proteinCount, null, out);
+            out.force(true);
+        }
+    }
+
+    /**
+     * Streams patients to a channel in the binary format through one fixed-size buffer.
+     * <p>
+     * The header holds the number of rows, so when that is not known in advance the channel must be
+     * seekable, and the header is filled in once the rows are written. The ids and labels are
+     * gathered in memory and written after the rows. When every protein is written, the levels of a
+     * lazily loaded patient go to the channel straight from the mapping of its file, in one gathering
+     * write with the row's text offset.
+     *
+     * @param patients     patients to write, in row order
+     * @param rows         number of patients, or -1 if not known
+     * @param proteinCount proteins per patient, or the number of selected proteins
+     * @param indexes      0-based indexes of the proteins to write, or null for all
+     * @param out          blocking channel, positioned where the file starts
+     * @return number of bytes written
+     * @throws IOException if the channel cannot be written or the patients are not the given number
+     */
+    static long writeRows(Iterator<Patient> patients, long rows, int proteinCount, int[] indexes,
+                          WritableByteChannel out) throws IOException {
+        if (rows < 0 && !(out instanceof SeekableByteChannel)) {
+            throw new IllegalArgumentException("writing an unknown number of rows needs a seekable channel");
+        }
+        int rowBytes = ROW_HEADER_BYTES + proteinCount * Double.BYTES;
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        ByteBuffer buf = ByteBuffer.allocateDirect(Math.max(rowBytes, 1 << 20)).order(ByteOrder.LITTLE_ENDIAN);
+        GatheringByteChannel gathering = out instanceof GatheringByteChannel ? (GatheringByteChannel) out : null;
+        ByteBuffer[] gather = new ByteBuffer[2];
+        long start = rows < 0 ? ((SeekableByteChannel) out).position() : 0;
+        // rewritten at the end when the number of rows is not known yet
+        putHeader(buf, proteinCount, (int) Math.max(rows, 0));
+        long written = 0;
+        int count = 0;
+        while (patients.hasNext()) {
+            Patient p = patients.next();
+            ByteBuffer stored = indexes == null ? p.storedLevels() : null;
+            if (indexes == null) {
+                int size = stored != null ? stored.remaining() / Double.BYTES : p.getProteins().size();
+                if (size != proteinCount) {
+                    throw new IllegalArgumentException("patient " + p.getId() + " has " + size
+                            + " proteins, expected " + proteinCount);
+                }
+            }
+            if (buf.remaining() < rowBytes) {
+                written += drain(buf, out);
+            }
+            buf.putLong(text.size());
+            putText(text, p.getId());
+            putText(text, p.getResponse());
+            putText(text, p.getPredict());
+            if (stored != null && gathering != null) {
+                buf.flip();
+                gather[0] = buf;
+                gather[1] = stored;
+                while (stored.hasRemaining()) {
+                    written += gathering.write(gather);
+                }
+                buf.clear();
+            } else if (stored != null) {
+                buf.put(stored);
+            } else if (indexes == null) {
+                ProteinVector proteins = p.getProteins();
+                for (int i = 0; i < proteinCount; i++) {
+                    buf.putDouble(proteins.getLevel(i));
+                }
+            } else {
+                for (int index : indexes) {
+                    buf.putDouble(p.getLevel(index));
+                }
+            }
+            count++;
+        }
+        written += drain(buf, out);
+        ByteBuffer texts = ByteBuffer.wrap(text.toByteArray());
+        while (texts.hasRemaining()) {
+            written += out.write(texts);
+        }
+
+        if (rows < 0) {
+            SeekableByteChannel seekable = (SeekableByteChannel) out;
+            long end = seekable.position();
+            putHeader(buf, proteinCount, count);
+            seekable.position(start);
+            drain(buf, seekable);
+            seekable.position(end);
+        } else if (count != rows) {
+            throw new IOException("expected " + rows + " rows, got " + count);
+        }
+        return written;
+    }
+
+    private static void putHeader(ByteBuffer buf, int proteinCount, int rows) {
+        buf.put(MAGIC).putInt(VERSION).putInt(proteinCount).putInt(rows);
+        for (int i = MAGIC.length + 3 * Integer.BYTES; i < HEADER_BYTES; i++) {
+            buf.put((byte) 0);
+        }
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getProteinCount() {
+        return proteinCount;
+    }
+
+    public String getId(int row) {
+        return version == 1 ? getText(row, 0, V1_ID_BYTES) : getText(row, 0);
+    }
+
+    public String getResponse(int row) {
+        return version == 1 ? getText(row, V1_ID_BYTES, V1_LABEL_BYTES) : getText(row, 1);
+    }
+
+    public String getPrediction(int row) {
+        return version == 1 ? getText(row, V1_ID_BYTES + V1_LABEL_BYTES, V1_LABEL_BYTES) : getText(row, 2);
+    }
+
+    /**
+     * Returns a single protein level of a patient row
+     *
+     * @param row     patient row
+     * @param protein 0-based index of the protein
+     * @return the protein's expression level
+     */
+    public double getLevel(int row, int protein) {
+        if (protein < 0 || protein >= proteinCount) {
+            throw new IndexOutOfBoundsException("protein " + protein);
+        }
+        return segment(row).getDouble(rowOffset(row) + rowHeaderBytes + protein * Double.BYTES);
+    }
+
+    /**
+     * Copies all protein levels of a patient row into a new array
+     *
+     * @param row patient row
+     * @return protein levels, index 0 holding protein 1
+     */
+    public double[] readProteins(int row) {
+        double[] levels = new double[proteinCount];
+        ByteBuffer view = segment(row).duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        view.position(rowOffset(row) + rowHeaderBytes);
+        view.asDoubleBuffer().get(levels);
+        return levels;
+    }
+
+    /**
+     * Builds the patient stored in a row
+     *
+     * @param row patient row
+     * @return the patient
+     */
+    public Patient readPatient(int row) {
+        return new Patient(getId(row), getResponse(row), getPrediction(row), readProteins(row));
+    }
+
+    /**
+     * Returns the protein levels of a patient row in place, without copying them
+     *
+     * @param row patient row
+     * @return read-only little-endian view of the row's levels
+     */
+    ByteBuffer levelBytes(int row) {
+        return segment(row).slice(rowOffset(row) + rowHeaderBytes, proteinCount * Double.BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private MappedByteBuffer segment(int row) {
+        if (row < 0 || row >= rowCount) {
+            throw new IndexOutOfBoundsException("row " + row + ", rows " + rowCount);
+        }
+        return segments[row / rowsPerSegment];
+    }
+
+    private int rowOffset(int row) {
+        return (row % rowsPerSegment) * rowBytes;
+    }
+
+    private String getText(int row, int offset, int width) {
+        MappedByteBuffer segment = segment(row);
+        int start = rowOffset(row) + offset;
+        byte[] bytes = new byte[width];
+        int len = 0;
+        while (len < width && (bytes[len] = segment.get(start + len)) != 0) {
+            len++;
+        }
+        return new String(bytes, 0, len, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a text field of a version 2 row
+     *
+     * @param field 0 for the id, 1 for the response, 2 for the prediction
+     */
+    private String getText(int row, int field) {
+        int start = (int) segment(row).getLong(rowOffset(row));
+        for (int i = 0; i < field; i++) {
+            start += Integer.BYTES + text.getInt(start);
+        }
+        byte[] bytes = new byte[text.getInt(start)];
+        text.get(start + Integer.BYTES, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void putText(ByteArrayOutputStream text, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        for (int shift = 0; shift < Integer.SIZE; shift += Byte.SIZE) {
+            text.write(bytes.length >>> shift);
+        }
+        text.write(bytes, 0, bytes.length);
+    }
+
+    private static long drain(ByteBuffer buf, WritableByteChannel out) throws IOException {
+        buf.flip();
+        long n = buf.remaining();
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+        buf.clear();
+        return n;
+    }
+
+    private static boolean hasMagic(ByteBuffer header) {
+        if (header.remaining() < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header.get(i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Converts between the collection csv format and the binary format. newToBinary converts a file
+     * of new patients, with lines of id,protein1,...,protein4776, which are predicted as they are read.
+     * <p>
+     * Usage: java backend.PatientBinaryFile toBinary|newToBinary|toCsv inputFile outputFile
+     *
+     * @param args conversion, input file and output file
+     * @throws IOException if the binary file cannot be written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3 || !(args[0].equals("toBinary") || args[0].equals("newToBinary")
+                || args[0].equals("toCsv"))) {
+            System.err.println("usage: java backend.PatientBinaryFile toBinary|newToBinary|toCsv inputFile outputFile");
+            return;
+        }
+        if (args[0].equals("newToBinary")) {
+            Map<String, Patient> patients = new LinkedHashMap<>();
+            String errors = PatientCsvLoader.addNewPatients(args[1], patients::containsKey,
+                    p -> patients.putIfAbsent(p.getId(), p) == null);
+            System.err.print(errors);
+            write(args[2], PatientCsvLoader.NO_PROTEINS, patients.values());
+            return;
+        }
+        PatientCollection c = new PatientCollection(args[1]);
+        if (args[0].equals("toBinary")) {
+            c.writeBinaryFile(args[2]);
+        } else {
+            c.writeFile(args[2]);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package backend;
+
+/**
+ * One change made to a patient collection, as delivered by a {@link PatientChangeFeed}. Immutable.
+ *
+ * @author Matt Ellis
+ */
+public final class PatientChange {
+
+    /**
+     * What happened to the patient
+     */
+    public enum Type {
+        ADDED, REMOVED, RESPONSE_UPDATED, PREDICTION_UPDATED
+    }
+
+    private final Type type;
+    private final String id;
+    private final String value;
+
+    PatientChange(Type type, String id, String value) {
+        this.type = type;
+        this.id = id;
+        this.value = value;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the new response or prediction, or null for an added or removed patient
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * A string representation of a change
+     *
+     * @return string representation
+     */
+    @Override
+    public String toString() {
+        return type + " " + id + (value != null ? " " + value : "");
+    }
+}
@@ -0,0 +1,137 @@
+package backend;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers the changes made to a patient collection to one consumer, in batches, on an executor of
+ * the consumer's choosing. See {@link PatientCollectionADT#subscribe(int, Executor, Handler)}.
+ * <p>
+ * A change is queued by the thread that made it, which never waits: the queue is bounded, and a
+ * consumer that falls so far behind that the queue fills up loses changes instead of slowing the
+ * collection down. The thread that finds the queue full only marks the feed for a resync; the
+ * delivering thread then drops the queued changes and hands over an empty batch marked for a resync,
+ * telling the consumer to read the collection again. Only the delivering thread empties the queue,
+ * and queuing starts afresh just before it does, so a change made while the consumer reads the
+ * collection again arrives in a later batch.
+ * <p>
+ * Only one batch is handled at a time, so batches arrive in the order the changes were made even on
+ * an executor with many threads. Changes queued while a batch is being handled go into the next one.
+ *
+ * @author Matt Ellis
+ */
+public final class PatientChangeFeed implements AutoCloseable {
+
+    /**
+     * Receives batches of changes
+     */
+    public interface Handler {
+
+        /**
+         * @param changes changes in the order they were made
+         * @param resync  true if changes were lost because the queue was full; the batch is then
+         *                empty and the collection must be read again
+         */
+        void changesMade(List<PatientChange> changes, boolean resync);
+    }
+
+    private final ArrayBlockingQueue<PatientChange> queue;
+    private final Executor executor;
+    private final Handler handler;
+    private final PatientChangeSupport support;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicBoolean overflowed = new AtomicBoolean();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed;
+
+    PatientChangeFeed(int capacity, Executor executor, Handler handler, PatientChangeSupport support) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.executor = executor;
+        this.handler = handler;
+        this.support = support;
+    }
+
+    /**
+     * Queues a change without waiting, dropping it and asking for a resync if the queue is full
+     */
+    void publish(PatientChange change) {
+        if (closed) {
+            return;
+        }
+        if (overflowed.get() || !queue.offer(change)) {
+            overflowed.set(true);
+            dropped.incrementAndGet();
+        }
+        schedule();
+    }
+
+    /**
+     * Asks the consumer to read the collection again, as when the queue overflows, e.g. because
+     * changes this feed forwards were lost on their way to it
+     */
+    void resync() {
+        if (closed) {
+            return;
+        }
+        overflowed.set(true);
+        schedule();
+    }
+
+    /**
+     * @return changes lost to a full queue since the feed was opened
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Stops delivering changes. A batch being handled is finished.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        support.remove(this);
+        queue.clear();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this::deliver);
+        }
+    }
+
+    private void deliver() {
+        try {
+            if (closed) {
+                return;
+            }
+            List<PatientChange> batch = new ArrayList<>();
+            boolean resync = overflowed.get();
+            if (resync) {
+                // queuing restarts before the consumer reads the collection again, so no later change is
+                // lost; changes queued before the queue is emptied are already in what it reads
+                overflowed.set(false);
+                dropped.addAndGet(queue.drainTo(batch));
+                batch.clear();
+            } else {
+                queue.drainTo(batch);
+            }
+            if (resync || !batch.isEmpty()) {
+                handler.changesMade(Collections.unmodifiableList(batch), resync);
+            }
+        } finally {
+            scheduled.set(false);
+            if (!closed && (overflowed.get() || !queue.isEmpty())) {
+                schedule();
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package backend;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of changes made to a patient collection since its file was last rewritten.
+ * <p>
+ * Every add, remove, response update and prediction update is appended as one record as it happens,
+ * so a save only has to force the log to disk instead of rewriting the whole collection, and a
+ * crash loses nothing that reached the log. When the collection file is rewritten the log is
+ * truncated. On startup the log is replayed on top of the collection file.
+ * <p>
+ * Each record is: payload length (int), record type (byte), payload, CRC32 of type and payload (int).
+ * A record cut short by a crash fails its length or checksum test; replay stops there and the torn
+ * tail is cut off. Replaying a record twice has the same effect as replaying it once, so a crash
+ * between rewriting the collection file and truncating the log is harmless.
+ *
+ * @author Matt Ellis
+ */
+final class PatientChangeLog implements Closeable {
+
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    private static final byte RESPONSE = 3;
+    private static final byte PREDICTION = 4;
+    private static final int MAX_RECORD_BYTES = 1 << 24;
+
+    private final Path path;
+    private final FileChannel channel;
+    // records appended since the log was opened
+    private long records;
+
+    /**
+     * Receives replayed changes
+     */
+    interface Handler {
+        void add(Patient p);
+
+        void remove(String id);
+
+        void response(String id, String response);
+
+        void prediction(String id, String prediction);
+    }
+
+    private PatientChangeLog(Path path, FileChannel channel) {
+        this.path = path;
+        this.channel = channel;
+    }
+
+    /**
+     * Replays an existing log, if any, and opens it for appending
+     *
+     * @param fileName log file
+     * @param handler  receives the replayed changes in the order they were made
+     * @return the open log
+     * @throws IOException if the log cannot be read or opened
+     */
+    static PatientChangeLog open(String fileName, Handler handler) throws IOException {
+        Path path = Paths.get(fileName);
+        long valid = Files.exists(path) ? replay(path, handler) : 0;
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (channel.size() > valid) {
+            System.err.println("discarding " + (channel.size() - valid) + " bytes of incomplete changes in " + fileName);
+            channel.truncate(valid);
+        }
+        channel.position(valid);
+        return new PatientChangeLog(path, channel);
+    }
+
+    void logAdd(Patient p) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + p.getProteins().size() * Double.BYTES);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(p.getId());
+        out.writeUTF(p.getResponse());
+        out.writeUTF(p.getPredict());
+        ProteinVector proteins = p.getProteins();
+        out.writeInt(proteins.size());
+        for (int i = 0; i < proteins.size(); i++) {
+            out.writeDouble(proteins.getLevel(i));
+        }
+        append(ADD, bytes.toByteArray());
+    }
+
+    void logRemove(String id) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(id);
+        append(REMOVE, bytes.toByteArray());
+    }
+
+    void logResponse(String id, String response) throws IOException {
+        append(RESPONSE, pair(id, response));
+    }
+
+    void logPrediction(String id, String prediction) throws IOException {
+        append(PREDICTION, pair(id, prediction));
+    }
+
+    /**
+     * Forces all logged changes to disk
+     *
+     * @throws IOException if the log cannot be written
+     */
+    void sync() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Returns the number of records appended since the log was opened, to tell later whether
+     * anything was logged in between
+     *
+     * @return records appended so far
+     */
+    synchronized long mark() {
+        return records;
+    }
+
+    /**
+     * Discards all logged changes once they are part of the collection file, unless more changes were
+     * logged after the patients written to the file were copied. Those are then kept along with the
+     * older ones, which is harmless as replaying a change twice has the same effect as once.
+     *
+     * @param mark value of {@link #mark()} when the patients were copied
+     * @return false if the log was kept
+     * @throws IOException if the log cannot be written
+     */
+    synchronized boolean truncate(long mark) throws IOException {
+        if (records != mark) {
+            return false;
+        }
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(true);
+        return true;
+    }
+
+    /**
+     * Returns the size of the log
+     *
+     * @return bytes of logged changes
+     * @throws IOException if the size cannot be read
+     */
+    long size() throws IOException {
+        return channel.size();
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private synchronized void append(byte type, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + 1 + payload.length + Integer.BYTES);
+        record.putInt(payload.length).put(type).put(payload).putInt((int) crc.getValue());
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        records++;
+    }
+
+    private static byte[] pair(String id, String value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(id);
+        out.writeUTF(value);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Replays complete records of a log
+     *
+     * @return length of the log up to the end of the last complete record
+     */
+    private static long replay(Path path, Handler handler) throws IOException {
+        long valid = 0;
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ);
+             InputStream stream = new BufferedInputStream(Channels.newInputStream(ch), 1 << 16)) {
+            DataInputStream in = new DataInputStream(stream);
+            while (true) {
+                byte[] payload;
+                byte type;
+                try {
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_RECORD_BYTES) {
+                        break;
+                    }
+                    type = in.readByte();
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    CRC32 crc = new CRC32();
+                    crc.update(type);
+                    crc.update(payload);
+                    if (in.readInt() != (int) crc.getValue()) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                apply(type, payload, handler);
+                valid += Integer.BYTES + 1 + payload.length + Integer.BYTES;
+            }
+        }
+        return valid;
+    }
+
+    private static void apply(byte type, byte[] payload, Handler handler) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        String id = in.readUTF();
+        switch (type) {
+            case ADD:
+                String response = in.readUTF();
+                String prediction = in.readUTF();
+                double[] proteins = new double[in.readInt()];
+                for (int i = 0; i < proteins.length; i++) {
+                    proteins[i] = in.readDouble();
+                }
+                handler.add(new Patient(id, response, prediction, proteins));
+                break;
+            case REMOVE:
+                handler.remove(id);
+                break;
+            case RESPONSE:
+                handler.response(id, in.readUTF());
+                break;
+            case PREDICTION:
+                handler.prediction(id, in.readUTF());
+                break;
+            default:
+                throw new IOException("unknown change log record type " + type);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package backend;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * The change feeds open on one patient collection. The collections call {@link #fire} after each
+ * change; nothing is allocated while no feed is open.
+ *
+ * @author Matt Ellis
+ */
+final class PatientChangeSupport {
+    private final CopyOnWriteArrayList<PatientChangeFeed> feeds = new CopyOnWriteArrayList<>();
+
+    PatientChangeFeed subscribe(int capacity, Executor executor, PatientChangeFeed.Handler handler) {
+        PatientChangeFeed feed = new PatientChangeFeed(capacity, executor, handler, this);
+        feeds.add(feed);
+        return feed;
+    }
+
+    void remove(PatientChangeFeed feed) {
+        feeds.remove(feed);
+    }
+
+    /**
+     * Queues a change on every open feed
+     *
+     * @param type  what happened
+     * @param id    the patient's id
+     * @param value the new response or prediction, or null
+     */
+    void fire(PatientChange.Type type, String id, String value) {
+        if (feeds.isEmpty()) {
+            return;
+        }
+        PatientChange change = new PatientChange(type, id, value);
+        for (PatientChangeFeed feed : feeds) {
+            feed.publish(change);
+        }
+    }
+
+    /**
+     * Asks every open feed's consumer to read the collection again
+     */
+    void resync() {
+        for (PatientChangeFeed feed : feeds) {
+            feed.resync();
+        }
+    }
+}
@@ -1,16 +1,17 @@
 package backend;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * This class creates and maintains a collection of patients.
@@ -23,6 +24,27 @@ import java.util.stream.Collectors;
  * id,protein1,protein2, ... ,protein4776
  * <p>
  * New patient's predictions are calculated when the patient is added to the collection
+ * <p>
+ * A collection can also be read from and written to the binary format described in
+ * {@link PatientBinaryFile}, which is opened through a memory map instead of being parsed. The
+ * constructors taking a file name and options still copy every row's levels from the mapping to the
+ * heap as the file is read. Cold cohorts can be kept in the smaller {@link PatientArchive} format,
+ * which is read in full. Only {@link #PatientCollection(String, int)} opens a binary file lazily,
+ * keeping only each patient's id, labels and predictor proteins in memory and fetching the rest by
+ * row into a bounded {@link ProteinCache} when used.
+ * <p>
+ * The collection built from "FILENAME" is journaled: each change is appended to a change log next to
+ * the file as it happens, saving forces the log to disk and only rewrites the file, in its own format,
+ * once the log has grown large, and the log is replayed when the collection is next built. See
+ * {@link PatientChangeLog}.
+ * <p>
+ * A {@link PatientCollectionListener} is told the row of each patient added, removed or changed,
+ * rows being positions in ascending id order as returned by {@link #getId(int)}.
+ * <p>
+ * Protein levels can be kept at a lower {@link ProteinPrecision} to save memory, chosen when the
+ * collection is built. Patients are converted as they are added, after their response is predicted.
+ * <p>
+ * Imports, loads, saves and lookups by id are counted and timed in {@link CollectionMetrics}.
  *
  * @author Matt Ellis
  */
@@ -31,26 +53,141 @@ public class PatientCollection implements PatientCollectionADT {
 
     private static final String DELIMITER = ",";
     private static final int NO_PROTEINS = 4776;
-    private static final int NEW_PATIENT_NO_DATA_PTS = 4777;
     private static final String FILENAME = "./src/backend/PatientCollection.csv";
+    private static final String LOG_SUFFIX = ".log";
+    // the log is folded into the collection file once it reaches this share of the file's size
+    private static final double COMPACT_RATIO = 0.25;
+    private static final long MIN_COMPACT_BYTES = 1L << 20;
     private final HashMap<String, Patient> patientMap;
+    private final SortedIdIndex idIndex;
+    private final String baseFile;
+    // a journaled collection maintains its own file rather than FILENAME
+    private final boolean journaled;
+    private final List<PatientCollectionListener> listeners = new ArrayList<>();
+    private final PatientChangeSupport changes = new PatientChangeSupport();
+    private PatientChangeLog changeLog;
+    private ProteinCache proteinCache;
+    private CohortStatistics statistics;
+    // discarded whenever the collection changes
+    private QueryEngine queryEngine;
+    private NearestNeighborIndex neighborIndex;
+    // null when levels are kept as doubles
+    private ProteinEncoder encoder;
 
     /**
-     * Builds a patient collection from a maintained local file
+     * Builds a journaled patient collection from a maintained local file, replaying any changes
+     * logged since the file was last written
      */
     public PatientCollection() {
-        patientMap = new HashMap<String, Patient>();
-        readFile(FILENAME);
+        this(FILENAME, true);
     }
 
     /**
-     * Builds a patient collection from a csv file passed as a parameter
+     * Builds a patient collection from a csv or binary collection file passed as a parameter. Every
+     * patient's levels are read into memory; {@link #PatientCollection(String, int)} leaves those
+     * of a binary file in the file.
      *
-     * @param fn a csv file
+     * @param fn a csv file, a {@link PatientBinaryFile} or a {@link PatientArchive}
      */
     public PatientCollection(String fn) {
+        this(fn, false);
+    }
+
+    /**
+     * Builds a patient collection from a csv or binary collection file, optionally journaling
+     * changes to a change log next to the file
+     *
+     * @param fn        a csv file, a {@link PatientBinaryFile} or a {@link PatientArchive}
+     * @param journaled true to log changes and replay logged changes
+     */
+    public PatientCollection(String fn, boolean journaled) {
+        this(fn, journaled, ProteinPrecision.DOUBLE);
+    }
+
+    /**
+     * Builds a patient collection from a csv or binary collection file, keeping protein levels at
+     * the given precision. The proteins tested by the current {@link Predictor} model are kept
+     * exactly, so predictions do not depend on the precision; saving writes the levels as they are
+     * kept. A model loaded later that tests other proteins cannot predict from the rounded levels:
+     * the collection must then be reopened from its file to rescore it. A collection kept at a lower precision cannot be journaled, nor rewrite the file it
+     * was built from, as that would replace the exact levels in the file with rounded ones.
+     *
+     * @param fn        a csv file, a {@link PatientBinaryFile} or a {@link PatientArchive}
+     * @param journaled true to log changes and replay logged changes
+     * @param precision precision of the protein levels kept in memory
+     * @throws IllegalArgumentException if a collection at a lower precision is to be journaled
+     */
+    public PatientCollection(String fn, boolean journaled, ProteinPrecision precision) {
+        this(fn, journaled, precision, true);
+    }
+
+    /**
+     * @param read false to start empty, for a file that does not exist yet
+     */
+    private PatientCollection(String fn, boolean journaled, ProteinPrecision precision, boolean read) {
+        if (journaled && precision != ProteinPrecision.DOUBLE) {
+            throw new IllegalArgumentException("a collection kept at " + precision + " cannot be journaled");
+        }
+        patientMap = new HashMap<String, Patient>();
+        idIndex = new SortedIdIndex();
+        baseFile = fn;
+        this.journaled = journaled;
+        int[] exactProteins = Predictor.getModel().getFeatures();
+        if (precision == ProteinPrecision.FLOAT32) {
+            encoder = ProteinEncoder.create(precision, NO_PROTEINS, List.of(), exactProteins);
+        }
+        if (read) {
+            readFile(fn);
+        }
+        if (precision == ProteinPrecision.QUANTIZED16) {
+            // quantization takes each protein's range from the patients read
+            encoder = ProteinEncoder.create(precision, NO_PROTEINS, patientMap.values(), exactProteins);
+            for (Patient p : patientMap.values()) {
+                p.encodeProteins(encoder);
+            }
+        }
+        if (journaled) {
+            openChangeLog();
+        }
+    }
+
+    /**
+     * Builds a journaled collection from a collection file, or an empty one if the file does not
+     * exist yet, which the first save that rewrites the file creates. Changes logged next to a
+     * missing file are replayed.
+     *
+     * @param fn a csv file, a {@link PatientBinaryFile} or a {@link PatientArchive}, or a missing file
+     * @return the collection
+     */
+    static PatientCollection openOrCreate(String fn) {
+        return new PatientCollection(fn, true, ProteinPrecision.DOUBLE, new File(fn).exists());
+    }
+
+    /**
+     * Builds a patient collection from a binary collection file, loading each patient's protein
+     * levels from the file only when they are used. A csv file has no fixed rows to load from
+     * and is read in full.
+     *
+     * @param fn             a {@link PatientBinaryFile}
+     * @param cachedPatients number of patients whose protein levels are kept in memory
+     */
+    public PatientCollection(String fn, int cachedPatients) {
         patientMap = new HashMap<String, Patient>();
-        readFile(fn);
+        idIndex = new SortedIdIndex();
+        baseFile = fn;
+        journaled = false;
+        if (PatientBinaryFile.isBinaryFile(fn)) {
+            openLazily(fn, cachedPatients);
+        } else {
+            readFile(fn);
+        }
+    }
+
+    /**
+     * @return precision of the protein levels kept in memory
+     */
+    public ProteinPrecision getProteinPrecision() {
+        return encoder == null ? ProteinPrecision.DOUBLE : encoder.getPrecision();
     }
 
     /**
@@ -61,7 +198,11 @@ public class PatientCollection implements PatientCollectionADT {
      */
     @Override
     public Patient getPatient(String id) {
-        return patientMap.get(id);
+        CollectionMetrics metrics = CollectionMetrics.get();
+        long start = metrics.sampleStart();
+        Patient p = patientMap.get(id);
+        metrics.lookedUp(start);
+        return p;
     }
 
     /**
@@ -72,7 +213,24 @@ public class PatientCollection implements PatientCollectionADT {
      */
     @Override
     public Patient removePatient(String id) {
-        return patientMap.remove(id);
+        Patient removed = patientMap.remove(id);
+        if (removed != null) {
+            int row = idIndex.indexOf(id);
+            idIndex.remove(id);
+            queryEngine = null;
+            if (statistics != null) {
+                statistics.remove(removed);
+            }
+            if (neighborIndex != null) {
+                neighborIndex.remove(id);
+            }
+            logChange(log -> log.logRemove(id));
+            for (PatientCollectionListener listener : listeners) {
+                listener.patientRemoved(id, row);
+            }
+            changes.fire(PatientChange.Type.REMOVED, id, null);
+        }
+        return removed;
     }
 
     /**
@@ -84,32 +242,79 @@ public class PatientCollection implements PatientCollectionADT {
     @Override
     public void setResultForPatient(String id, String result) {
         if (patientMap.containsKey(id)) {
-            getPatient(id).setResponse(result);
+            Patient p = getPatient(id);
+            String oldResult = p.getResponse();
+            p.setResponse(result);
+            queryEngine = null;
+            if (statistics != null) {
+                statistics.responseChanged(p, oldResult);
+            }
+            logChange(log -> log.logResponse(id, result));
+            fireChanged(id);
+            changes.fire(PatientChange.Type.RESPONSE_UPDATED, id, result);
         }
     }
 
     /**
-     * Returns an ArrayList containing all the collection's patient ids
+     * Returns an ArrayList containing all the collection's patient ids in ascending order.
+     * The ids come from an index kept sorted as patients are added and removed.
      *
      * @return list of patient ids
      */
     @Override
     public ArrayList<String> getIds() {
-        ArrayList<Integer> intArray = new ArrayList<>();
+        return idIndex.toList();
+    }
 
-        for (String s : patientMap.keySet()) {
-            intArray.add(Integer.parseInt(s));
-        }
+    /**
+     * Returns the number of patients in the collection
+     *
+     * @return number of patients
+     */
+    public int size() {
+        return idIndex.size();
+    }
 
-        Collections.sort(intArray);
+    /**
+     * Returns the id at a position in ascending id order, the row a table of the collection shows
+     * the patient in, without copying the list of ids
+     *
+     * @param row position between 0 and size() - 1
+     * @return patient's id
+     */
+    public String getId(int row) {
+        return idIndex.get(row);
+    }
 
-        ArrayList<String> strArray = new ArrayList<>();
+    /**
+     * Registers a listener told about every patient added, removed or changed from now on
+     *
+     * @param listener listener to add
+     */
+    public void addPatientCollectionListener(PatientCollectionListener listener) {
+        listeners.add(listener);
+    }
 
-        for (Integer i : intArray) {
-            strArray.add("" + i);
-        }
+    /**
+     * @param listener listener to stop telling about changes
+     */
+    public void removePatientCollectionListener(PatientCollectionListener listener) {
+        listeners.remove(listener);
+    }
 
-        return strArray;
+    /**
+     * Opens a feed of the changes made from now on. Unlike a {@link PatientCollectionListener}, which
+     * is called on the changing thread before the next change, a feed hands changes over in batches
+     * on the consumer's executor and never holds up the collection.
+     *
+     * @param capacity most changes queued for the handler before they are dropped
+     * @param executor runs the handler, e.g. SwingUtilities::invokeLater
+     * @param handler  receives the batches
+     * @return the open feed
+     */
+    @Override
+    public PatientChangeFeed subscribe(int capacity, Executor executor, PatientChangeFeed.Handler handler) {
+        return changes.subscribe(capacity, executor, handler);
     }
 
     /**
@@ -120,54 +325,185 @@ public class PatientCollection implements PatientCollectionADT {
      */
     @Override
     public String addPatientsFromFile(String fileName) {
-        String toReturn = "";
-        int lineCount = 1;
-        BufferedReader br = null;
-        try {
-            br = new BufferedReader(new FileReader(fileName));
-            String line = "";
-
-            // expected line format
-            // id,protein1,protein2, ... ,protein4776
-            while ((line = br.readLine()) != null) {
-                // split line read from file into String[]
-                String[] patientData = line.split(DELIMITER);
-
-                // check for missing data
-                if (patientData.length != NEW_PATIENT_NO_DATA_PTS) {
-                    toReturn += "**Error** - Line " + lineCount
-                            + " - Format Error - line contains incorrect number of data elements.\n";
-                }
+        long start = CollectionMetrics.get().start();
+        String errors = PatientCsvLoader.addNewPatients(fileName, patientMap::containsKey, this::addNewPatient);
+        CollectionMetrics.get().imported(start, new File(fileName).length());
+        return errors;
+    }
 
-                // check if patient id already exists
-                else if (patientMap.containsKey(patientData[0])) {
-                    toReturn += "**Error** - Line " + lineCount + " - Patient id, " + patientData[0]
-                            + ", already exists in record.\n";
-                }
-                // build new patient and add to collection
-                else {
-                    ArrayList<Double> proteinList = new ArrayList<>();
-                    for (int i = 1; i < NO_PROTEINS + 1; i++) {
-                        proteinList.add(Double.parseDouble(patientData[i]));
-                    }
-                    Patient p = new Patient(patientData[0], proteinList);
-                    patientMap.put(patientData[0], p);
-                }
-                lineCount++;
+    /**
+     * Imports patients to a collection from a file, optionally parsing the file in parallel.
+     * <p>
+     * In parallel mode the file is split into newline-aligned chunks that are parsed on the common
+     * ForkJoinPool. Errors and the resulting collection are the same as in sequential mode.
+     *
+     * @param fileName a csv file
+     * @param parallel true to parse the file in parallel
+     * @return if an error occurs, returns the error
+     */
+    public String addPatientsFromFile(String fileName, boolean parallel) {
+        if (!parallel) {
+            return addPatientsFromFile(fileName);
+        }
+        long start = CollectionMetrics.get().start();
+        String errors = PatientCsvLoader.addNewPatientsParallel(fileName, patientMap::containsKey,
+                this::addNewPatient, ForkJoinPool.commonPool());
+        CollectionMetrics.get().imported(start, new File(fileName).length());
+        return errors;
+    }
+
+    /**
+     * Adds patients read by a {@link PatientFileImport}, typically on another thread, skipping ids
+     * already in the collection
+     *
+     * @param batch patients read from consecutive lines of a file
+     * @return errors for the lines of the batch, in the format of {@link #addPatientsFromFile(String)}
+     */
+    public String addPatients(PatientFileImport.Batch batch) {
+        StringBuilder toReturn = new StringBuilder();
+        for (int i = 0; i < batch.size; i++) {
+            Patient p = batch.patients[i];
+            int line = batch.firstLine + i;
+            if (p == null) {
+                toReturn.append(PatientCsvLoader.formatError(line));
+            } else if (!addNewPatient(p)) {
+                toReturn.append(PatientCsvLoader.duplicateError(line, p.getId()));
+            }
+        }
+        return toReturn.toString();
+    }
+
+    /**
+     * Adds a patient unless its id is already taken
+     *
+     * @param p patient to add
+     * @return false if a patient with the same id already exists
+     */
+    boolean addPatient(Patient p) {
+        return addNewPatient(p);
+    }
+
+    /**
+     * Re-runs the predictor for every patient in the collection, e.g. after the model changed.
+     * The proteins tested by the current model are gathered into columns and scored in one batch.
+     *
+     * @throws IllegalStateException if the model tests proteins whose levels are held at a lower
+     *                               precision; reopen the collection from its file to rescore it
+     */
+    public void rescoreAll() {
+        DecisionTreeModel model = Predictor.getModel();
+        if (encoder != null && !encoder.keepsExactly(model.getFeatures())) {
+            throw new IllegalStateException("the model tests proteins held at " + encoder.getPrecision()
+                    + ", reopen " + baseFile + " to rescore it");
+        }
+        int n = patientMap.size();
+        Patient[] patients = patientMap.values().toArray(new Patient[n]);
+        double[][] columns = new double[NO_PROTEINS][];
+        for (int protein : model.getFeatures()) {
+            double[] column = new double[n];
+            for (int i = 0; i < n; i++) {
+                column[i] = patients[i].getExactLevel(protein - 1);
+            }
+            columns[protein - 1] = column;
+        }
+        byte[] predictions = new byte[n];
+        model.classifyColumns(columns, n, predictions);
+        for (int i = 0; i < n; i++) {
+            Patient p = patients[i];
+            String label = model.getLabel(predictions[i]);
+            if (!label.equals(p.getPredict())) {
+                p.setPredict(label);
+                queryEngine = null;
+                logChange(log -> log.logPrediction(p.getId(), label));
+                fireChanged(p.getId());
+                changes.fire(PatientChange.Type.PREDICTION_UPDATED, p.getId(), label);
+            }
+        }
+    }
+
+    /**
+     * Returns per-protein statistics of the collection split by response. They are computed in one
+     * parallel pass on the first call and kept up to date as patients are added, removed or given
+     * a response through this collection.
+     *
+     * @return statistics of the collection
+     */
+    public CohortStatistics getStatistics() {
+        if (statistics == null) {
+            statistics = new CohortStatistics(NO_PROTEINS, patientMap::values, ForkJoinPool.commonPool());
+        }
+        return statistics;
+    }
+
+    /**
+     * Finds the patients matching a query from secondary indexes instead of checking every patient.
+     * <p>
+     * Response and prediction conditions are answered from bitmaps, and a protein range from that
+     * protein's levels kept in sorted order, which is built the first time a query tests the protein.
+     * Indexes are rebuilt after the collection changes.
+     *
+     * @param query conditions and projection
+     * @return matching patients in ascending id order
+     */
+    @Override
+    public QueryResult query(PatientQuery query) {
+        if (queryEngine == null) {
+            ArrayList<Patient> patients = new ArrayList<>(idIndex.size());
+            for (int i = 0; i < idIndex.size(); i++) {
+                patients.add(patientMap.get(idIndex.get(i)));
             }
-        } catch (Exception ee) {
-            ee.printStackTrace();
-            System.err.println(
-                    "there was a problem with the file reader, try again.  either no such file or format error");
-        } finally {
-            try {
-                br.close();
-            } catch (IOException ie) {
-                System.err.println("Error occurred while closing the BufferedReader");
-                ie.printStackTrace();
+            queryEngine = new QueryEngine(patients, NO_PROTEINS);
+        }
+        return queryEngine.execute(query);
+    }
+
+    /**
+     * Finds the patients most similar to a patient of the collection, leaving the patient itself out.
+     * <p>
+     * The exact search compares every patient's proteins with the patient's. The approximate search
+     * compares short random projections of the vectors first and then only the closest few patients
+     * exactly, which is much faster on a large collection but may miss a neighbor. The projections
+     * are built on the first search and kept up to date as patients are added and removed.
+     *
+     * @param id     patient's id
+     * @param k      number of neighbors
+     * @param metric distance to rank by
+     * @param exact  true to compare every patient, false to use the approximate index
+     * @return up to k patients, nearest first, or null if Patient does not exist
+     */
+    public List<Neighbor> findNearest(String id, int k, DistanceMetric metric, boolean exact) {
+        Patient p = patientMap.get(id);
+        if (p == null) {
+            return null;
+        }
+        return findNearest(p.getProteins(), id, k, metric, exact);
+    }
+
+    /**
+     * Finds the patients whose proteins are most similar to a given vector, see
+     * {@link #findNearest(String, int, DistanceMetric, boolean)}
+     *
+     * @param proteins protein levels of the patient to match
+     * @param k        number of neighbors
+     * @param metric   distance to rank by
+     * @param exact    true to compare every patient, false to use the approximate index
+     * @return up to k patients, nearest first
+     */
+    public List<Neighbor> findNearest(ProteinVector proteins, int k, DistanceMetric metric, boolean exact) {
+        return findNearest(proteins, null, k, metric, exact);
+    }
+
+    private List<Neighbor> findNearest(ProteinVector proteins, String exclude, int k, DistanceMetric metric,
+                                       boolean exact) {
+        if (neighborIndex == null) {
+            neighborIndex = new NearestNeighborIndex(NO_PROTEINS);
+            for (Patient p : patientMap.values()) {
+                neighborIndex.add(p);
             }
         }
-        return toReturn;
+        double[] query = proteins.array() != null ? proteins.array() : proteins.toDoubleArray();
+        return exact ? neighborIndex.exact(query, k, metric, exclude)
+                : neighborIndex.approximate(query, k, metric, exclude);
     }
 
     /**
@@ -180,93 +516,393 @@ public class PatientCollection implements PatientCollectionADT {
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        Set<String> keys = patientMap.keySet();
-        ArrayList<Integer> ids = keys.stream().map(str -> Integer.parseInt(str)).collect(Collectors.toCollection(ArrayList::new));
-        Collections.sort(ids);
-        for (Integer id : ids) {
-            sb.append(getPatient(Integer.toString(id)));
+        for (int i = 0; i < idIndex.size(); i++) {
+            sb.append(patientMap.get(idIndex.get(i)));
         }
         return sb.toString();
     }
 
+    /**
+     * Streams the patients in ascending id order straight from the collection, without listing the
+     * ids first. The stream knows its size and splits by ranges of ids, so it runs well in parallel.
+     * The collection must not be changed while the stream runs.
+     *
+     * @return the patients
+     * @throws ConcurrentModificationException from the stream, if patients are added or removed while it runs
+     */
+    @Override
+    public Stream<Patient> stream() {
+        return StreamSupport.stream(new PatientSpliterator(0, idIndex.size()), false);
+    }
+
     /**
      * Reads stored patient collection data from csv file and adds to collection
      *
      * @param fileName csv file
      */
     private void readFile(String fileName) {
-        BufferedReader br = null;
+        long start = CollectionMetrics.get().start();
+        if (PatientBinaryFile.isBinaryFile(fileName)) {
+            readBinaryFile(fileName);
+        } else if (PatientArchive.isArchive(fileName)) {
+            readArchive(fileName);
+        } else {
+            PatientCsvLoader.readCollection(fileName, this::putPatient);
+        }
+        CollectionMetrics.get().loaded(start, new File(fileName).length());
+    }
+
+    /**
+     * Reads patients from a memory mapped binary collection file, copying each row's levels to the
+     * heap, and adds them to the collection
+     *
+     * @param fileName binary file
+     */
+    private void readBinaryFile(String fileName) {
+        try (PatientBinaryFile file = PatientBinaryFile.open(fileName)) {
+            for (int row = 0; row < file.getRowCount(); row++) {
+                putPatient(file.readPatient(row));
+            }
+        } catch (IOException e) {
+            System.err.println("there was a problem reading the binary file " + fileName + ": " + e.getMessage());
+            CollectionMetrics.get().fileUnreadable();
+        }
+    }
+
+    /**
+     * Reads patients from a compressed columnar archive and adds them to the collection
+     *
+     * @param fileName archive file
+     */
+    private void readArchive(String fileName) {
+        try (PatientArchive archive = PatientArchive.open(fileName)) {
+            for (Patient p : archive.readPatients()) {
+                putPatient(p);
+            }
+        } catch (IOException e) {
+            System.err.println("there was a problem reading the archive " + fileName + ": " + e.getMessage());
+            CollectionMetrics.get().fileUnreadable();
+        }
+    }
+
+    /**
+     * Opens a binary collection file without reading the patients' protein levels
+     *
+     * @param fileName       binary file
+     * @param cachedPatients number of patients whose protein levels are kept in memory
+     */
+    private void openLazily(String fileName, int cachedPatients) {
+        // the rows stay mapped after the channel is closed
+        try (PatientBinaryFile file = PatientBinaryFile.open(fileName)) {
+            proteinCache = new ProteinCache(file, cachedPatients);
+            // the current model's proteins are held in memory; a model swapped in later reads from the file
+            int[] held = Predictor.getModel().getFeatures();
+            for (int i = 0; i < held.length; i++) {
+                held[i]--;
+            }
+            for (int row = 0; row < file.getRowCount(); row++) {
+                putPatient(new Patient(proteinCache, row, held));
+            }
+        } catch (IOException e) {
+            System.err.println("there was a problem reading the binary file " + fileName + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Changes how many patients' protein levels a lazily opened collection keeps in memory
+     *
+     * @param cachedPatients number of patients, 0 to read the file on every access
+     */
+    public void setProteinCacheSize(int cachedPatients) {
+        if (proteinCache != null) {
+            proteinCache.setCapacity(cachedPatients);
+        }
+    }
+
+    /**
+     * Writes all the data in the patient collection to a binary collection file, ordered by id
+     *
+     * @param fn file to be written to
+     */
+    public void writeBinaryFile(String fn) {
+        ArrayList<Patient> patients = new ArrayList<>();
+        for (String id : getIds()) {
+            patients.add(patientMap.get(id));
+        }
         try {
-            br = new BufferedReader(new FileReader(fileName));
-            String line = "";
-
-            // expected line format
-            // response,prediction,id,protein1,protein2, ... ,protein4776
-            while ((line = br.readLine()) != null) {
-                String[] patientData = line.split(DELIMITER);
-                ArrayList<Double> proteinList = new ArrayList<>();
-                for (int i = 3; i < NO_PROTEINS + 3; i++) {
-                    proteinList.add(Double.parseDouble(patientData[i]));
-                }
-                Patient p = new Patient(patientData[2], patientData[0], patientData[1], proteinList);
-                patientMap.put(patientData[2], p);
+            PatientBinaryFile.write(fn, NO_PROTEINS, patients);
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+            System.err.println("Didn't save to " + fn);
+        }
+    }
+
+    /**
+     * Writes all the data in the patient collection to a compressed columnar archive, ordered by id.
+     * The archive can be opened as a collection file like csv and binary files.
+     *
+     * @param fn file to be written to
+     */
+    public void writeArchive(String fn) {
+        ArrayList<Patient> patients = new ArrayList<>();
+        for (String id : getIds()) {
+            patients.add(patientMap.get(id));
+        }
+        try {
+            PatientArchive.write(fn, NO_PROTEINS, patients);
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+            System.err.println("Didn't save to " + fn);
+        }
+    }
+
+    /**
+     * Adds a patient read from a collection file, replacing any patient with the same id
+     */
+    private void putPatient(Patient p) {
+        if (encoder != null) {
+            p.encodeProteins(encoder);
+        }
+        boolean replaced = patientMap.put(p.getId(), p) != null;
+        idIndex.add(p.getId());
+        queryEngine = null;
+        if (neighborIndex != null) {
+            neighborIndex.add(p);
+        }
+        if (replaced) {
+            fireChanged(p.getId());
+            changes.fire(PatientChange.Type.REMOVED, p.getId(), null);
+        } else {
+            fireAdded(p.getId());
+        }
+        changes.fire(PatientChange.Type.ADDED, p.getId(), null);
+    }
+
+    /**
+     * Adds a new patient unless its id is already taken
+     */
+    private boolean addNewPatient(Patient p) {
+        if (patientMap.putIfAbsent(p.getId(), p) != null) {
+            return false;
+        }
+        if (encoder != null) {
+            p.encodeProteins(encoder);
+        }
+        idIndex.add(p.getId());
+        queryEngine = null;
+        if (statistics != null) {
+            statistics.add(p);
+        }
+        if (neighborIndex != null) {
+            neighborIndex.add(p);
+        }
+        logChange(log -> log.logAdd(p));
+        fireAdded(p.getId());
+        changes.fire(PatientChange.Type.ADDED, p.getId(), null);
+        return true;
+    }
+
+    private void fireAdded(String id) {
+        if (!listeners.isEmpty()) {
+            int row = idIndex.indexOf(id);
+            for (PatientCollectionListener listener : listeners) {
+                listener.patientAdded(id, row);
             }
-        } catch (Exception e) {
-            System.err.println(
-                    "there was a problem with the file reader, try again.  either no such file or format error");
-        } finally {
-            if (br != null)
-                try {
-                    br.close();
-                } catch (IOException e) {
-                    System.err.println("could not close BufferedReader");
+        }
+    }
+
+    private void fireChanged(String id) {
+        if (!listeners.isEmpty()) {
+            int row = idIndex.indexOf(id);
+            for (PatientCollectionListener listener : listeners) {
+                listener.patientChanged(id, row);
+            }
+        }
+    }
+
+    /**
+     * Replays the change log of the collection file and keeps it open for new changes
+     */
+    private void openChangeLog() {
+        try {
+            changeLog = PatientChangeLog.open(baseFile + LOG_SUFFIX, new PatientChangeLog.Handler() {
+                public void add(Patient p) {
+                    putPatient(p);
+                }
+
+                public void remove(String id) {
+                    if (patientMap.remove(id) != null) {
+                        idIndex.remove(id);
+                    }
+                }
+
+                public void response(String id, String response) {
+                    if (patientMap.containsKey(id)) {
+                        patientMap.get(id).setResponse(response);
+                    }
+                }
+
+                public void prediction(String id, String prediction) {
+                    if (patientMap.containsKey(id)) {
+                        patientMap.get(id).setPredict(prediction);
+                    }
                 }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("could not open change log for " + baseFile + ", changes will only be kept on save");
         }
     }
 
     /**
-     * Passes FILENAME to doWrite method.
+     * Appends a change to the change log, if the collection is journaled
+     */
+    private void logChange(LogAction action) {
+        if (changeLog == null) {
+            return;
+        }
+        try {
+            action.write(changeLog);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("could not log change to " + changeLog.getPath() + ", save to keep it");
+        }
+    }
+
+    private interface LogAction {
+        void write(PatientChangeLog log) throws IOException;
+    }
+
+    /**
      * Saves collection data between runs.
+     * <p>
+     * A journaled collection only forces its change log to disk, unless the log has grown past a
+     * quarter of the collection file, in which case the file is rewritten and the log emptied. A
+     * journaled collection whose log could not be opened rewrites its file. Otherwise writes the
+     * collection to FILENAME.
      */
     public void writeFile() {
-        doWrite(FILENAME);
+        newSaveTask().run(null);
+    }
+
+    /**
+     * Prepares the save {@link #writeFile()} would make, to run later on another thread. If the save
+     * rewrites a file, the patients are copied now and the collection may be changed while it runs.
+     *
+     * @return the save
+     * @throws IllegalStateException if the save would rewrite the collection's file with levels kept
+     *                               at a lower precision
+     */
+    public SaveTask newSaveTask() {
+        if (changeLog == null) {
+            return journaled ? rewriteTask(baseFile, SaveTask.Format.of(baseFile))
+                    : rewriteTask(FILENAME, SaveTask.Format.CSV);
+        }
+        try {
+            long baseSize = new File(baseFile).length();
+            if (changeLog.size() > Math.max(MIN_COMPACT_BYTES, (long) (baseSize * COMPACT_RATIO))) {
+                return rewriteTask(baseFile, SaveTask.Format.of(baseFile));
+            }
+        } catch (IOException e) {
+            // forcing the log reports the problem if the log cannot be used
+            e.printStackTrace();
+        }
+        return new SaveTask(null, null, null, changeLog, 0);
     }
 
     /**
-     * Overloaded method for testing doWrite method with an alternate file
+     * Rewrites the collection file in its own format with all logged changes and empties the
+     * change log
+     *
+     * @throws IllegalStateException if levels are kept at a lower precision
+     */
+    public void compact() {
+        rewriteTask(baseFile, SaveTask.Format.of(baseFile)).run(null);
+    }
+
+    /**
+     * Overloaded method for testing the save with an alternate file
      *
      * @param altFileName filename
      */
     public void writeFile(String altFileName) {
-        doWrite(altFileName);
+        rewriteTask(altFileName, SaveTask.Format.CSV).run(null);
     }
 
     /**
-     * Writes all the data in the patient collection to a csv file.
-     * Each patient will be written to a single line.
+     * Prepares writing all the data in the patient collection to a file, ordered by id.
+     * As csv, each patient will be written to a single line.
      * Line format is:
      * response,prediction,id,protein1,protein2, ... ,protein4776
+     * <p>
+     * Writing the collection file empties its change log; a change log left next to any other file
+     * by another collection no longer applies to it and is removed.
      *
-     * @param fn file to be written to
+     * @param fn     file to be written to
+     * @param format format to write the file in
+     * @return the save
+     * @throws IllegalStateException if levels kept at a lower precision would replace the file the
+     *                               collection was built from
      */
-    private void doWrite(String fn) {
-        try {
-            FileWriter fw = new FileWriter(fn);
-            BufferedWriter myOutfile = new BufferedWriter(fw);
-            for (String key : patientMap.keySet()) {
-                myOutfile.write(getPatient(key).getResponse() + DELIMITER);
-                myOutfile.write(getPatient(key).getPredict() + DELIMITER);
-                myOutfile.write(getPatient(key).getId() + DELIMITER);
-                for (Double d : getPatient(key).getProteins()) {
-                    myOutfile.write(d + DELIMITER);
-                }
-                myOutfile.newLine();
+    private SaveTask rewriteTask(String fn, SaveTask.Format format) {
+        if (encoder != null && (fn.equals(baseFile) || fn.equals(FILENAME))) {
+            throw new IllegalStateException("levels kept at " + encoder.getPrecision()
+                    + " would replace the exact levels of " + fn);
+        }
+        ArrayList<Patient> copies = new ArrayList<>(patientMap.size());
+        for (String id : getIds()) {
+            copies.add(patientMap.get(id).copy());
+        }
+        if (changeLog != null && fn.equals(baseFile)) {
+            return new SaveTask(fn, format, copies, changeLog, changeLog.mark());
+        }
+        return new SaveTask(fn, format, copies, null, 0);
+    }
+
+    /**
+     * Patients at a range of positions in ascending id order
+     */
+    private final class PatientSpliterator implements Spliterator<Patient> {
+        private final int size = idIndex.size();
+        private final int end;
+        private int next;
+
+        private PatientSpliterator(int next, int end) {
+            this.next = next;
+            this.end = end;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Patient> action) {
+            if (next >= end) {
+                return false;
             }
-            myOutfile.flush();
-            myOutfile.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.err.println("Didn't save to " + fn);
+            if (idIndex.size() != size) {
+                throw new ConcurrentModificationException("patients were added or removed while streaming");
+            }
+            action.accept(patientMap.get(idIndex.get(next++)));
+            return true;
+        }
+
+        @Override
+        public Spliterator<Patient> trySplit() {
+            int mid = (next + end) >>> 1;
+            if (mid <= next) {
+                return null;
+            }
+            Spliterator<Patient> first = new PatientSpliterator(next, mid);
+            next = mid;
+            return first;
+        }
+
+        @Override
+        public long estimateSize() {
+            return end - next;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | NONNULL;
         }
     }
 }
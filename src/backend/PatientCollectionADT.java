@@ -1,6 +1,9 @@
 package backend;
 
 import java.util.ArrayList;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.stream.Stream;
 
 /**
  * An interface for a collection of Patients
@@ -35,6 +38,36 @@ public interface PatientCollectionADT {
     // expected line format
     // id,protein1,protein2, ... , protein4776
 
+    public default QueryResult query(PatientQuery query) {
+        return query.scan(this);
+    }
+    // Return the patients matching the query in ascending id order, with the
+    // protein levels it selects. Collections with indexes answer without
+    // checking every patient.
+
+    public default Stream<Patient> stream() {
+        return getIds().stream().map(this::getPatient).filter(Objects::nonNull);
+    }
+    // Return the patients in ascending id order, fetched one at a time as the
+    // stream is consumed, so the patients are never copied into a list.
+    // Patients removed while the stream runs are skipped.
+
+    public default Stream<ProteinSlice> streamProteins(int... proteins) {
+        int[] numbers = proteins.clone();
+        int[] indexes = ProteinSlice.indexes(numbers);
+        return stream().map(p -> new ProteinSlice(p, numbers, indexes));
+    }
+    // Return the id, response, prediction and the levels of the given 1-based
+    // proteins, all of them if none are given, of every patient in ascending id
+    // order, one patient at a time.
+
+    public PatientChangeFeed subscribe(int capacity, Executor executor, PatientChangeFeed.Handler handler);
+    // Deliver every add, remove, response update and prediction update made from
+    // now on to the handler, in batches run on the executor. The thread making a
+    // change never waits for the handler: at most capacity changes are queued, and
+    // if more pile up they are dropped and the handler is told to read the
+    // collection again. Close the returned feed to stop.
+
     public String toString();
     // Return a String representation of the collection.
     // Only include the 3698th and 3259th values in that order.
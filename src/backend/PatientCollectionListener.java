@@ -0,0 +1,30 @@
+package backend;
+
+/**
+ * Told about each change to a {@link PatientCollection} right after it is made, on the thread that
+ * made it. A row is the patient's position in ascending id order, see {@link PatientCollection#getId(int)}.
+ *
+ * @author Matt Ellis
+ */
+public interface PatientCollectionListener {
+
+    /**
+     * @param id  id of the added patient
+     * @param row the patient's row, later rows having moved down by one
+     */
+    void patientAdded(String id, int row);
+
+    /**
+     * @param id  id of the removed patient
+     * @param row the row the patient had, later rows having moved up by one
+     */
+    void patientRemoved(String id, int row);
+
+    /**
+     * Called when a patient's response or prediction changed
+     *
+     * @param id  id of the changed patient
+     * @param row the patient's row
+     */
+    void patientChanged(String id, int row);
+}
@@ -0,0 +1,283 @@
+package backend;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Reads the two patient csv layouts with a {@link PatientCsvReader}.
+ * Shared by the collection implementations so they all report errors the same way.
+ *
+ * @author Matt Ellis
+ */
+final class PatientCsvLoader {
+
+    static final int NO_PROTEINS = 4776;
+    static final int NEW_PATIENT_NO_DATA_PTS = 4777;
+    private static final long MIN_CHUNK_BYTES = 1L << 20;
+    private static final long MAX_CHUNK_BYTES = 64L << 20;
+
+    private PatientCsvLoader() {
+    }
+
+    /**
+     * Reads new patients from a file with lines of the format
+     * id,protein1,protein2, ... ,protein4776
+     *
+     * @param fileName a csv file
+     * @param exists   tells whether a patient id is already in the collection
+     * @param add      adds a new patient to the collection, returning false if the id was taken
+     *                 since it was checked with exists
+     * @return if an error occurs, returns the error
+     */
+    static String addNewPatients(String fileName, Predicate<String> exists, Predicate<Patient> add) {
+        StringBuilder toReturn = new StringBuilder();
+        int lineCount = 1;
+        try (PatientCsvReader reader = new PatientCsvReader(new FileReader(fileName))) {
+            while (reader.nextLine()) {
+                // check for missing data
+                if (reader.getFieldCount() != NEW_PATIENT_NO_DATA_PTS) {
+                    toReturn.append(formatError(lineCount));
+                } else {
+                    String id = reader.getField(0);
+                    // check if patient id already exists
+                    if (exists.test(id)) {
+                        toReturn.append(duplicateError(lineCount, id));
+                    }
+                    // build new patient and add to collection
+                    else {
+                        double[] proteins = new double[NO_PROTEINS];
+                        reader.getDoubles(1, proteins);
+                        if (!add.test(new Patient(id, proteins))) {
+                            toReturn.append(duplicateError(lineCount, id));
+                        }
+                    }
+                }
+                lineCount++;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.err.println(
+                    "there was a problem with the file reader, try again.  either no such file or format error");
+            CollectionMetrics.get().fileUnreadable();
+        }
+        return toReturn.toString();
+    }
+
+    /**
+     * Reads new patients like {@link #addNewPatients(String, Predicate, Predicate)}, parsing the file in parallel.
+     * <p>
+     * The file is split into chunks at newline-aligned byte offsets and each chunk is parsed on the
+     * pool. Parsed lines are then merged in file order on the calling thread, which is where ids are
+     * checked and patients added, so errors, line numbers and the resulting collection are the same
+     * as with the sequential reader.
+     *
+     * @param fileName a csv file
+     * @param exists   tells whether a patient id is already in the collection
+     * @param add      adds a new patient to the collection, returning false if the id was taken
+     *                 since it was checked with exists
+     * @param pool     pool used to parse chunks
+     * @return if an error occurs, returns the error
+     */
+    static String addNewPatientsParallel(String fileName, Predicate<String> exists, Predicate<Patient> add,
+                                         ForkJoinPool pool) {
+        StringBuilder toReturn = new StringBuilder();
+        int lineCount = 1;
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            List<ChunkTask> tasks = new ArrayList<>();
+            long[] bounds = chunkBounds(channel, pool.getParallelism());
+            for (int i = 0; i + 1 < bounds.length; i++) {
+                tasks.add(new ChunkTask(channel, bounds[i], bounds[i + 1]));
+            }
+            pool.invoke(new RecursiveTask<Void>() {
+                @Override
+                protected Void compute() {
+                    ForkJoinTask.invokeAll(tasks);
+                    return null;
+                }
+            });
+
+            // merge in file order, exactly as the sequential reader would have processed the lines
+            for (ChunkTask task : tasks) {
+                for (ParsedLine parsed : task.join()) {
+                    if (parsed.failure instanceof IOException) {
+                        throw parsed.failure;
+                    } else if (parsed.id == null) {
+                        toReturn.append(formatError(lineCount));
+                    } else if (exists.test(parsed.id)) {
+                        toReturn.append(duplicateError(lineCount, parsed.id));
+                    } else if (parsed.failure != null) {
+                        throw parsed.failure;
+                    } else if (!add.test(parsed.patient)) {
+                        toReturn.append(duplicateError(lineCount, parsed.id));
+                    }
+                    lineCount++;
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.err.println(
+                    "there was a problem with the file reader, try again.  either no such file or format error");
+            CollectionMetrics.get().fileUnreadable();
+        }
+        return toReturn.toString();
+    }
+
+    /**
+     * Reads stored patients from a collection file with lines of the format
+     * response,prediction,id,protein1,protein2, ... ,protein4776
+     *
+     * @param fileName csv file
+     * @param add      adds a patient to the collection
+     */
+    static void readCollection(String fileName, Consumer<Patient> add) {
+        try (PatientCsvReader reader = new PatientCsvReader(new FileReader(fileName))) {
+            while (reader.nextLine()) {
+                double[] proteins = new double[NO_PROTEINS];
+                reader.getDoubles(3, proteins);
+                add.accept(new Patient(reader.getField(2), reader.getField(0), reader.getField(1), proteins));
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println(
+                    "there was a problem with the file reader, try again.  either no such file or format error");
+            CollectionMetrics.get().fileUnreadable();
+        }
+    }
+
+    /**
+     * Splits a file into chunks that each start at the beginning of a line
+     *
+     * @return chunk boundaries, the first being 0 and the last the file size
+     */
+    private static long[] chunkBounds(FileChannel channel, int parallelism) throws IOException {
+        long size = channel.size();
+        long chunkBytes = Math.max(MIN_CHUNK_BYTES, Math.min(MAX_CHUNK_BYTES, size / (parallelism * 4L)));
+        ArrayList<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        long next = chunkBytes;
+        while (next < size) {
+            // move the boundary to just after the next newline
+            long pos = next;
+            long boundary = size;
+            search:
+            while (pos < size) {
+                buf.clear();
+                int n = channel.read(buf, pos);
+                if (n <= 0) {
+                    break;
+                }
+                for (int i = 0; i < n; i++) {
+                    if (buf.get(i) == '\n') {
+                        boundary = pos + i + 1;
+                        break search;
+                    }
+                }
+                pos += n;
+            }
+            if (boundary >= size) {
+                break;
+            }
+            bounds.add(boundary);
+            next = boundary + chunkBytes;
+        }
+        bounds.add(size);
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the error for a line with the wrong number of fields, counting the rejected row
+     */
+    static String formatError(int lineCount) {
+        CollectionMetrics.get().rejected(CollectionMetrics.Rejection.FORMAT);
+        return "**Error** - Line " + lineCount
+                + " - Format Error - line contains incorrect number of data elements.\n";
+    }
+
+    /**
+     * Returns the error for a line whose id is already taken, counting the rejected row
+     */
+    static String duplicateError(int lineCount, String id) {
+        CollectionMetrics.get().rejected(CollectionMetrics.Rejection.DUPLICATE_ID);
+        return "**Error** - Line " + lineCount + " - Patient id, " + id + ", already exists in record.\n";
+    }
+
+    /**
+     * One line of a chunk: a format error (no id), a parsed patient, or a line whose numbers failed
+     * to parse. The failure is only reported if the merge gets to the line without it being a duplicate.
+     */
+    private static final class ParsedLine {
+        final String id;
+        final Patient patient;
+        final Exception failure;
+
+        ParsedLine(String id, Patient patient, Exception failure) {
+            this.id = id;
+            this.patient = patient;
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * Parses the lines of one chunk of a new patient file
+     */
+    private static final class ChunkTask extends RecursiveTask<List<ParsedLine>> {
+        private static final long serialVersionUID = 1L;
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+
+        ChunkTask(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected List<ParsedLine> compute() {
+            List<ParsedLine> lines = new ArrayList<>();
+            try {
+                ByteBuffer bytes = ByteBuffer.allocate((int) (end - start));
+                while (bytes.hasRemaining() && channel.read(bytes, start + bytes.position()) > 0) {
+                    // read the whole chunk
+                }
+                PatientCsvReader reader = new PatientCsvReader(new InputStreamReader(
+                        new ByteArrayInputStream(bytes.array(), 0, bytes.position())));
+                while (reader.nextLine()) {
+                    if (reader.getFieldCount() != NEW_PATIENT_NO_DATA_PTS) {
+                        lines.add(new ParsedLine(null, null, null));
+                        continue;
+                    }
+                    String id = reader.getField(0);
+                    try {
+                        double[] proteins = new double[NO_PROTEINS];
+                        reader.getDoubles(1, proteins);
+                        lines.add(new ParsedLine(id, new Patient(id, proteins), null));
+                    } catch (RuntimeException e) {
+                        lines.add(new ParsedLine(id, null, e));
+                    }
+                }
+            } catch (IOException e) {
+                // stops the merge at this chunk, like a read error in the sequential reader
+                lines.add(new ParsedLine(null, null, e));
+            }
+            return lines;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package backend;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Streaming reader for patient csv files that parses protein levels without creating a String per field.
+ * <p>
+ * Each call to {@link #nextLine()} reads one line into a reusable char buffer and records where its
+ * comma separated fields start and end. Fields are then read as text with {@link #getField(int)}
+ * (used for ids and labels) or parsed straight into primitive storage with {@link #getDoubles(int, double[])}.
+ * <p>
+ * Lines end at "\n", "\r" or "\r\n" like BufferedReader.readLine, and {@link #getFieldCount()} counts
+ * fields the way String.split(",") does, so callers report the same format errors as before.
+ *
+ * @author Matt Ellis
+ */
+public final class PatientCsvReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    // exact powers of ten, used by the fast path of parseDouble
+    private static final double[] POW10 = new double[23];
+
+    static {
+        POW10[0] = 1.0;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10.0;
+        }
+    }
+
+    private final Reader in;
+    private final char[] buf = new char[BUFFER_SIZE];
+    private int bufPos;
+    private int bufLen;
+    private boolean skipLF;
+    private boolean eof;
+
+    private char[] line = new char[BUFFER_SIZE];
+    private int lineLen;
+    private int[] fieldStart = new int[1024];
+    private int[] fieldEnd = new int[1024];
+    private int fieldCount;
+    private long charsRead;
+
+    public PatientCsvReader(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the next line and splits it into fields
+     *
+     * @return false if the end of the input was reached
+     * @throws IOException if the input cannot be read
+     */
+    public boolean nextLine() throws IOException {
+        lineLen = 0;
+        boolean readAny = false;
+        while (true) {
+            if (bufPos == bufLen) {
+                if (!fill()) {
+                    if (readAny) {
+                        break;
+                    }
+                    return false;
+                }
+            }
+            if (skipLF) {
+                skipLF = false;
+                if (buf[bufPos] == '\n') {
+                    bufPos++;
+                    continue;
+                }
+            }
+            readAny = true;
+            int start = bufPos;
+            while (bufPos < bufLen && buf[bufPos] != '\n' && buf[bufPos] != '\r') {
+                bufPos++;
+            }
+            append(start, bufPos);
+            if (bufPos < bufLen) {
+                skipLF = buf[bufPos] == '\r';
+                bufPos++;
+                break;
+            }
+        }
+        splitFields();
+        return true;
+    }
+
+    /**
+     * Returns the number of fields on the current line, counted like String.split(","):
+     * trailing empty fields are not counted.
+     *
+     * @return number of fields
+     */
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * Returns a field of the current line as a String
+     *
+     * @param i 0-based field index
+     * @return the field's text
+     */
+    public String getField(int i) {
+        checkField(i);
+        return new String(line, fieldStart[i], fieldEnd[i] - fieldStart[i]);
+    }
+
+    /**
+     * Parses a field of the current line as a double
+     *
+     * @param i 0-based field index
+     * @return the parsed value
+     * @throws NumberFormatException if the field is not a number
+     */
+    public double getDouble(int i) {
+        checkField(i);
+        return parseDouble(line, fieldStart[i], fieldEnd[i]);
+    }
+
+    /**
+     * Parses consecutive fields of the current line into an array
+     *
+     * @param first index of the first field to parse
+     * @param dest  array to fill, one field per element
+     * @throws NumberFormatException if a field is not a number
+     */
+    public void getDoubles(int first, double[] dest) {
+        checkField(first + dest.length - 1);
+        for (int i = 0; i < dest.length; i++) {
+            dest[i] = parseDouble(line, fieldStart[first + i], fieldEnd[first + i]);
+        }
+    }
+
+    /**
+     * Returns the number of chars consumed from the input so far
+     *
+     * @return chars read
+     */
+    public long getCharsRead() {
+        return charsRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Parses a decimal number from a char range.
+     * <p>
+     * Plain decimals with at most 15 significant digits and 22 fraction digits, which covers the
+     * research data, are exact: both the digits and the power of ten are exactly representable, so a
+     * single correctly rounded division gives the same double as Double.parseDouble. Anything else
+     * falls back to Double.parseDouble.
+     *
+     * @param chars text
+     * @param start first char
+     * @param end   one past the last char
+     * @return the parsed value
+     * @throws NumberFormatException if the text is not a number
+     */
+    static double parseDouble(char[] chars, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (chars[i] == '-' || chars[i] == '+')) {
+            negative = chars[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int significant = 0;
+        int digits = 0;
+        int fraction = -1;
+        for (; i < end; i++) {
+            char c = chars[i];
+            if (c >= '0' && c <= '9') {
+                digits++;
+                if (mantissa != 0 || c != '0') {
+                    significant++;
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (fraction >= 0) {
+                    fraction++;
+                }
+                if (significant > 15) {
+                    break;
+                }
+            } else if (c == '.' && fraction < 0) {
+                fraction = 0;
+            } else {
+                break;
+            }
+        }
+        if (i != end || digits == 0 || fraction >= POW10.length) {
+            return Double.parseDouble(new String(chars, start, end - start));
+        }
+        double value = fraction > 0 ? mantissa / POW10[fraction] : (double) mantissa;
+        return negative ? -value : value;
+    }
+
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        int n = in.read(buf, 0, buf.length);
+        if (n <= 0) {
+            eof = n < 0;
+            bufPos = bufLen = 0;
+            return !eof && fill();
+        }
+        charsRead += n;
+        bufPos = 0;
+        bufLen = n;
+        return true;
+    }
+
+    private void append(int start, int end) {
+        int n = end - start;
+        if (lineLen + n > line.length) {
+            line = Arrays.copyOf(line, Math.max(line.length * 2, lineLen + n));
+        }
+        System.arraycopy(buf, start, line, lineLen, n);
+        lineLen += n;
+    }
+
+    private void splitFields() {
+        int count = 0;
+        int start = 0;
+        for (int i = 0; i <= lineLen; i++) {
+            if (i == lineLen || line[i] == ',') {
+                if (count == fieldStart.length) {
+                    fieldStart = Arrays.copyOf(fieldStart, count * 2);
+                    fieldEnd = Arrays.copyOf(fieldEnd, count * 2);
+                }
+                fieldStart[count] = start;
+                fieldEnd[count] = i;
+                count++;
+                start = i + 1;
+            }
+        }
+        // String.split keeps a lone empty field but drops trailing empty fields otherwise
+        if (count > 1) {
+            while (count > 0 && fieldEnd[count - 1] == fieldStart[count - 1]) {
+                count--;
+            }
+        }
+        fieldCount = count;
+    }
+
+    private void checkField(int i) {
+        if (i < 0 || i >= fieldCount) {
+            throw new ArrayIndexOutOfBoundsException("field " + i + ", line has " + fieldCount + " fields");
+        }
+    }
+}
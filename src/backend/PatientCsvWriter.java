@@ -0,0 +1,214 @@
+package backend;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Writes patients to a collection csv file without ever leaving a partly written file in its place.
+ * <p>
+ * Rows are formatted straight into a large direct buffer and streamed to a temporary file in the same
+ * directory. Only once every row is written and forced to disk is the temporary file renamed over the
+ * target, so a crash or error part-way through leaves the previous file untouched.
+ * <p>
+ * Protein levels are formatted by {@link #appendDouble(ByteBuffer, double)}, which writes the shortest
+ * decimal that parses back to the same double without creating a String.
+ *
+ * @author Matt Ellis
+ */
+final class PatientCsvWriter {
+
+    private static final int BUFFER_BYTES = 1 << 20;
+    private static final byte DELIMITER = ',';
+    private static final byte[] NEW_LINE = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    private static final double[] POW10 = new double[23];
+    private static final int MAX_DIGITS = 15;
+
+    static {
+        POW10[0] = 1.0;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10.0;
+        }
+    }
+
+    private final Path target;
+
+    PatientCsvWriter(String fileName) {
+        target = Paths.get(fileName).toAbsolutePath();
+    }
+
+    /**
+     * Writes patients to the file with lines of the format
+     * response,prediction,id,protein1,protein2, ... ,protein4776
+     *
+     * @param patients patients in the order they are written
+     * @return number of bytes written
+     * @throws IOException if the file cannot be written; the previous file is then left unchanged
+     */
+    long write(Iterable<Patient> patients) throws IOException {
+        return write(patients, null);
+    }
+
+    /**
+     * Writes patients to the file, reporting progress each time the buffer is written out
+     *
+     * @param patients patients in the order they are written
+     * @param monitor  told the rows and bytes written so far, or null
+     * @return number of bytes written
+     * @throws IOException           if the file cannot be written; the previous file is then left unchanged
+     * @throws CancellationException if the monitor stopped the write; the previous file is then left unchanged
+     */
+    long write(Iterable<Patient> patients, ProgressMonitor monitor) throws IOException {
+        Path dir = target.getParent();
+        Path temp = Files.createTempFile(dir, target.getFileName().toString(), ".tmp");
+        long written = 0;
+        try {
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_BYTES);
+                int rows = 0;
+                for (Patient p : patients) {
+                    ProteinVector proteins = p.getProteins();
+                    if (buf.remaining() < rowBytes(proteins.size())) {
+                        written += drain(buf, out);
+                        report(monitor, rows, written);
+                    }
+                    appendRow(buf, p, null);
+                    rows++;
+                }
+                written += drain(buf, out);
+                report(monitor, rows, written);
+                out.force(true);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        syncDirectory(dir);
+        return written;
+    }
+
+    /**
+     * @param proteins number of protein levels in a row
+     * @return most bytes {@link #appendRow(ByteBuffer, Patient, int[])} can take for the row
+     */
+    static int rowBytes(int proteins) {
+        // the widest double is 25 chars, the text fields are short
+        return proteins * 26 + 1024;
+    }
+
+    /**
+     * Appends a patient's line: response,prediction,id, then the protein levels, each followed by a comma
+     *
+     * @param buf     buffer with at least {@link #rowBytes(int)} bytes remaining
+     * @param p       patient to append
+     * @param indexes 0-based indexes of the proteins to append, or null for all
+     */
+    static void appendRow(ByteBuffer buf, Patient p, int[] indexes) {
+        appendText(buf, p.getResponse());
+        appendText(buf, p.getPredict());
+        appendText(buf, p.getId());
+        if (indexes == null) {
+            ProteinVector proteins = p.getProteins();
+            for (int i = 0; i < proteins.size(); i++) {
+                appendDouble(buf, proteins.getLevel(i));
+                buf.put(DELIMITER);
+            }
+        } else {
+            for (int index : indexes) {
+                appendDouble(buf, p.getLevel(index));
+                buf.put(DELIMITER);
+            }
+        }
+        buf.put(NEW_LINE);
+    }
+
+    private static void report(ProgressMonitor monitor, long rows, long bytes) {
+        if (monitor != null && !monitor.progress(rows, bytes)) {
+            throw new CancellationException("write cancelled after " + rows + " rows");
+        }
+    }
+
+    /**
+     * Appends the shortest decimal text that parses back to exactly the same double.
+     * <p>
+     * Values between 0.001 and 10^7, which covers the research data, are tried with 1, 2, 3, ...
+     * fraction digits. A candidate with at most 15 significant digits is exact when divided by its
+     * power of ten, so comparing that quotient with the value proves the text round-trips. Other
+     * values, and the rare value needing more digits, fall back to Double.toString.
+     *
+     * @param buf   buffer to append to
+     * @param value value to format
+     */
+    static void appendDouble(ByteBuffer buf, double value) {
+        double abs = Math.abs(value);
+        if (abs >= 1e-3 && abs < 1e7) {
+            for (int k = 1; k < POW10.length; k++) {
+                double scaled = Math.rint(abs * POW10[k]);
+                if (scaled >= POW10[MAX_DIGITS]) {
+                    break;
+                }
+                if (scaled / POW10[k] == abs) {
+                    long digits = (long) scaled;
+                    if (value < 0) {
+                        buf.put((byte) '-');
+                    }
+                    appendLong(buf, digits / (long) POW10[k]);
+                    buf.put((byte) '.');
+                    long fraction = digits % (long) POW10[k];
+                    for (long pow = (long) POW10[k - 1]; pow > 0; pow /= 10) {
+                        buf.put((byte) ('0' + fraction / pow % 10));
+                    }
+                    return;
+                }
+            }
+        }
+        buf.put(Double.toString(value).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static void appendLong(ByteBuffer buf, long value) {
+        if (value >= 10) {
+            appendLong(buf, value / 10);
+        }
+        buf.put((byte) ('0' + value % 10));
+    }
+
+    private static void appendText(ByteBuffer buf, String text) {
+        buf.put(String.valueOf(text).getBytes(StandardCharsets.UTF_8));
+        buf.put(DELIMITER);
+    }
+
+    static long drain(ByteBuffer buf, WritableByteChannel out) throws IOException {
+        buf.flip();
+        long n = buf.remaining();
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+        buf.clear();
+        return n;
+    }
+
+    /**
+     * Forces the rename to disk. Not every platform can open a directory, which is then skipped.
+     */
+    private static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // the rename is still atomic, it may just not be durable yet
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package backend;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Streams patients to any channel, e.g. a socket, a pipe or a file, as collection csv rows or as a
+ * binary collection file, for handing a large cohort to another program.
+ * <p>
+ * Patients are taken from the stream one at a time and formatted into one buffer of fixed size,
+ * which is written out whenever it is full, so the memory used does not grow with the cohort. Only
+ * selected proteins may be written. Exporting every protein of a collection opened lazily from a
+ * binary file hands each patient's levels to the channel straight from the file's mapping, without
+ * copying them through the Java heap.
+ * <p>
+ * The channel must be blocking. It is written to from its current position and left open.
+ *
+ * @author Matt Ellis
+ */
+public final class PatientExport {
+
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    private PatientExport() {
+    }
+
+    /**
+     * Writes patients as lines of the format response,prediction,id,protein1,protein2, ... , the
+     * format of collection csv files when every protein is written
+     *
+     * @param patients patients in the order they are written, e.g. {@link PatientCollectionADT#stream()}
+     * @param out      channel to write to
+     * @param proteins 1-based protein numbers to write, in this order, none for all
+     * @return number of bytes written
+     * @throws IOException if the channel cannot be written
+     * @throws IllegalArgumentException if a protein number is out of range, before anything is written
+     */
+    public static long writeCsv(Stream<Patient> patients, WritableByteChannel out, int... proteins)
+            throws IOException {
+        int[] indexes = ProteinSlice.indexes(proteins);
+        ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_BYTES);
+        long written = 0;
+        for (Iterator<Patient> it = patients.iterator(); it.hasNext(); ) {
+            Patient p = it.next();
+            int rowBytes = PatientCsvWriter.rowBytes(indexes != null ? indexes.length : p.getProteins().size());
+            if (buf.remaining() < rowBytes) {
+                written += PatientCsvWriter.drain(buf, out);
+                if (buf.capacity() < rowBytes) {
+                    buf = ByteBuffer.allocateDirect(rowBytes);
+                }
+            }
+            PatientCsvWriter.appendRow(buf, p, indexes);
+        }
+        return written + PatientCsvWriter.drain(buf, out);
+    }
+
+    /**
+     * Writes patients as a binary collection file, see {@link PatientBinaryFile}. Its header holds
+     * the number of patients, so the stream must know its size, as {@link PatientCollection#stream()}
+     * does, or the channel must be seekable.
+     *
+     * @param patients patients in the order they are written, all with the same number of proteins
+     * @param out      channel to write to
+     * @param proteins 1-based protein numbers to write, in this order, none for all
+     * @return number of bytes written
+     * @throws IOException if the channel cannot be written or the stream's size was wrong
+     * @throws IllegalArgumentException if a protein number is out of range, before anything is written
+     */
+    public static long writeBinary(Stream<Patient> patients, WritableByteChannel out, int... proteins)
+            throws IOException {
+        int[] indexes = ProteinSlice.indexes(proteins);
+        Spliterator<Patient> rows = patients.spliterator();
+        long count = rows.getExactSizeIfKnown();
+        Iterator<Patient> it = Spliterators.iterator(rows);
+        int proteinCount;
+        if (indexes != null) {
+            proteinCount = indexes.length;
+        } else if (it.hasNext()) {
+            // every protein of the first patient sets the width of the rows
+            Patient first = it.next();
+            ByteBuffer stored = first.storedLevels();
+            proteinCount = stored != null ? stored.remaining() / Double.BYTES : first.getProteins().size();
+            it = Stream.concat(Stream.of(first), StreamSupport.stream(rows, false)).iterator();
+        } else {
+            proteinCount = 0;
+        }
+        return PatientBinaryFile.writeRows(it, count, proteinCount, indexes, out);
+    }
+}
@@ -0,0 +1,110 @@
+package backend;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Reads a new patient file in batches, so the reading and predicting can run on one thread while
+ * another adds the patients to a collection with {@link PatientCollection#addPatients(Batch)}.
+ * <p>
+ * Lines have the format id,protein1,protein2, ... ,protein4776. A batch holds the patients of
+ * consecutive lines; a line with the wrong number of fields is kept as a gap so the collection
+ * reports the same errors, with the same line numbers, as {@link PatientCollection#addPatientsFromFile(String)}.
+ *
+ * @author Matt Ellis
+ */
+public final class PatientFileImport implements Closeable {
+    private final PatientCsvReader reader;
+    private final long totalBytes;
+    private int lineCount = 1;
+    private boolean finished;
+
+    /**
+     * Opens a new patient file
+     *
+     * @param fileName a csv file
+     * @throws IOException if the file cannot be opened
+     */
+    public PatientFileImport(String fileName) throws IOException {
+        totalBytes = new File(fileName).length();
+        reader = new PatientCsvReader(new FileReader(fileName));
+    }
+
+    /**
+     * Reads and predicts the next lines of the file
+     *
+     * @param maxRows most lines to read
+     * @return the lines read, or null at the end of the file
+     * @throws IOException if the file cannot be read
+     */
+    public Batch next(int maxRows) throws IOException {
+        if (finished) {
+            return null;
+        }
+        Batch batch = new Batch(lineCount, maxRows);
+        while (batch.size < maxRows) {
+            if (!reader.nextLine()) {
+                finished = true;
+                break;
+            }
+            Patient p = null;
+            if (reader.getFieldCount() == PatientCsvLoader.NEW_PATIENT_NO_DATA_PTS) {
+                double[] proteins = new double[PatientCsvLoader.NO_PROTEINS];
+                reader.getDoubles(1, proteins);
+                p = new Patient(reader.getField(0), proteins);
+            }
+            batch.patients[batch.size++] = p;
+            lineCount++;
+        }
+        return batch.size > 0 ? batch : null;
+    }
+
+    /**
+     * @return lines read so far
+     */
+    public long getRowsRead() {
+        return lineCount - 1;
+    }
+
+    /**
+     * @return bytes of the file read so far; the file is read ahead in blocks
+     */
+    public long getBytesRead() {
+        return Math.min(reader.getCharsRead(), totalBytes);
+    }
+
+    /**
+     * @return size of the file
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * Patients read from consecutive lines of a file, null for a line in the wrong format
+     */
+    public static final class Batch {
+        final int firstLine;
+        final Patient[] patients;
+        int size;
+
+        private Batch(int firstLine, int capacity) {
+            this.firstLine = firstLine;
+            this.patients = new Patient[capacity];
+        }
+
+        /**
+         * @return number of lines in the batch
+         */
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package backend;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntToDoubleFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A search for patients by protein level ranges, response and prediction, combined with AND, plus
+ * the protein levels to return for each match. For example
+ * <pre>
+ * PatientQuery.parse("P3698 &lt;= 20.9 AND response = CR").select(3698, 3259)
+ * </pre>
+ * is the same as
+ * <pre>
+ * PatientQuery.all().proteinAtMost(3698, 20.9).responseIs("CR").select(3698, 3259)
+ * </pre>
+ * Proteins are numbered from 1 as in the collection file. Queries are immutable; every method
+ * returns a new query with one more condition.
+ * <p>
+ * Any {@link PatientCollectionADT} answers a query by checking every patient, see
+ * {@link #scan(PatientCollectionADT)}. {@link PatientCollection} answers it from secondary indexes.
+ *
+ * @author Matt Ellis
+ */
+public final class PatientQuery {
+
+    private static final PatientQuery ALL = new PatientQuery(Collections.emptyList(), null, null, new int[0]);
+    private static final Pattern PROTEIN_CONDITION = Pattern.compile(
+            "(?i)^p(?:rotein)?\\s*(\\d+)\\s*(<=|>=|<|>|=)\\s*(\\S+)$");
+    private static final Pattern LABEL_CONDITION = Pattern.compile("(?i)^(response|prediction)\\s*=\\s*(\\S+)$");
+
+    private final List<Range> ranges;
+    private final String response;
+    private final String prediction;
+    private final int[] projection;
+
+    private PatientQuery(List<Range> ranges, String response, String prediction, int[] projection) {
+        this.ranges = ranges;
+        this.response = response;
+        this.prediction = prediction;
+        this.projection = projection;
+    }
+
+    /**
+     * Returns the query matching every patient
+     *
+     * @return query without conditions
+     */
+    public static PatientQuery all() {
+        return ALL;
+    }
+
+    /**
+     * Parses conditions joined by AND. A condition is either a protein, written P3698 or
+     * protein 3698, compared with &lt;=, &lt;, &gt;=, &gt; or = to a number, or
+     * response = label or prediction = label.
+     *
+     * @param text conditions, e.g. "P3698 &lt;= 20.9 AND response = CR"
+     * @return the query
+     * @throws IllegalArgumentException if a condition cannot be parsed
+     */
+    public static PatientQuery parse(String text) {
+        PatientQuery query = ALL;
+        if (text.trim().isEmpty()) {
+            return query;
+        }
+        for (String condition : text.trim().split("(?i)\\s+and\\s+")) {
+            condition = condition.trim();
+            Matcher protein = PROTEIN_CONDITION.matcher(condition);
+            Matcher label = LABEL_CONDITION.matcher(condition);
+            if (protein.matches()) {
+                int number = Integer.parseInt(protein.group(1));
+                double value;
+                try {
+                    value = Double.parseDouble(protein.group(3));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("not a number in condition: " + condition);
+                }
+                switch (protein.group(2)) {
+                    case "<=":
+                        query = query.proteinAtMost(number, value);
+                        break;
+                    case "<":
+                        query = query.proteinBelow(number, value);
+                        break;
+                    case ">=":
+                        query = query.proteinAtLeast(number, value);
+                        break;
+                    case ">":
+                        query = query.proteinAbove(number, value);
+                        break;
+                    default:
+                        query = query.proteinBetween(number, value, value);
+                }
+            } else if (label.matches()) {
+                query = label.group(1).equalsIgnoreCase("response") ? query.responseIs(label.group(2))
+                        : query.predictionIs(label.group(2));
+            } else {
+                throw new IllegalArgumentException("cannot parse condition: " + condition);
+            }
+        }
+        return query;
+    }
+
+    public PatientQuery proteinAtMost(int protein, double max) {
+        return with(new Range(protein, Double.NEGATIVE_INFINITY, true, max, true));
+    }
+
+    public PatientQuery proteinBelow(int protein, double max) {
+        return with(new Range(protein, Double.NEGATIVE_INFINITY, true, max, false));
+    }
+
+    public PatientQuery proteinAtLeast(int protein, double min) {
+        return with(new Range(protein, min, true, Double.POSITIVE_INFINITY, true));
+    }
+
+    public PatientQuery proteinAbove(int protein, double min) {
+        return with(new Range(protein, min, false, Double.POSITIVE_INFINITY, true));
+    }
+
+    /**
+     * Adds the condition min &lt;= level &lt;= max
+     *
+     * @param protein 1-based protein number
+     * @param min     lowest matching level
+     * @param max     highest matching level
+     * @return the query with the condition added
+     */
+    public PatientQuery proteinBetween(int protein, double min, double max) {
+        return with(new Range(protein, min, true, max, true));
+    }
+
+    /**
+     * Adds the condition that the patient's response equals a label, e.g. "CR", "DP" or "unk"
+     *
+     * @param label response
+     * @return the query with the condition added
+     */
+    public PatientQuery responseIs(String label) {
+        if (response != null && !response.equals(label)) {
+            return with(Range.NONE);
+        }
+        return new PatientQuery(ranges, label, prediction, projection);
+    }
+
+    /**
+     * Adds the condition that the patient's prediction equals a label, e.g. "predCR"
+     *
+     * @param label prediction
+     * @return the query with the condition added
+     */
+    public PatientQuery predictionIs(String label) {
+        if (prediction != null && !prediction.equals(label)) {
+            return with(Range.NONE);
+        }
+        return new PatientQuery(ranges, response, label, projection);
+    }
+
+    /**
+     * Chooses the protein levels returned for each matching patient
+     *
+     * @param proteins 1-based protein numbers
+     * @return the query with the projection replaced
+     */
+    public PatientQuery select(int... proteins) {
+        for (int protein : proteins) {
+            checkProtein(protein);
+        }
+        return new PatientQuery(ranges, response, prediction, proteins.clone());
+    }
+
+    /**
+     * Answers the query by checking every patient of a collection
+     *
+     * @param collection any patient collection
+     * @return matching patients in ascending id order
+     */
+    public QueryResult scan(PatientCollectionADT collection) {
+        QueryResult.Builder result = new QueryResult.Builder(projection);
+        for (String id : collection.getIds()) {
+            Patient p = collection.getPatient(id);
+            // a concurrent collection may have lost the patient since listing its ids
+            if (p != null && matches(p)) {
+                result.add(p.getId(), p.getResponse(), p.getPredict(), p::getLevel);
+            }
+        }
+        return result.build();
+    }
+
+    /**
+     * Tells whether a patient meets every condition
+     *
+     * @param p patient
+     * @return true if the patient matches
+     */
+    public boolean matches(Patient p) {
+        return matches(p.getResponse(), p.getPredict(), p::getLevel);
+    }
+
+    /**
+     * Tells whether a patient meets every condition
+     *
+     * @param patientResponse   the patient's response
+     * @param patientPrediction the patient's prediction
+     * @param level             the patient's level of a 0-based protein
+     * @return true if the patient matches
+     */
+    boolean matches(String patientResponse, String patientPrediction, IntToDoubleFunction level) {
+        if (response != null && !response.equals(patientResponse)) {
+            return false;
+        }
+        if (prediction != null && !prediction.equals(patientPrediction)) {
+            return false;
+        }
+        for (Range range : ranges) {
+            if (!range.test(level.applyAsDouble(range.protein))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    List<Range> getRanges() {
+        return ranges;
+    }
+
+    String getResponse() {
+        return response;
+    }
+
+    String getPrediction() {
+        return prediction;
+    }
+
+    int[] getProjection() {
+        return projection;
+    }
+
+    /**
+     * Returns the conditions in the text form read by {@link #parse(String)}
+     *
+     * @return conditions joined by AND
+     */
+    @Override
+    public String toString() {
+        List<String> conditions = new ArrayList<>();
+        for (Range range : ranges) {
+            conditions.add(range.toString());
+        }
+        if (response != null) {
+            conditions.add("response = " + response);
+        }
+        if (prediction != null) {
+            conditions.add("prediction = " + prediction);
+        }
+        return String.join(" AND ", conditions);
+    }
+
+    private PatientQuery with(Range range) {
+        List<Range> more = new ArrayList<>(ranges);
+        more.add(range);
+        return new PatientQuery(Collections.unmodifiableList(more), response, prediction, projection);
+    }
+
+    private static void checkProtein(int protein) {
+        if (protein < 1 || protein > PatientCsvLoader.NO_PROTEINS) {
+            throw new IllegalArgumentException("no protein " + protein);
+        }
+    }
+
+    /**
+     * A range of one protein's levels, with inclusive or exclusive ends
+     */
+    static final class Range {
+        // matches nothing, for contradicting label conditions
+        static final Range NONE = new Range(1, Double.POSITIVE_INFINITY, false, Double.NEGATIVE_INFINITY, false);
+
+        final int protein;
+        final double min;
+        final boolean minInclusive;
+        final double max;
+        final boolean maxInclusive;
+
+        Range(int protein, double min, boolean minInclusive, double max, boolean maxInclusive) {
+            checkProtein(protein);
+            this.protein = protein - 1;
+            this.min = min;
+            this.minInclusive = minInclusive;
+            this.max = max;
+            this.maxInclusive = maxInclusive;
+        }
+
+        boolean test(double level) {
+            return (minInclusive ? level >= min : level > min) && (maxInclusive ? level <= max : level < max);
+        }
+
+        @Override
+        public String toString() {
+            String name = "P" + (protein + 1);
+            if (min == Double.NEGATIVE_INFINITY) {
+                return name + (maxInclusive ? " <= " : " < ") + max;
+            } else if (max == Double.POSITIVE_INFINITY) {
+                return name + (minInclusive ? " >= " : " > ") + min;
+            } else if (min == max && minInclusive && maxInclusive) {
+                return name + " = " + min;
+            }
+            return name + (minInclusive ? " >= " : " > ") + min + " AND " + name + (maxInclusive ? " <= " : " < ") + max;
+        }
+    }
+}
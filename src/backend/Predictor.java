@@ -1,18 +1,100 @@
 package backend;
 
+import java.io.IOException;
+import java.util.function.IntToDoubleFunction;
+
 /**
  * This class provides a method for predicting a patients response to treatment.
+ * <p>
+ * Patients are scored with the current {@link DecisionTreeModel}, which starts as the tree below and
+ * can be replaced at runtime with a retrained tree, e.g. one loaded from Weka J48 output. Swapping the
+ * model is a single volatile write, so threads predicting at the same time are never blocked; they
+ * use either the old or the new model for a whole prediction.
+ * <p>
+ * Predictions with the current model and batch predictions, made by
+ * {@link DecisionTreeModel#classifyColumns(double[][], int, byte[])} when a collection is rescored,
+ * are counted in {@link CollectionMetrics}.
  *
  * @author Dr. Mark Doderer - University of Central Arkansas
  * @author Matt Ellis
  */
 public class Predictor {
 
+    private static final double PROTEIN1_THRESHOLD = 20.903959;
+    private static final double PROTEIN2_THRESHOLD = 22.058599;
+    private static volatile DecisionTreeModel model = DecisionTreeModel.DEFAULT;
+
+    /**
+     * Returns the model used to predict responses
+     *
+     * @return the current model
+     */
+    public static DecisionTreeModel getModel() {
+        return model;
+    }
+
+    /**
+     * Replaces the model used to predict responses. Existing predictions are not changed until
+     * the patients are rescored.
+     *
+     * @param newModel the model to use from now on
+     */
+    public static void setModel(DecisionTreeModel newModel) {
+        if (newModel == null) {
+            throw new IllegalArgumentException("model must not be null");
+        }
+        model = newModel;
+    }
+
+    /**
+     * Loads a model from a file holding Weka J48 text output and makes it the current model
+     *
+     * @param fileName model file
+     * @return the loaded model
+     * @throws IOException if the file cannot be read or does not hold a J48 tree
+     */
+    public static DecisionTreeModel loadModel(String fileName) throws IOException {
+        DecisionTreeModel loaded = DecisionTreeModel.load(fileName);
+        setModel(loaded);
+        return loaded;
+    }
+
+    /**
+     * Predicts a patient's response to treatment with the current model
+     *
+     * @param proteins the patient's protein levels
+     * @return the prediction, e.g. "predCR" or "predDP"
+     */
+    public static String predict(ProteinVector proteins) {
+        CollectionMetrics metrics = CollectionMetrics.get();
+        long start = metrics.sampleStart();
+        String prediction = model.predict(proteins);
+        metrics.predicted(start);
+        return prediction;
+    }
+
+    /**
+     * Predicts a patient's response with the current model, reading only the levels it tests
+     *
+     * @param levels returns the exact level of a 0-based protein index
+     * @return the prediction, e.g. "predCR" or "predDP"
+     */
+    static String predict(IntToDoubleFunction levels) {
+        CollectionMetrics metrics = CollectionMetrics.get();
+        long start = metrics.sampleStart();
+        DecisionTreeModel current = model;
+        String prediction = current.getLabel(current.classify(levels));
+        metrics.predicted(start);
+        return prediction;
+    }
+
     /**
      * This treatment response predictor was generated using the Weka J48 Decision Tree
      * algorithm on the original patient data set provided by researchers at the
      * University of Arkansas for Medical Sciences. It was discovered that proteins
      * 3698 and 3259 could be used to predict a patient's response to treatment.
+     * <p>
+     * This is the built-in tree, {@link DecisionTreeModel#DEFAULT}, whatever the current model is.
      *
      * @param p1 patient's expression level of protein 3698
      * @param p2 patient's expression level of protein 3259
@@ -20,14 +102,14 @@ public class Predictor {
      * progression or "predCR" meaning complete response
      */
     public static String predict(double p1, double p2) {
-        if (p1 <= 20.903959) {
+        if (p1 <= PROTEIN1_THRESHOLD) {
             return "predDP";
         } else {
-            if (p2 <= 22.058599) {
+            if (p2 <= PROTEIN2_THRESHOLD) {
                 return "predCR";
             } else {
                 return "predDP";
             }
         }
     }
-} 
\ No newline at end of file
+}
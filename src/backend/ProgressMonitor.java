@@ -0,0 +1,18 @@
+package backend;
+
+/**
+ * Told how far a long import or save has got, and able to stop it.
+ *
+ * @author Matt Ellis
+ */
+public interface ProgressMonitor {
+
+    /**
+     * Called from the thread doing the work each time another block of rows is done
+     *
+     * @param rows  rows done so far
+     * @param bytes bytes read or written so far
+     * @return true to carry on, false to stop the work
+     */
+    boolean progress(long rows, long bytes);
+}
@@ -0,0 +1,109 @@
+package backend;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Protein levels of lazily loaded patients, fetched from a {@link PatientBinaryFile} by row when
+ * first needed and kept in a least recently used cache of a fixed number of patients.
+ * <p>
+ * The file stays memory mapped, so a miss copies one row out of the page cache and a single level
+ * is read in place without loading the row. The mapping remains valid after the file's channel is
+ * closed, and even after the file is replaced, until the cache is garbage collected.
+ * Safe to use from several threads.
+ *
+ * @author Matt Ellis
+ */
+final class ProteinCache {
+
+    private final PatientBinaryFile file;
+    private final LinkedHashMap<Integer, ProteinVector> cache;
+    private int capacity;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param file     opened binary collection file
+     * @param capacity number of patients whose proteins are kept in memory
+     */
+    ProteinCache(PatientBinaryFile file, int capacity) {
+        this.file = file;
+        this.cache = new LinkedHashMap<Integer, ProteinVector>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, ProteinVector> eldest) {
+                return size() > ProteinCache.this.capacity;
+            }
+        };
+        setCapacity(capacity);
+    }
+
+    /**
+     * Returns the protein levels of a row, reading them from the file unless they are cached
+     *
+     * @param row patient row
+     * @return protein levels
+     */
+    ProteinVector get(int row) {
+        synchronized (this) {
+            ProteinVector cached = cache.get(row);
+            if (cached != null) {
+                hits++;
+                return cached;
+            }
+            misses++;
+        }
+        // copy outside the lock so misses on different rows do not wait for each other
+        ProteinVector loaded = new ProteinVector(file.readProteins(row));
+        synchronized (this) {
+            if (capacity > 0) {
+                cache.put(row, loaded);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Reads a single protein level straight from the file, without loading or caching the row
+     *
+     * @param row     patient row
+     * @param protein 0-based index of the protein
+     * @return the protein's expression level
+     */
+    double getLevel(int row, int protein) {
+        return file.getLevel(row, protein);
+    }
+
+    PatientBinaryFile getFile() {
+        return file;
+    }
+
+    /**
+     * Changes how many patients' proteins are kept, evicting the least recently used ones
+     *
+     * @param capacity number of patients, 0 to read the file on every access
+     */
+    synchronized void setCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("cache capacity " + capacity);
+        }
+        this.capacity = capacity;
+        Iterator<Integer> eldest = cache.keySet().iterator();
+        while (cache.size() > capacity) {
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    synchronized int getCapacity() {
+        return capacity;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+}
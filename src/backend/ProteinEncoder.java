@@ -0,0 +1,178 @@
+package backend;
+
+import java.util.Arrays;
+
+/**
+ * Converts protein vectors to the {@link ProteinPrecision} of a collection.
+ * <p>
+ * A float or quantized vector keeps some levels exactly beside its smaller array: the proteins the
+ * encoder was told to keep exact, and levels that the smaller type cannot hold, such as NaN or, when
+ * quantizing, levels outside the protein's range. Their slots in the array hold a marker, NaN for
+ * floats and {@link #EXACT_CODE} for codes, so reading any other level costs no search. The levels of
+ * other proteins are lost to rounding, so a model loaded later that tests them cannot predict from
+ * the vectors; see {@link #keepsExactly(int[])}.
+ * <p>
+ * A quantized level is stored as an unsigned 16-bit step between the protein's offset and
+ * offset + {@value #STEPS} * scale. The range of each protein is taken from the patients the encoder
+ * is created with, widened by {@value #MARGIN} of its width on both sides for patients added later.
+ *
+ * @author Matt Ellis
+ */
+final class ProteinEncoder {
+
+    static final short EXACT_CODE = Short.MAX_VALUE;
+    // codes 0 to STEPS are levels, STEPS + 1 is EXACT_CODE
+    private static final int STEPS = 65534;
+    private static final double MARGIN = 0.25;
+    // range of a protein with no finite levels to calibrate from, well beyond the normalized data
+    private static final double DEFAULT_LOW = 0;
+    private static final double DEFAULT_HIGH = 64;
+
+    private final ProteinPrecision precision;
+    private final int dimensions;
+    private final boolean[] exact;
+    private final double[] offsets;
+    private final double[] scales;
+
+    private ProteinEncoder(ProteinPrecision precision, int dimensions, int[] exactProteins, double[] offsets,
+                           double[] scales) {
+        this.precision = precision;
+        this.dimensions = dimensions;
+        this.exact = new boolean[dimensions];
+        for (int protein : exactProteins) {
+            if (protein >= 1 && protein <= dimensions) {
+                exact[protein - 1] = true;
+            }
+        }
+        this.offsets = offsets;
+        this.scales = scales;
+    }
+
+    /**
+     * Creates an encoder, taking the range of each protein from the given patients when quantizing
+     *
+     * @param precision     precision of the encoded vectors
+     * @param dimensions    proteins per patient; vectors of any other size are left as they are
+     * @param patients      patients to calibrate quantization from
+     * @param exactProteins 1-based numbers of the proteins kept exactly
+     * @return the encoder
+     */
+    static ProteinEncoder create(ProteinPrecision precision, int dimensions, Iterable<Patient> patients,
+                                 int[] exactProteins) {
+        if (precision != ProteinPrecision.QUANTIZED16) {
+            return new ProteinEncoder(precision, dimensions, exactProteins, null, null);
+        }
+        double[] low = new double[dimensions];
+        double[] high = new double[dimensions];
+        Arrays.fill(low, Double.POSITIVE_INFINITY);
+        Arrays.fill(high, Double.NEGATIVE_INFINITY);
+        for (Patient p : patients) {
+            ProteinVector v = p.getProteins();
+            if (v.size() != dimensions) {
+                continue;
+            }
+            for (int i = 0; i < dimensions; i++) {
+                double x = v.getLevel(i);
+                // comparisons with NaN are false, infinities are excluded explicitly
+                if (x < low[i] && x != Double.NEGATIVE_INFINITY) {
+                    low[i] = x;
+                }
+                if (x > high[i] && x != Double.POSITIVE_INFINITY) {
+                    high[i] = x;
+                }
+            }
+        }
+        double[] offsets = new double[dimensions];
+        double[] scales = new double[dimensions];
+        for (int i = 0; i < dimensions; i++) {
+            double lo = low[i];
+            double hi = high[i];
+            if (lo > hi) {
+                lo = DEFAULT_LOW;
+                hi = DEFAULT_HIGH;
+            }
+            double margin = Math.max(hi - lo, 1) * MARGIN;
+            offsets[i] = lo - margin;
+            scales[i] = (hi - lo + 2 * margin) / STEPS;
+        }
+        return new ProteinEncoder(precision, dimensions, exactProteins, offsets, scales);
+    }
+
+    ProteinPrecision getPrecision() {
+        return precision;
+    }
+
+    /**
+     * @param proteins 1-based protein numbers, e.g. those a model tests
+     * @return true if every vector this encoder makes holds the proteins' levels exactly
+     */
+    boolean keepsExactly(int[] proteins) {
+        if (precision == ProteinPrecision.DOUBLE) {
+            return true;
+        }
+        for (int protein : proteins) {
+            if (protein < 1 || protein > dimensions || !exact[protein - 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the vector in this encoder's precision
+     *
+     * @param v a vector of any precision
+     * @return v itself if it needs no change, otherwise a new vector
+     */
+    ProteinVector encode(ProteinVector v) {
+        if (v.size() != dimensions || v.getEncoder() == this
+                || (precision == ProteinPrecision.DOUBLE && v.array() != null)) {
+            return v;
+        }
+        double[] levels = v.array() != null ? v.array() : v.toDoubleArray();
+        if (precision == ProteinPrecision.DOUBLE) {
+            return new ProteinVector(levels);
+        }
+        int exceptions = 0;
+        int[] exactIndexes = new int[8];
+        double[] exactLevels = new double[8];
+        float[] floats = precision == ProteinPrecision.FLOAT32 ? new float[dimensions] : null;
+        short[] codes = floats == null ? new short[dimensions] : null;
+        for (int i = 0; i < dimensions; i++) {
+            double x = levels[i];
+            boolean keep = exact[i];
+            if (floats != null) {
+                float f = (float) x;
+                // NaN marks an exact level, and a finite level must not overflow
+                keep |= f != f || (Float.isInfinite(f) && !Double.isInfinite(x));
+                floats[i] = keep ? Float.NaN : f;
+            } else {
+                // false for NaN and levels outside the range
+                keep |= !(x >= offsets[i] && x <= offsets[i] + STEPS * scales[i]);
+                codes[i] = keep ? EXACT_CODE : (short) (Math.min(STEPS, Math.round((x - offsets[i]) / scales[i]))
+                        + Short.MIN_VALUE);
+            }
+            if (keep) {
+                if (exceptions == exactIndexes.length) {
+                    exactIndexes = Arrays.copyOf(exactIndexes, exceptions * 2);
+                    exactLevels = Arrays.copyOf(exactLevels, exceptions * 2);
+                }
+                exactIndexes[exceptions] = i;
+                exactLevels[exceptions++] = x;
+            }
+        }
+        exactIndexes = Arrays.copyOf(exactIndexes, exceptions);
+        exactLevels = Arrays.copyOf(exactLevels, exceptions);
+        return floats != null ? new ProteinVector(floats, exactIndexes, exactLevels, this)
+                : new ProteinVector(codes, exactIndexes, exactLevels, this);
+    }
+
+    /**
+     * @param index 0-based index of the protein
+     * @param code  a code other than {@link #EXACT_CODE}
+     * @return the level the code stands for
+     */
+    double decode(int index, short code) {
+        return offsets[index] + (code - Short.MIN_VALUE) * scales[index];
+    }
+}
@@ -0,0 +1,25 @@
+package backend;
+
+/**
+ * How precisely a {@link PatientCollection} keeps its patients' protein levels in memory.
+ * <p>
+ * Whatever the precision, the proteins tested by the current {@link Predictor} model when the
+ * collection is opened are kept exactly, so predictions are the same in every mode.
+ *
+ * @author Matt Ellis
+ */
+public enum ProteinPrecision {
+    /**
+     * 8 bytes per level, exactly as read
+     */
+    DOUBLE,
+    /**
+     * 4 bytes per level, rounded to the nearest float, about 7 significant digits
+     */
+    FLOAT32,
+    /**
+     * 2 bytes per level, rounded to one of 65535 steps between each protein's lowest and highest level
+     * in the collection when it was opened, with a margin; levels outside that range are kept exactly
+     */
+    QUANTIZED16
+}
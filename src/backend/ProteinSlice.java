@@ -0,0 +1,118 @@
+package backend;
+
+import java.util.Arrays;
+
+/**
+ * A patient's id, response and prediction with the levels of some of its proteins, as streamed by
+ * {@link PatientCollectionADT#streamProteins(int...)}. A lazily loaded patient's slice is read from
+ * its file level by level, without loading the patient's other proteins. Immutable.
+ *
+ * @author Matt Ellis
+ */
+public final class ProteinSlice {
+
+    private final String id;
+    private final String response;
+    private final String prediction;
+    private final int[] proteins;
+    private final double[] levels;
+
+    /**
+     * @param p        the patient
+     * @param proteins 1-based protein numbers, shared by the slices of one stream
+     * @param indexes  0-based indexes of the same proteins, or null for all
+     */
+    ProteinSlice(Patient p, int[] proteins, int[] indexes) {
+        id = p.getId();
+        response = p.getResponse();
+        prediction = p.getPredict();
+        this.proteins = proteins;
+        if (indexes == null) {
+            levels = p.getProteins().toDoubleArray();
+        } else {
+            levels = new double[indexes.length];
+            for (int i = 0; i < indexes.length; i++) {
+                levels[i] = p.getLevel(indexes[i]);
+            }
+        }
+    }
+
+    /**
+     * Checks 1-based protein numbers and converts them to 0-based indexes
+     *
+     * @param proteins 1-based protein numbers, none for all
+     * @return 0-based indexes, or null for all
+     * @throws IllegalArgumentException if a number is not that of a protein, before anything is read
+     */
+    static int[] indexes(int[] proteins) {
+        if (proteins.length == 0) {
+            return null;
+        }
+        int[] indexes = new int[proteins.length];
+        for (int i = 0; i < proteins.length; i++) {
+            if (proteins[i] < 1 || proteins[i] > PatientCsvLoader.NO_PROTEINS) {
+                throw new IllegalArgumentException("no protein " + proteins[i]);
+            }
+            indexes[i] = proteins[i] - 1;
+        }
+        return indexes;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getResponse() {
+        return response;
+    }
+
+    public String getPrediction() {
+        return prediction;
+    }
+
+    /**
+     * @return number of levels in the slice
+     */
+    public int size() {
+        return levels.length;
+    }
+
+    /**
+     * Returns the 1-based number of a protein in the slice
+     *
+     * @param i 0-based position in the slice
+     * @return protein number
+     */
+    public int getProtein(int i) {
+        return proteins.length == 0 ? i + 1 : proteins[i];
+    }
+
+    /**
+     * Returns a protein level in the slice
+     *
+     * @param i 0-based position in the slice, in the order the proteins were asked for
+     * @return the protein's expression level
+     */
+    public double getLevel(int i) {
+        return levels[i];
+    }
+
+    /**
+     * @return a copy of the levels in the slice
+     */
+    public double[] getLevels() {
+        return Arrays.copyOf(levels, levels.length);
+    }
+
+    /**
+     * The id followed by each protein and its level
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[Id] ").append(id);
+        for (int i = 0; i < levels.length; i++) {
+            sb.append(", [Protein ").append(getProtein(i)).append("] ").append(levels[i]);
+        }
+        return sb.append('\n').toString();
+    }
+}
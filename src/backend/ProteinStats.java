@@ -0,0 +1,96 @@
+package backend;
+
+/**
+ * Summary of one protein's expression levels over a group of patients, as computed by
+ * {@link CohortStatistics}. Immutable.
+ *
+ * @author Matt Ellis
+ */
+public final class ProteinStats {
+
+    private final int protein;
+    private final long count;
+    private final double mean;
+    private final double m2;
+    private final double min;
+    private final double max;
+    private final TDigest digest;
+
+    ProteinStats(int protein, long count, double mean, double m2, double min, double max, TDigest digest) {
+        this.protein = protein;
+        this.count = count;
+        this.mean = mean;
+        this.m2 = m2;
+        this.min = min;
+        this.max = max;
+        this.digest = digest;
+    }
+
+    /**
+     * @return 1-based protein number
+     */
+    public int getProtein() {
+        return protein;
+    }
+
+    /**
+     * @return number of patients summarized
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return mean level, NaN if there are no patients
+     */
+    public double getMean() {
+        return count > 0 ? mean : Double.NaN;
+    }
+
+    /**
+     * @return sample variance of the levels, NaN if there are fewer than two patients
+     */
+    public double getVariance() {
+        return count > 1 ? Math.max(0, m2 / (count - 1)) : Double.NaN;
+    }
+
+    public double getStandardDeviation() {
+        return Math.sqrt(getVariance());
+    }
+
+    /**
+     * @return lowest level, NaN if there are no patients
+     */
+    public double getMin() {
+        return count > 0 ? min : Double.NaN;
+    }
+
+    /**
+     * @return highest level, NaN if there are no patients
+     */
+    public double getMax() {
+        return count > 0 ? max : Double.NaN;
+    }
+
+    /**
+     * Returns an approximate quantile of the levels, estimated with a t-digest
+     *
+     * @param q quantile between 0 and 1, e.g. 0.5 for the median
+     * @return estimated level, NaN if there are no patients
+     */
+    public double getQuantile(double q) {
+        synchronized (digest) {
+            return digest.quantile(q);
+        }
+    }
+
+    public double getMedian() {
+        return getQuantile(0.5);
+    }
+
+    @Override
+    public String toString() {
+        return "[Protein " + protein + "] n=" + count + ", mean=" + getMean() + ", sd=" + getStandardDeviation()
+                + ", min=" + getMin() + ", median=" + getMedian() + ", max=" + getMax();
+    }
+}
@@ -0,0 +1,170 @@
+package backend;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * A read-only view of a patient's normalized protein expression levels.
+ * <p>
+ * Levels are held in a primitive double array, so a patient costs one array of 4776 doubles
+ * rather than 4776 boxed Double objects. The view still behaves as a List&lt;Double&gt; so
+ * existing callers can iterate it, but hot paths should use {@link #getLevel(int)} to avoid boxing.
+ * <p>
+ * A collection opened with a lower {@link ProteinPrecision} holds its levels in a float or short
+ * array instead, made by a {@link ProteinEncoder}. Such a vector decodes each level as it is read,
+ * except for the few levels it keeps exactly.
+ *
+ * @author Matt Ellis
+ */
+public final class ProteinVector extends AbstractList<Double> implements RandomAccess {
+    // exactly one of levels, floats and codes is set
+    private final double[] levels;
+    private final float[] floats;
+    private final short[] codes;
+    // levels not held in floats or codes, by ascending index
+    private final int[] exactIndexes;
+    private final double[] exactLevels;
+    private final ProteinEncoder encoder;
+
+    /**
+     * Wraps an array of protein levels. The array is not copied and must not be modified afterwards.
+     *
+     * @param levels protein levels, index 0 holding protein 1
+     */
+    public ProteinVector(double[] levels) {
+        this(levels, null, null, null, null, null);
+    }
+
+    ProteinVector(float[] floats, int[] exactIndexes, double[] exactLevels, ProteinEncoder encoder) {
+        this(null, floats, null, exactIndexes, exactLevels, encoder);
+    }
+
+    ProteinVector(short[] codes, int[] exactIndexes, double[] exactLevels, ProteinEncoder encoder) {
+        this(null, null, codes, exactIndexes, exactLevels, encoder);
+    }
+
+    private ProteinVector(double[] levels, float[] floats, short[] codes, int[] exactIndexes, double[] exactLevels,
+                          ProteinEncoder encoder) {
+        this.levels = levels;
+        this.floats = floats;
+        this.codes = codes;
+        this.exactIndexes = exactIndexes;
+        this.exactLevels = exactLevels;
+        this.encoder = encoder;
+    }
+
+    /**
+     * Returns the level of a protein without boxing
+     *
+     * @param index 0-based index of the protein
+     * @return the protein's expression level
+     */
+    public double getLevel(int index) {
+        if (levels != null) {
+            return levels[index];
+        }
+        if (floats != null) {
+            float f = floats[index];
+            return f == f ? f : exactLevel(index);
+        }
+        short code = codes[index];
+        return code != ProteinEncoder.EXACT_CODE ? encoder.decode(index, code) : exactLevel(index);
+    }
+
+    private double exactLevel(int index) {
+        return exactLevels[Arrays.binarySearch(exactIndexes, index)];
+    }
+
+    /**
+     * Returns the level of a protein exactly as it was given, for predictions that must not depend on
+     * the precision it is held at
+     *
+     * @param index 0-based index of the protein
+     * @return the protein's expression level
+     * @throws IllegalStateException if the level is only held at a lower precision
+     */
+    double getExactLevel(int index) {
+        if (levels != null) {
+            return levels[index];
+        }
+        boolean rounded = floats != null ? floats[index] == floats[index] : codes[index] != ProteinEncoder.EXACT_CODE;
+        if (rounded) {
+            throw new IllegalStateException("protein " + (index + 1) + " is only held at " + encoder.getPrecision());
+        }
+        return exactLevel(index);
+    }
+
+    /**
+     * Returns a copy of the protein levels
+     *
+     * @return protein levels, index 0 holding protein 1
+     */
+    public double[] toDoubleArray() {
+        if (levels != null) {
+            return Arrays.copyOf(levels, levels.length);
+        }
+        double[] copy = new double[size()];
+        decode(copy);
+        return copy;
+    }
+
+    /**
+     * Returns the protein levels without copying, for loops that read every level. The array must
+     * not be modified.
+     *
+     * @return protein levels, index 0 holding protein 1, or null if the levels are not held as doubles
+     */
+    double[] array() {
+        return levels;
+    }
+
+    /**
+     * Copies the protein levels into an array, decoding them if they are not held as doubles
+     *
+     * @param into array of at least {@link #size()} levels
+     */
+    void decode(double[] into) {
+        if (levels != null) {
+            System.arraycopy(levels, 0, into, 0, levels.length);
+        } else if (floats != null) {
+            for (int i = 0; i < floats.length; i++) {
+                into[i] = floats[i];
+            }
+        } else {
+            for (int i = 0; i < codes.length; i++) {
+                into[i] = encoder.decode(i, codes[i]);
+            }
+        }
+        if (exactIndexes != null) {
+            for (int i = 0; i < exactIndexes.length; i++) {
+                into[exactIndexes[i]] = exactLevels[i];
+            }
+        }
+    }
+
+    /**
+     * @return the encoder that made this vector, or null if it holds doubles as given
+     */
+    ProteinEncoder getEncoder() {
+        return encoder;
+    }
+
+    /**
+     * @return how precisely the levels are held
+     */
+    public ProteinPrecision getPrecision() {
+        return levels != null ? ProteinPrecision.DOUBLE
+                : floats != null ? ProteinPrecision.FLOAT32 : ProteinPrecision.QUANTIZED16;
+    }
+
+    @Override
+    public Double get(int index) {
+        return getLevel(index);
+    }
+
+    @Override
+    public int size() {
+        return levels != null ? levels.length : floats != null ? floats.length : codes.length;
+    }
+}
@@ -0,0 +1,217 @@
+package backend;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Answers {@link PatientQuery} searches from secondary indexes over a dense snapshot of a collection.
+ * <p>
+ * The snapshot numbers the patients 0..n-1 in ascending id order. Responses and predictions are
+ * indexed as one bitmap of patient numbers per label. A protein is indexed on first use by sorting
+ * its levels together with the patient numbers, so a range condition becomes two binary searches.
+ * <p>
+ * A query starts from the bitmaps of its label conditions, then walks only the patients inside the
+ * most selective protein range, checking the other ranges on each of them. When even that range
+ * holds more than a quarter of the patients, visiting them in index order costs more than reading
+ * every patient in order, so the snapshot is scanned instead. The bitmap of matches is read in
+ * order, which yields the patients in ascending id order without sorting.
+ * <p>
+ * The snapshot does not follow changes to the collection; the collection discards its engine when it
+ * changes. Not thread-safe.
+ *
+ * @author Matt Ellis
+ */
+final class QueryEngine {
+
+    // a range holding more than 1 / SCAN_FRACTION of the patients is answered by a scan
+    private static final int SCAN_FRACTION = 4;
+
+    private final Patient[] patients;
+    private final HashMap<String, BitSet> responses = new HashMap<>();
+    private final HashMap<String, BitSet> predictions = new HashMap<>();
+    private final SortedLevels[] indexes;
+
+    /**
+     * @param patients     the collection's patients in ascending id order
+     * @param proteinCount proteins per patient
+     */
+    QueryEngine(List<Patient> patients, int proteinCount) {
+        this.patients = patients.toArray(new Patient[0]);
+        this.indexes = new SortedLevels[proteinCount];
+        for (int i = 0; i < this.patients.length; i++) {
+            responses.computeIfAbsent(this.patients[i].getResponse(), k -> new BitSet()).set(i);
+            predictions.computeIfAbsent(this.patients[i].getPredict(), k -> new BitSet()).set(i);
+        }
+    }
+
+    /**
+     * Answers a query
+     *
+     * @param query conditions and projection
+     * @return matching patients in ascending id order
+     */
+    QueryResult execute(PatientQuery query) {
+        BitSet labels = null;
+        if (query.getResponse() != null) {
+            labels = (BitSet) responses.getOrDefault(query.getResponse(), new BitSet()).clone();
+        }
+        if (query.getPrediction() != null) {
+            BitSet predicted = predictions.getOrDefault(query.getPrediction(), new BitSet());
+            if (labels == null) {
+                labels = (BitSet) predicted.clone();
+            } else {
+                labels.and(predicted);
+            }
+        }
+
+        BitSet matches;
+        List<PatientQuery.Range> ranges = query.getRanges();
+        if (ranges.isEmpty()) {
+            matches = labels;
+            if (matches == null) {
+                matches = new BitSet();
+                matches.set(0, patients.length);
+            }
+        } else {
+            // walk the narrowest range and check everything else on each patient in it
+            PatientQuery.Range narrowest = null;
+            int from = 0;
+            int to = patients.length;
+            for (PatientQuery.Range range : ranges) {
+                SortedLevels index = index(range.protein);
+                int lo = index.lowerBound(range);
+                int hi = index.upperBound(range);
+                if (narrowest == null || Math.max(0, hi - lo) < to - from) {
+                    narrowest = range;
+                    from = lo;
+                    to = Math.max(lo, hi);
+                }
+            }
+            SortedLevels index = indexes[narrowest.protein];
+            matches = new BitSet(patients.length);
+            if (to - from > patients.length / SCAN_FRACTION) {
+                for (int patient = 0; patient < patients.length; patient++) {
+                    if ((labels == null || labels.get(patient)) && matchesRanges(patients[patient], ranges, null)) {
+                        matches.set(patient);
+                    }
+                }
+            } else {
+                for (int i = from; i < to; i++) {
+                    int patient = index.patients[i];
+                    if ((labels == null || labels.get(patient)) && matchesRanges(patients[patient], ranges, narrowest)) {
+                        matches.set(patient);
+                    }
+                }
+            }
+        }
+
+        QueryResult.Builder result = new QueryResult.Builder(query.getProjection());
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+            Patient p = patients[i];
+            result.add(p.getId(), p.getResponse(), p.getPredict(), p::getLevel);
+        }
+        return result.build();
+    }
+
+    private static boolean matchesRanges(Patient p, List<PatientQuery.Range> ranges, PatientQuery.Range skip) {
+        for (PatientQuery.Range range : ranges) {
+            if (range != skip && !range.test(p.getLevel(range.protein))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private SortedLevels index(int protein) {
+        if (indexes[protein] == null) {
+            double[] levels = new double[patients.length];
+            for (int i = 0; i < levels.length; i++) {
+                levels[i] = patients[i].getLevel(protein);
+            }
+            indexes[protein] = new SortedLevels(levels);
+        }
+        return indexes[protein];
+    }
+
+    /**
+     * One protein's levels in ascending order, next to the number of the patient each belongs to
+     */
+    private static final class SortedLevels {
+        final double[] levels;
+        final int[] patients;
+
+        SortedLevels(double[] unsorted) {
+            int n = unsorted.length;
+            double[] keys = unsorted.clone();
+            int[] rows = new int[n];
+            for (int i = 0; i < n; i++) {
+                rows[i] = i;
+            }
+            // bottom-up merge sort of the levels, carrying the patient numbers along
+            double[] keyBuf = new double[n];
+            int[] rowBuf = new int[n];
+            for (int width = 1; width < n; width *= 2) {
+                for (int lo = 0; lo < n; lo += 2 * width) {
+                    int mid = Math.min(lo + width, n);
+                    int hi = Math.min(lo + 2 * width, n);
+                    int i = lo;
+                    int j = mid;
+                    for (int k = lo; k < hi; k++) {
+                        if (j >= hi || (i < mid && Double.compare(keys[i], keys[j]) <= 0)) {
+                            keyBuf[k] = keys[i];
+                            rowBuf[k] = rows[i++];
+                        } else {
+                            keyBuf[k] = keys[j];
+                            rowBuf[k] = rows[j++];
+                        }
+                    }
+                }
+                double[] swapKeys = keys;
+                keys = keyBuf;
+                keyBuf = swapKeys;
+                int[] swapRows = rows;
+                rows = rowBuf;
+                rowBuf = swapRows;
+            }
+            levels = keys;
+            patients = rows;
+        }
+
+        /**
+         * Returns the first position whose level is not below the range
+         */
+        int lowerBound(PatientQuery.Range range) {
+            int lo = 0;
+            int hi = levels.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                boolean below = range.minInclusive ? levels[mid] < range.min : levels[mid] <= range.min;
+                if (below) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        /**
+         * Returns the first position whose level is above the range
+         */
+        int upperBound(PatientQuery.Range range) {
+            int lo = 0;
+            int hi = levels.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                boolean inOrBelow = range.maxInclusive ? levels[mid] <= range.max : levels[mid] < range.max;
+                if (inOrBelow) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package backend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * The patients matching a {@link PatientQuery}, in ascending id order, with their response,
+ * prediction and the protein levels the query selected. Immutable.
+ *
+ * @author Matt Ellis
+ */
+public final class QueryResult {
+
+    private final int[] proteins;
+    private final String[] ids;
+    private final String[] responses;
+    private final String[] predictions;
+    private final double[][] levels;
+
+    private QueryResult(Builder builder) {
+        proteins = builder.proteins;
+        ids = builder.ids.toArray(new String[0]);
+        responses = builder.responses.toArray(new String[0]);
+        predictions = builder.predictions.toArray(new String[0]);
+        levels = builder.levels.toArray(new double[0][]);
+    }
+
+    /**
+     * @return number of matching patients
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    public String getId(int row) {
+        return ids[row];
+    }
+
+    public String getResponse(int row) {
+        return responses[row];
+    }
+
+    public String getPrediction(int row) {
+        return predictions[row];
+    }
+
+    /**
+     * Returns a selected protein level of a matching patient
+     *
+     * @param row     0-based position in the result
+     * @param protein 1-based protein number, one of {@link #getProteins()}
+     * @return the protein's expression level
+     */
+    public double getLevel(int row, int protein) {
+        for (int i = 0; i < proteins.length; i++) {
+            if (proteins[i] == protein) {
+                return levels[row][i];
+            }
+        }
+        throw new IllegalArgumentException("protein " + protein + " was not selected");
+    }
+
+    /**
+     * @return the selected 1-based protein numbers
+     */
+    public int[] getProteins() {
+        return proteins.clone();
+    }
+
+    /**
+     * @return ids of the matching patients in ascending order
+     */
+    public ArrayList<String> getIds() {
+        return new ArrayList<>(Arrays.asList(ids));
+    }
+
+    /**
+     * One line per matching patient with its id, response, prediction and selected proteins
+     *
+     * @return string representation
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int row = 0; row < ids.length; row++) {
+            sb.append("[Id] ").append(ids[row]).append(", [Response] ").append(responses[row])
+                    .append(", [Predicted] ").append(predictions[row]);
+            for (int i = 0; i < proteins.length; i++) {
+                sb.append(", [Protein ").append(proteins[i]).append("] ").append(levels[row][i]);
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Merges results of the same query over collections with no patients in common, such as the
+     * shards of a {@link ShardedPatientCollection}
+     *
+     * @param parts results in ascending id order, all with the same selected proteins
+     * @return the matching patients of every part in ascending id order
+     */
+    static QueryResult merge(List<QueryResult> parts) {
+        if (parts.size() == 1) {
+            return parts.get(0);
+        }
+        Builder merged = new Builder(parts.isEmpty() ? new int[0] : parts.get(0).proteins);
+        int[] next = new int[parts.size()];
+        while (true) {
+            int first = -1;
+            for (int i = 0; i < parts.size(); i++) {
+                QueryResult part = parts.get(i);
+                if (next[i] < part.ids.length && (first < 0 || SortedIdIndex.ID_ORDER.compare(part.ids[next[i]],
+                        parts.get(first).ids[next[first]]) < 0)) {
+                    first = i;
+                }
+            }
+            if (first < 0) {
+                return merged.build();
+            }
+            QueryResult part = parts.get(first);
+            int row = next[first]++;
+            merged.ids.add(part.ids[row]);
+            merged.responses.add(part.responses[row]);
+            merged.predictions.add(part.predictions[row]);
+            merged.levels.add(part.levels[row]);
+        }
+    }
+
+    /**
+     * Collects matching patients in ascending id order
+     */
+    static final class Builder {
+        private final int[] proteins;
+        private final List<String> ids = new ArrayList<>();
+        private final List<String> responses = new ArrayList<>();
+        private final List<String> predictions = new ArrayList<>();
+        private final List<double[]> levels = new ArrayList<>();
+
+        /**
+         * @param proteins selected 1-based protein numbers
+         */
+        Builder(int[] proteins) {
+            this.proteins = proteins;
+        }
+
+        /**
+         * @param level the patient's level of a 0-based protein
+         */
+        void add(String id, String response, String prediction, IntToDoubleFunction level) {
+            ids.add(id);
+            responses.add(response);
+            predictions.add(prediction);
+            double[] selected = new double[proteins.length];
+            for (int i = 0; i < proteins.length; i++) {
+                selected[i] = level.applyAsDouble(proteins[i] - 1);
+            }
+            levels.add(selected);
+        }
+
+        QueryResult build() {
+            return new QueryResult(this);
+        }
+    }
+}
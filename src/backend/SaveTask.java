@@ -0,0 +1,134 @@
+package backend;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * One save of a {@link PatientCollection}, prepared on the thread that owns the collection and run on
+ * any thread, so a long save need not hold up the user interface.
+ * <p>
+ * A save either forces the collection's change log to disk or rewrites the collection file, as csv,
+ * as a {@link PatientBinaryFile} or as a {@link PatientArchive}. A rewrite writes copies of the
+ * patients taken when the task was created, so the collection can be
+ * changed while the file is written. Changes logged in the meantime keep the log from being emptied
+ * afterwards, see {@link PatientChangeLog#truncate(long)}.
+ *
+ * @author Matt Ellis
+ */
+public final class SaveTask {
+    private static final String LOG_SUFFIX = ".log";
+
+    private final String fileName;
+    private final Format format;
+    private final List<Patient> patients;
+    private final PatientChangeLog changeLog;
+    private final long logMark;
+
+    /**
+     * Formats a collection file can be rewritten in
+     */
+    enum Format {
+        CSV, BINARY, ARCHIVE;
+
+        /**
+         * @param fileName a collection file
+         * @return the file's format, csv if it does not exist
+         */
+        static Format of(String fileName) {
+            if (PatientBinaryFile.isBinaryFile(fileName)) {
+                return BINARY;
+            }
+            return PatientArchive.isArchive(fileName) ? ARCHIVE : CSV;
+        }
+    }
+
+    /**
+     * @param fileName  file to rewrite, or null to only force the change log to disk
+     * @param format    format to rewrite the file in
+     * @param patients  copies of the patients to write
+     * @param changeLog log of changes already in the written file, or null if the file has no log
+     * @param logMark   {@link PatientChangeLog#mark()} when the patients were copied
+     */
+    SaveTask(String fileName, Format format, List<Patient> patients, PatientChangeLog changeLog, long logMark) {
+        this.fileName = fileName;
+        this.format = format;
+        this.patients = patients;
+        this.changeLog = changeLog;
+        this.logMark = logMark;
+    }
+
+    /**
+     * @return true if the task rewrites the collection file rather than only forcing the change log
+     */
+    public boolean isRewrite() {
+        return fileName != null;
+    }
+
+    /**
+     * @return number of patients the task writes
+     */
+    public int getRowCount() {
+        return patients == null ? 0 : patients.size();
+    }
+
+    /**
+     * Saves the collection. A failed or stopped rewrite leaves the previous file in place.
+     *
+     * @param monitor told the rows and bytes written so far and able to stop the rewrite, or null;
+     *                binary files and archives are written in one step, without progress
+     * @return true if the collection was saved
+     */
+    public boolean run(ProgressMonitor monitor) {
+        long start = CollectionMetrics.get().start();
+        if (fileName == null) {
+            try {
+                changeLog.sync();
+                CollectionMetrics.get().saved(start, 0);
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Didn't save to " + changeLog.getPath());
+                return false;
+            }
+        }
+        long written;
+        try {
+            written = write(monitor);
+        } catch (CancellationException e) {
+            return false;
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            System.err.println("Didn't save to " + fileName);
+            return false;
+        }
+        if (changeLog == null) {
+            // a change log left next to the file by another collection no longer applies to it
+            new File(fileName + LOG_SUFFIX).delete();
+        } else {
+            try {
+                changeLog.truncate(logMark);
+            } catch (IOException e) {
+                // the log is replayed onto the rewritten file on the next start, which is harmless
+                e.printStackTrace();
+                System.err.println("could not truncate " + changeLog.getPath());
+            }
+        }
+        CollectionMetrics.get().saved(start, written);
+        return true;
+    }
+
+    private long write(ProgressMonitor monitor) throws IOException {
+        switch (format) {
+            case BINARY:
+                PatientBinaryFile.write(fileName, PatientCsvLoader.NO_PROTEINS, patients);
+                return new File(fileName).length();
+            case ARCHIVE:
+                PatientArchive.write(fileName, PatientCsvLoader.NO_PROTEINS, patients);
+                return new File(fileName).length();
+            default:
+                return new PatientCsvWriter(fileName).write(patients, monitor);
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package backend;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * A patient collection split into shards, each a journaled {@link PatientCollection} with its own
+ * collection file, e.g. one per study site, that can be used as one collection.
+ * <p>
+ * Every id belongs to one shard, chosen by hashing the id or by comparing it with split ids in
+ * ascending id order. Lookups and updates go to that shard only. Listing ids, printing and queries
+ * run on all shards at once on the common ForkJoinPool and merge the shards' results in ascending
+ * id order. The shard files are read at the same time when the collection is built, and each shard
+ * is saved on its own, so a large shard holds up neither the others' loading nor their saving.
+ * <p>
+ * A patient found in a shard file it does not belong to when the collection is built is moved to
+ * its shard, and is saved there from then on.
+ * <p>
+ * Each shard is guarded by its own lock, so the collection can be used from several threads and
+ * threads working on different shards do not wait for each other. Results that span shards are not
+ * a snapshot: changes made while they are gathered may show in some shards and not in others.
+ *
+ * @author Matt Ellis
+ */
+public class ShardedPatientCollection implements PatientCollectionADT {
+
+    private static final int FORWARD_CAPACITY = 1024;
+    private final String[] files;
+    private final PatientCollection[] shards;
+    private final ToIntFunction<String> router;
+    private final ForkJoinPool pool = ForkJoinPool.commonPool();
+    private final PatientChangeSupport changes = new PatientChangeSupport();
+    // feeds carrying each shard's changes to this collection's feeds, opened with the first feed
+    private PatientChangeFeed[] forwards;
+
+    private ShardedPatientCollection(List<String> files, ToIntFunction<String> router) {
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException("a sharded collection needs at least one file");
+        }
+        this.files = files.toArray(new String[0]);
+        this.router = router;
+        this.shards = new PatientCollection[this.files.length];
+        fanOut(shard -> shards[shard] = PatientCollection.openOrCreate(this.files[shard]));
+        for (int shard = 0; shard < shards.length; shard++) {
+            for (String id : shards[shard].getIds()) {
+                int home = router.applyAsInt(id);
+                if (home != shard) {
+                    Patient p = shards[shard].removePatient(id);
+                    if (!shards[home].addPatient(p)) {
+                        System.err.println("patient " + id + " is in both " + this.files[shard] + " and "
+                                + this.files[home] + ", keeping the one in " + this.files[home]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds a collection whose patients are spread over the files by a hash of their ids
+     *
+     * @param files one csv or binary collection file per shard; a missing file starts an empty shard
+     * @return the collection
+     */
+    public static ShardedPatientCollection hashed(List<String> files) {
+        int n = files.size();
+        return new ShardedPatientCollection(files, id -> Math.floorMod(id.hashCode(), n));
+    }
+
+    /**
+     * Builds a collection whose patients are spread over the files by ranges of ids, in the order of
+     * {@link #getIds()}: the first shard holds the ids before the first split id, the second the ids
+     * from the first split id up to the second, and so on
+     *
+     * @param files    one csv or binary collection file per shard; a missing file starts an empty shard
+     * @param splitIds first id of each shard but the first, in ascending id order
+     * @return the collection
+     */
+    public static ShardedPatientCollection ranged(List<String> files, List<String> splitIds) {
+        if (splitIds.size() != files.size() - 1) {
+            throw new IllegalArgumentException(files.size() + " shards need " + (files.size() - 1)
+                    + " split ids, got " + splitIds.size());
+        }
+        String[] splits = splitIds.toArray(new String[0]);
+        for (int i = 1; i < splits.length; i++) {
+            if (SortedIdIndex.ID_ORDER.compare(splits[i - 1], splits[i]) >= 0) {
+                throw new IllegalArgumentException("split ids are not in ascending order: " + splitIds);
+            }
+        }
+        return new ShardedPatientCollection(files, id -> {
+            int shard = Arrays.binarySearch(splits, id, SortedIdIndex.ID_ORDER);
+            // a split id starts its shard, any other id belongs to the shard before its insertion point
+            return shard >= 0 ? shard + 1 : -shard - 1;
+        });
+    }
+
+    /**
+     * @return number of shards
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @param id patient's id
+     * @return 0-based shard the patient belongs to, whether or not it exists
+     */
+    public int getShard(String id) {
+        return router.applyAsInt(id);
+    }
+
+    /**
+     * @param shard 0-based shard
+     * @return the shard's collection file
+     */
+    public String getShardFile(int shard) {
+        return files[shard];
+    }
+
+    /**
+     * @param shard 0-based shard
+     * @return number of patients in the shard
+     */
+    public int getShardSize(int shard) {
+        synchronized (shards[shard]) {
+            return shards[shard].size();
+        }
+    }
+
+    /**
+     * Given a patient's id returns the patient from its shard
+     *
+     * @param id patient's id
+     * @return the Patient or null if Patient does not exist
+     */
+    @Override
+    public Patient getPatient(String id) {
+        PatientCollection shard = shards[router.applyAsInt(id)];
+        synchronized (shard) {
+            return shard.getPatient(id);
+        }
+    }
+
+    /**
+     * Given a patient's id removes the patient from its shard
+     *
+     * @param id patient's id
+     * @return the Patient or null if Patient does not exist
+     */
+    @Override
+    public Patient removePatient(String id) {
+        PatientCollection shard = shards[router.applyAsInt(id)];
+        synchronized (shard) {
+            return shard.removePatient(id);
+        }
+    }
+
+    /**
+     * Sets the treatment response field for the patient with given id.
+     *
+     * @param id     patient's id
+     * @param result patient's response
+     */
+    @Override
+    public void setResultForPatient(String id, String result) {
+        PatientCollection shard = shards[router.applyAsInt(id)];
+        synchronized (shard) {
+            shard.setResultForPatient(id, result);
+        }
+    }
+
+    /**
+     * Adds a patient to its shard unless its id is already taken
+     *
+     * @param p patient to add
+     * @return false if a patient with the same id already exists
+     */
+    public boolean addPatient(Patient p) {
+        PatientCollection shard = shards[router.applyAsInt(p.getId())];
+        synchronized (shard) {
+            return shard.addPatient(p);
+        }
+    }
+
+    /**
+     * Returns the ids of every shard merged in ascending order
+     *
+     * @return list of patient ids
+     */
+    @Override
+    public ArrayList<String> getIds() {
+        List<ArrayList<String>> ids = fanOut(shard -> {
+            synchronized (shards[shard]) {
+                return shards[shard].getIds();
+            }
+        });
+        ArrayList<String> merged = new ArrayList<>();
+        int[] next = new int[ids.size()];
+        while (true) {
+            int first = -1;
+            for (int i = 0; i < ids.size(); i++) {
+                if (next[i] < ids.get(i).size() && (first < 0 || SortedIdIndex.ID_ORDER.compare(
+                        ids.get(i).get(next[i]), ids.get(first).get(next[first])) < 0)) {
+                    first = i;
+                }
+            }
+            if (first < 0) {
+                return merged;
+            }
+            merged.add(ids.get(first).get(next[first]++));
+        }
+    }
+
+    /**
+     * Imports patients from a file into their shards, reporting errors like
+     * {@link PatientCollection#addPatientsFromFile(String)}
+     *
+     * @param fileName a csv file
+     * @return if an error occurs, returns the error
+     */
+    @Override
+    public String addPatientsFromFile(String fileName) {
+        long start = CollectionMetrics.get().start();
+        StringBuilder toReturn = new StringBuilder();
+        try (PatientFileImport lines = new PatientFileImport(fileName)) {
+            PatientFileImport.Batch batch;
+            while ((batch = lines.next(256)) != null) {
+                for (int i = 0; i < batch.size; i++) {
+                    Patient p = batch.patients[i];
+                    int line = batch.firstLine + i;
+                    if (p == null) {
+                        toReturn.append(PatientCsvLoader.formatError(line));
+                    } else if (!addPatient(p)) {
+                        toReturn.append(PatientCsvLoader.duplicateError(line, p.getId()));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.err.println(
+                    "there was a problem with the file reader, try again.  either no such file or format error");
+            CollectionMetrics.get().fileUnreadable();
+        }
+        CollectionMetrics.get().imported(start, new File(fileName).length());
+        return toReturn.toString();
+    }
+
+    /**
+     * Answers a query on every shard at once, using each shard's indexes
+     *
+     * @param query conditions and selected proteins
+     * @return matching patients of all shards in ascending id order
+     */
+    @Override
+    public QueryResult query(PatientQuery query) {
+        return QueryResult.merge(fanOut(shard -> {
+            synchronized (shards[shard]) {
+                return shards[shard].query(query);
+            }
+        }));
+    }
+
+    /**
+     * Re-runs the predictor for every patient, one shard per thread
+     */
+    public void rescoreAll() {
+        fanOut(shard -> {
+            synchronized (shards[shard]) {
+                shards[shard].rescoreAll();
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public PatientChangeFeed subscribe(int capacity, Executor executor, PatientChangeFeed.Handler handler) {
+        synchronized (changes) {
+            if (forwards == null) {
+                forwards = new PatientChangeFeed[shards.length];
+                for (int shard = 0; shard < shards.length; shard++) {
+                    synchronized (shards[shard]) {
+                        // delivered on the thread that made the change, which only queues it on the feeds here
+                        forwards[shard] = shards[shard].subscribe(FORWARD_CAPACITY, Runnable::run, (batch, resync) -> {
+                            if (resync) {
+                                // the shard's changes were lost, so every consumer must read the collection again
+                                changes.resync();
+                            }
+                            for (PatientChange change : batch) {
+                                changes.fire(change.getType(), change.getId(), change.getValue());
+                            }
+                        });
+                    }
+                }
+            }
+        }
+        return changes.subscribe(capacity, executor, handler);
+    }
+
+    /**
+     * Saves every shard at the same time, see {@link PatientCollection#writeFile()}
+     *
+     * @return true if every shard was saved
+     */
+    public boolean writeFile() {
+        boolean saved = true;
+        for (boolean shardSaved : fanOut(this::writeShard)) {
+            saved &= shardSaved;
+        }
+        return saved;
+    }
+
+    /**
+     * Saves one shard. Its patients are copied under the shard's lock and written without it, so
+     * the shard can be used while it is saved.
+     *
+     * @param shard 0-based shard
+     * @return true if the shard was saved
+     */
+    public boolean writeShard(int shard) {
+        SaveTask save;
+        synchronized (shards[shard]) {
+            save = shards[shard].newSaveTask();
+        }
+        return save.run(null);
+    }
+
+    /**
+     * A string representation of every shard's patients in ascending id order
+     *
+     * @return string representation
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (String id : getIds()) {
+            Patient p = getPatient(id);
+            if (p != null) {
+                sb.append(p);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Runs a task for each shard on the pool and waits for all of them
+     *
+     * @return the results by shard
+     */
+    private <T> List<T> fanOut(IntFunction<T> task) {
+        List<CompletableFuture<T>> running = new ArrayList<>(shards.length);
+        for (int shard = 0; shard < shards.length; shard++) {
+            int s = shard;
+            running.add(CompletableFuture.supplyAsync(() -> task.apply(s), pool));
+        }
+        List<T> results = new ArrayList<>(shards.length);
+        for (CompletableFuture<T> result : running) {
+            results.add(result.join());
+        }
+        return results;
+    }
+}
@@ -0,0 +1,143 @@
+package backend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Patient ids kept in ascending numeric order as they are added and removed.
+ * <p>
+ * Ids are held in a sorted array next to their parsed numeric values, so listing them in order is a
+ * copy of the array instead of a parse and sort of every id. Adding or removing an id is a binary
+ * search plus an array shift; ids arriving in ascending order, as they do in patient files, are
+ * appended without shifting.
+ * <p>
+ * Ids that are not integers sort after all numeric ids. Not thread-safe.
+ *
+ * @author Matt Ellis
+ */
+final class SortedIdIndex {
+
+    /**
+     * Numeric order of patient ids, with non-numeric ids last in String order
+     */
+    static final Comparator<String> ID_ORDER = (a, b) -> {
+        int c = Long.compare(key(a), key(b));
+        return c != 0 ? c : a.compareTo(b);
+    };
+
+    private static final long NOT_NUMERIC = Long.MAX_VALUE;
+    private long[] keys = new long[16];
+    private String[] ids = new String[16];
+    private int size;
+
+    /**
+     * Adds an id to the index
+     *
+     * @param id patient id
+     * @return false if the id was already in the index
+     */
+    boolean add(String id) {
+        long key = key(id);
+        int pos = size > 0 && compare(size - 1, key, id) < 0 ? -(size + 1) : search(key, id);
+        if (pos >= 0) {
+            return false;
+        }
+        pos = -(pos + 1);
+        if (size == ids.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        System.arraycopy(keys, pos, keys, pos + 1, size - pos);
+        System.arraycopy(ids, pos, ids, pos + 1, size - pos);
+        keys[pos] = key;
+        ids[pos] = id;
+        size++;
+        return true;
+    }
+
+    /**
+     * Removes an id from the index
+     *
+     * @param id patient id
+     * @return false if the id was not in the index
+     */
+    boolean remove(String id) {
+        int pos = search(key(id), id);
+        if (pos < 0) {
+            return false;
+        }
+        System.arraycopy(keys, pos + 1, keys, pos, size - pos - 1);
+        System.arraycopy(ids, pos + 1, ids, pos, size - pos - 1);
+        size--;
+        ids[size] = null;
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the id at a position in ascending order
+     *
+     * @param i position between 0 and size() - 1
+     * @return patient id
+     */
+    String get(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("index " + i + ", size " + size);
+        }
+        return ids[i];
+    }
+
+    /**
+     * Returns the position of an id in ascending order
+     *
+     * @param id patient id
+     * @return position, or a negative number if the id is not in the index
+     */
+    int indexOf(String id) {
+        int pos = search(key(id), id);
+        return pos >= 0 ? pos : -1;
+    }
+
+    /**
+     * Returns the ids in ascending order
+     *
+     * @return a new list of patient ids
+     */
+    ArrayList<String> toList() {
+        return new ArrayList<>(Arrays.asList(ids).subList(0, size));
+    }
+
+    private int search(long key, String id) {
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compare(mid, key, id);
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    private int compare(int pos, long key, String id) {
+        int c = Long.compare(keys[pos], key);
+        return c != 0 ? c : ids[pos].compareTo(id);
+    }
+
+    private static long key(String id) {
+        try {
+            return Long.parseLong(id);
+        } catch (NumberFormatException e) {
+            return NOT_NUMERIC;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package backend;
+
+import java.util.Arrays;
+
+/**
+ * A merging t-digest: a mergeable sketch of a distribution that answers quantile queries with
+ * small error at the tails and modest error in the middle, in space bounded by the compression.
+ * <p>
+ * Values are buffered and periodically sorted and merged into centroids (a mean and a weight).
+ * Centroids may only grow as large as the arcsine scale function allows at their position, so
+ * centroids near the minimum and maximum stay small. Digests built on separate threads can be
+ * merged. A digest cannot forget values; it has to be rebuilt after removals.
+ * Not thread-safe.
+ *
+ * @author Matt Ellis
+ */
+final class TDigest {
+
+    static final double DEFAULT_COMPRESSION = 100;
+    private static final int MIN_BUFFER = 8;
+
+    private final double compression;
+    private final int bufferLimit;
+    // sine and cosine of the arcsine scale function's step of one unit of k
+    private final double stepSin;
+    private final double stepCos;
+    private double[] means = new double[0];
+    private double[] weights = new double[0];
+    private int centroids;
+    private double[] buffer = new double[MIN_BUFFER];
+    private int buffered;
+    private double totalWeight;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    TDigest() {
+        this(DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param compression roughly the number of centroids kept; larger is more accurate
+     */
+    TDigest(double compression) {
+        this.compression = compression;
+        this.bufferLimit = (int) (compression * 5);
+        this.stepSin = Math.sin(2 * Math.PI / compression);
+        this.stepCos = Math.cos(2 * Math.PI / compression);
+    }
+
+    private TDigest(TDigest other) {
+        this.compression = other.compression;
+        this.bufferLimit = other.bufferLimit;
+        this.stepSin = other.stepSin;
+        this.stepCos = other.stepCos;
+        this.means = Arrays.copyOf(other.means, other.centroids);
+        this.weights = Arrays.copyOf(other.weights, other.centroids);
+        this.centroids = other.centroids;
+        this.buffer = Arrays.copyOf(other.buffer, Math.max(MIN_BUFFER, other.buffered));
+        this.buffered = other.buffered;
+        this.totalWeight = other.totalWeight;
+        this.min = other.min;
+        this.max = other.max;
+    }
+
+    /**
+     * Adds a value
+     *
+     * @param x value, NaN is ignored
+     */
+    void add(double x) {
+        if (Double.isNaN(x)) {
+            return;
+        }
+        if (buffered == buffer.length) {
+            if (buffered >= bufferLimit) {
+                compress();
+            } else {
+                buffer = Arrays.copyOf(buffer, Math.min(bufferLimit, buffer.length * 2));
+            }
+        }
+        buffer[buffered++] = x;
+        totalWeight++;
+        min = Math.min(min, x);
+        max = Math.max(max, x);
+    }
+
+    /**
+     * Adds all values summarized by another digest
+     *
+     * @param other digest to merge in; it is compressed but otherwise unchanged
+     */
+    void merge(TDigest other) {
+        if (other.totalWeight == 0) {
+            return;
+        }
+        compress();
+        other.compress();
+        int n = centroids + other.centroids;
+        double[] m = new double[n];
+        double[] w = new double[n];
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < n; k++) {
+            if (j >= other.centroids || (i < centroids && means[i] <= other.means[j])) {
+                m[k] = means[i];
+                w[k] = weights[i++];
+            } else {
+                m[k] = other.means[j];
+                w[k] = other.weights[j++];
+            }
+        }
+        totalWeight += other.totalWeight;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        collapse(m, w, n);
+    }
+
+    /**
+     * Returns an estimate of a quantile
+     *
+     * @param q quantile between 0 and 1
+     * @return estimated value, or NaN if the digest is empty
+     */
+    double quantile(double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("quantile " + q);
+        }
+        compress();
+        if (centroids == 0) {
+            return Double.NaN;
+        }
+        if (centroids == 1) {
+            return means[0];
+        }
+        double index = q * totalWeight;
+        // centroid i covers the weight around its center; interpolate between neighbouring centers
+        double center = weights[0] / 2;
+        if (index <= center) {
+            return min + (means[0] - min) * (index / center);
+        }
+        double seen = 0;
+        for (int i = 0; i + 1 < centroids; i++) {
+            double next = seen + weights[i] + weights[i + 1] / 2;
+            if (index <= next) {
+                double from = seen + weights[i] / 2;
+                return means[i] + (means[i + 1] - means[i]) * ((index - from) / (next - from));
+            }
+            seen += weights[i];
+        }
+        double last = totalWeight - weights[centroids - 1] / 2;
+        double span = totalWeight - last;
+        return means[centroids - 1] + (max - means[centroids - 1]) * ((index - last) / span);
+    }
+
+    long count() {
+        return (long) totalWeight;
+    }
+
+    double min() {
+        return min;
+    }
+
+    double max() {
+        return max;
+    }
+
+    /**
+     * Returns an independent copy
+     *
+     * @return copy of the digest
+     */
+    TDigest copy() {
+        return new TDigest(this);
+    }
+
+    /**
+     * Sorts the buffered values into the centroids
+     */
+    private void compress() {
+        if (buffered == 0) {
+            return;
+        }
+        Arrays.sort(buffer, 0, buffered);
+        int n = centroids + buffered;
+        double[] m = new double[n];
+        double[] w = new double[n];
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < n; k++) {
+            if (j >= buffered || (i < centroids && means[i] <= buffer[j])) {
+                m[k] = means[i];
+                w[k] = weights[i++];
+            } else {
+                m[k] = buffer[j++];
+                w[k] = 1;
+            }
+        }
+        buffered = 0;
+        collapse(m, w, n);
+    }
+
+    /**
+     * Merges sorted centroids as far as the scale function allows and keeps the result
+     */
+    private void collapse(double[] m, double[] w, int n) {
+        int out = 0;
+        double done = 0;
+        double limit = totalWeight * nextQ(0);
+        for (int k = 1; k < n; k++) {
+            if (done + w[out] + w[k] <= limit) {
+                w[out] += w[k];
+                m[out] += (m[k] - m[out]) * w[k] / w[out];
+            } else {
+                done += w[out];
+                limit = totalWeight * nextQ(done / totalWeight);
+                out++;
+                m[out] = m[k];
+                w[out] = w[k];
+            }
+        }
+        centroids = n == 0 ? 0 : out + 1;
+        means = Arrays.copyOf(m, centroids);
+        weights = Arrays.copyOf(w, centroids);
+    }
+
+    /**
+     * Returns the quantile one unit of k past q under the scale function
+     * k(q) = compression / (2 pi) * asin(2q - 1), i.e. (sin(asin(2q - 1) + step) + 1) / 2, expanded
+     * with the angle addition formula so no trigonometric function is evaluated per centroid
+     */
+    private double nextQ(double q) {
+        double s = Math.max(-1, Math.min(1, 2 * q - 1));
+        if (s >= stepCos) {
+            return 1;
+        }
+        return (s * stepCos + Math.sqrt(1 - s * s) * stepSin + 1) / 2;
+    }
+}
@@ -1,5 +1,34 @@
 package backend;
 
+import server.PatientClient;
+import server.PatientServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
 public class Tester {
 
     public static void main(String[] args) {
@@ -51,6 +80,944 @@ public class Tester {
         PatientCollection c1 = new PatientCollection();
         System.out.println("Create new patient collection from saved file.\n" + c1);
 
+        // run the same checks against the columnar collection and compare with the map based collection
+        String expected = exercise(new PatientCollection("./src/backend/data.csv"));
+        String actual = exercise(new ColumnarPatientCollection("./src/backend/data.csv"));
+        System.out.println("Columnar collection matches PatientCollection: " + expected.equals(actual));
+        System.out.println("Concurrent collection matches PatientCollection: "
+                + expected.equals(exercise(new ConcurrentPatientCollection("./src/backend/data.csv"))));
+
+        // parallel imports must report the same errors and build the same collection as sequential imports
+        PatientCollection sequential = new PatientCollection("./src/backend/data.csv");
+        PatientCollection parallel = new PatientCollection("./src/backend/data.csv");
+        boolean sameErrors = sequential.addPatientsFromFile("./src/backend/newdata.csv")
+                .equals(parallel.addPatientsFromFile("./src/backend/newdata.csv", true))
+                && sequential.addPatientsFromFile("./src/backend/newdata2.csv")
+                .equals(parallel.addPatientsFromFile("./src/backend/newdata2.csv", true));
+        System.out.println("Parallel import matches sequential import: "
+                + (sameErrors && sequential.toString().equals(parallel.toString())));
+
+        // rescoring the whole collection must agree with the predictions made one patient at a time
+        sequential.rescoreAll();
+        ColumnarPatientCollection columnar = new ColumnarPatientCollection("./src/backend/data.csv");
+        columnar.addPatientsFromFile("./src/backend/newdata.csv");
+        columnar.rescoreAll();
+        boolean sameScores = true;
+        for (String id : sequential.getIds()) {
+            Patient p = sequential.getPatient(id);
+            String expectedPrediction = Predictor.predict(p.getProteins().getLevel(3697), p.getProteins().getLevel(3258));
+            sameScores &= p.getPredict().equals(expectedPrediction);
+        }
+        for (String id : columnar.getIds()) {
+            sameScores &= columnar.getPatient(id).getPredict().equals(sequential.getPatient(id).getPredict());
+        }
+        System.out.println("Batch rescoring matches single predictions: " + sameScores);
+
+        // load the J48 model from file, then hot swap in a retrained model and rescore
+        try {
+            System.out.println("J48 model file matches built-in model: "
+                    + Predictor.loadModel("./src/backend/j48model.txt").equals(DecisionTreeModel.DEFAULT));
+            Predictor.setModel(DecisionTreeModel.parseJ48(new StringReader(
+                    "P3698 <= 20.9: DP (10.0)\nP3698 > 20.9: CR (11.0)\n")));
+            columnar.rescoreAll();
+            sequential.rescoreAll();
+            System.out.println("Rescored with retrained model:\n" + columnar.getPatient("1") + sequential.getPatient("1"));
+        } catch (IOException e) {
+            System.out.println("Could not load model: " + e.getMessage());
+        } finally {
+            Predictor.setModel(DecisionTreeModel.DEFAULT);
+        }
+
+        // a save must keep every protein level, and a save that fails part way must leave the old file intact
+        try {
+            Path saved = Files.createTempFile("PatientCollection", ".csv");
+            try {
+                List<Patient> patients = new ArrayList<>();
+                for (String id : sequential.getIds()) {
+                    patients.add(sequential.getPatient(id));
+                }
+                sequential.writeFile(saved.toString());
+                PatientCollection reloaded = new PatientCollection(saved.toString());
+                boolean sameLevels = reloaded.getIds().equals(sequential.getIds());
+                for (Patient p : patients) {
+                    sameLevels &= p.getProteins().equals(reloaded.getPatient(p.getId()).getProteins());
+                }
+                System.out.println("Saved file round-trips every protein level: " + sameLevels);
+
+                byte[] before = Files.readAllBytes(saved);
+                // patients that stop coming after five rows, as if they could not be read
+                Iterable<Patient> failing = () -> Stream.concat(patients.stream().limit(5),
+                        Stream.<Patient>generate(() -> {
+                            throw new UncheckedIOException(new IOException("injected failure after 5 rows"));
+                        })).iterator();
+                boolean failed = false;
+                try {
+                    new PatientCsvWriter(saved.toString()).write(failing);
+                } catch (UncheckedIOException e) {
+                    failed = true;
+                }
+                String prefix = saved.getFileName().toString();
+                boolean leftovers;
+                try (Stream<Path> files = Files.list(saved.getParent())) {
+                    leftovers = files.anyMatch(f -> f.getFileName().toString().startsWith(prefix)
+                            && f.getFileName().toString().endsWith(".tmp"));
+                }
+                System.out.println("Failed save keeps the previous file: "
+                        + (failed && !leftovers && Arrays.equals(before, Files.readAllBytes(saved))));
+            } finally {
+                Files.delete(saved);
+            }
+        } catch (IOException e) {
+            System.out.println("Could not test saving: " + e.getMessage());
+        }
+
+        // a lazily opened binary file must behave like the fully loaded collection
+        try {
+            Path binary = Files.createTempFile("PatientCollection", PatientBinaryFile.EXTENSION);
+            try {
+                new PatientCollection("./src/backend/data.csv").writeBinaryFile(binary.toString());
+                PatientCollection loaded = new PatientCollection(binary.toString());
+                PatientCollection lazy = new PatientCollection(binary.toString(), 4);
+                boolean sameLevels = true;
+                for (String id : loaded.getIds()) {
+                    sameLevels &= loaded.getPatient(id).getProteins().equals(lazy.getPatient(id).getProteins());
+                }
+                System.out.println("Lazy collection matches PatientCollection: "
+                        + (sameLevels && expected.equals(exercise(new PatientCollection(binary.toString(), 4)))));
+            } finally {
+                Files.delete(binary);
+            }
+        } catch (IOException e) {
+            System.out.println("Could not test lazy loading: " + e.getMessage());
+        }
+
+        // cohort statistics must agree with a direct computation, also after incremental updates
+        PatientCollection cohort = new PatientCollection("./src/backend/data.csv");
+        boolean statsMatch = statisticsMatch(cohort);
+        cohort.addPatientsFromFile("./src/backend/newdata.csv");
+        cohort.removePatient("5");
+        cohort.setResultForPatient("2", "DP");
+        cohort.setResultForPatient("22", "CR");
+        statsMatch &= statisticsMatch(cohort);
+        // removing the patient with the highest level leaves that protein's maximum to be rebuilt
+        PatientCollection extremes = new PatientCollection("./src/backend/data.csv");
+        statsMatch &= statisticsMatch(extremes);
+        String highestId = null;
+        for (String id : extremes.getIds()) {
+            if (highestId == null || extremes.getPatient(id).getLevel(3697) > extremes.getPatient(highestId).getLevel(3697)) {
+                highestId = id;
+            }
+        }
+        extremes.removePatient(highestId);
+        statsMatch &= statisticsMatch(extremes);
+        System.out.println("Cohort statistics match a direct computation: " + (statsMatch && statisticsMatch(cohort)));
+        System.out.println(cohort.getStatistics().getProteinStats("CR", 3698));
+
+        // indexed queries must return the same patients as checking every patient
+        ColumnarPatientCollection columnarCohort = new ColumnarPatientCollection("./src/backend/data.csv");
+        columnarCohort.addPatientsFromFile("./src/backend/newdata.csv");
+        boolean sameResults = true;
+        for (String text : new String[]{"", "P3698 <= 20.9 AND response = CR", "P3698 > 20.903959 AND P3259 <= 22.058599",
+                "prediction = predCR", "response = unk AND prediction = predDP", "P1 >= 0 AND P4776 < 21.5",
+                "response = CR AND response = DP", "P3698 = 20.94912774"}) {
+            PatientQuery query = PatientQuery.parse(text).select(3698, 3259);
+            String expectedRows = query.scan(cohort).toString();
+            sameResults &= cohort.query(query).toString().equals(expectedRows)
+                    && columnarCohort.query(PatientQuery.parse(query.toString()).select(3698, 3259)).toString()
+                    .equals(query.scan(columnarCohort).toString());
+        }
+        System.out.println("Indexed queries match full scans: " + sameResults);
+        System.out.print(cohort.query(PatientQuery.parse("P3698 > 21 AND response = CR").select(3698, 3259)));
+
+        // nearest neighbors must agree with sorting every patient by distance, also after the index is updated
+        boolean sameNeighbors = neighborsMatch(cohort);
+        cohort.addPatientsFromFile("./src/backend/newdata2.csv");
+        cohort.removePatient("3");
+        System.out.println("Nearest neighbors match a direct computation: " + (sameNeighbors && neighborsMatch(cohort)));
+        System.out.println(cohort.findNearest("1", 3, DistanceMetric.EUCLIDEAN, false));
+
+        // a list kept up to date from listener events alone must end up as the collection's ids in order
+        List<String> rows = new ArrayList<>(cohort.getIds());
+        int[] changes = new int[1];
+        cohort.addPatientCollectionListener(new PatientCollectionListener() {
+            public void patientAdded(String id, int row) {
+                rows.add(row, id);
+            }
+
+            public void patientRemoved(String id, int row) {
+                rows.remove(row);
+            }
+
+            public void patientChanged(String id, int row) {
+                changes[0] += rows.get(row).equals(id) ? 1 : 1000;
+            }
+        });
+        cohort.removePatient("1");
+        cohort.removePatient("33");
+        cohort.removePatient("36");
+        cohort.addPatientsFromFile("./src/backend/newdata.csv");
+        cohort.setResultForPatient("2", "CR");
+        System.out.println("Listener rows match the collection: " + (rows.equals(cohort.getIds()) && changes[0] == 1
+                && cohort.getId(0).equals(rows.get(0)) && cohort.size() == rows.size()));
+
+        // importing in batches must add the same patients and report the same errors as addPatientsFromFile
+        PatientCollection direct = new PatientCollection("./src/backend/data.csv");
+        PatientCollection batched = new PatientCollection("./src/backend/data.csv");
+        StringBuilder directErrors = new StringBuilder();
+        StringBuilder batchErrors = new StringBuilder();
+        try {
+            for (String file : new String[]{"./src/backend/newdata.csv", "./src/backend/newdata2.csv"}) {
+                directErrors.append(direct.addPatientsFromFile(file));
+                try (PatientFileImport batches = new PatientFileImport(file)) {
+                    PatientFileImport.Batch batch;
+                    while ((batch = batches.next(3)) != null) {
+                        batchErrors.append(batched.addPatients(batch));
+                    }
+                }
+            }
+            System.out.println("Batched import matches addPatientsFromFile: "
+                    + (directErrors.toString().equals(batchErrors.toString()) && direct.toString().equals(batched.toString())));
+        } catch (IOException e) {
+            System.out.println("Could not test batched import: " + e.getMessage());
+        }
+
+        // a change feed must carry every change to each kind of collection, and ask for a resync once it overflows
+        boolean feedsMatch = feedMatches(new PatientCollection("./src/backend/data.csv"))
+                && feedMatches(new ColumnarPatientCollection("./src/backend/data.csv"))
+                && feedMatches(new ConcurrentPatientCollection("./src/backend/data.csv"));
+        ArrayDeque<Runnable> pending = new ArrayDeque<>();
+        List<String> batches = new ArrayList<>();
+        PatientChangeFeed small = direct.subscribe(2, pending::add, (batch, resync) -> batches.add(resync + " " + batch));
+        for (String id : new String[]{"2", "3", "4"}) {
+            direct.setResultForPatient(id, "DP");
+        }
+        while (!pending.isEmpty()) {
+            pending.poll().run();
+        }
+        direct.setResultForPatient("6", "DP");
+        while (!pending.isEmpty()) {
+            pending.poll().run();
+        }
+        small.close();
+        System.out.println("Change feeds match the collections: " + feedsMatch + ", after overflow " + batches
+                + ", dropped " + small.getDroppedCount());
+
+        // the metrics must count what an import did, and the histogram keep percentiles within 1/32
+        CollectionMetrics metrics = CollectionMetrics.get();
+        long imports = metrics.getImportCount();
+        long formatRejects = metrics.getRowsRejectedFormat();
+        long duplicateRejects = metrics.getRowsRejectedDuplicateId();
+        long lookups = metrics.getLookupCount();
+        long predictions = metrics.getPredictionCount();
+        PatientCollection counted = new PatientCollection("./src/backend/data.csv");
+        int before = counted.size();
+        String errors = counted.addPatientsFromFile("./src/backend/newdata2.csv");
+        for (String id : counted.getIds()) {
+            counted.getPatient(id);
+        }
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100000; i++) {
+            histogram.record(i);
+        }
+        long p50 = histogram.getValueAtPercentile(50);
+        long p99 = histogram.getValueAtPercentile(99);
+        System.out.println("Metrics count the import: "
+                + (metrics.getImportCount() == imports + 1
+                && metrics.getRowsRejectedFormat() - formatRejects == errors.split("Format Error", -1).length - 1
+                && metrics.getRowsRejectedDuplicateId() - duplicateRejects == errors.split("already exists", -1).length - 1
+                && metrics.getLookupCount() - lookups == counted.size()
+                && metrics.getPredictionCount() - predictions >= counted.size() - before)
+                + ", histogram p50 " + (p50 >= 50000 && p50 <= 50000 * 33 / 32)
+                + " p99 " + (p99 >= 99000 && p99 <= 99000 * 33 / 32) + " max " + histogram.getMax());
+
+        // lower protein precisions must predict exactly as doubles do, and stay close on the other proteins
+        PatientCollection doubles = new PatientCollection("./src/backend/data.csv", false, ProteinPrecision.DOUBLE);
+        doubles.addPatientsFromFile("./src/backend/newdata.csv");
+        StringBuilder precisions = new StringBuilder();
+        for (ProteinPrecision precision : new ProteinPrecision[]{ProteinPrecision.FLOAT32, ProteinPrecision.QUANTIZED16}) {
+            PatientCollection lossy = new PatientCollection("./src/backend/data.csv", false, precision);
+            lossy.addPatientsFromFile("./src/backend/newdata.csv");
+            boolean samePredictions = lossy.getIds().equals(doubles.getIds());
+            double maxError = 0;
+            for (String id : doubles.getIds()) {
+                Patient p = lossy.getPatient(id);
+                String stored = p.getPredict();
+                p.predictResponse();
+                samePredictions &= stored.equals(doubles.getPatient(id).getPredict())
+                        && p.getPredict().equals(Predictor.predict(doubles.getPatient(id).getProteins()))
+                        && p.getProteins().getPrecision() == precision;
+                double[] exact = doubles.getPatient(id).getProteins().toDoubleArray();
+                for (int i = 0; i < exact.length; i++) {
+                    maxError = Math.max(maxError, Math.abs(p.getLevel(i) - exact[i]) / Math.abs(exact[i]));
+                }
+            }
+            precisions.append(String.format(" %s %b (max relative error below 1e-4: %b)", precision, samePredictions,
+                    maxError < 1e-4));
+        }
+        System.out.println("Protein precisions keep predictions:" + precisions);
+
+        // a model swapped in later tests a protein held at the lower precision, with its threshold
+        // between a patient's exact and rounded level, so predicting from the rounded level differs
+        double exact1 = doubles.getPatient("1").getLevel(99);
+        StringBuilder swapped = new StringBuilder();
+        List<PatientCollection> lossyCollections = new ArrayList<>();
+        // all opened before the swap, which keeps only the proteins of the model of the day exactly
+        for (ProteinPrecision precision : new ProteinPrecision[]{ProteinPrecision.FLOAT32, ProteinPrecision.QUANTIZED16}) {
+            PatientCollection lossy = new PatientCollection("./src/backend/data.csv", false, precision);
+            lossy.addPatientsFromFile("./src/backend/newdata.csv");
+            lossyCollections.add(lossy);
+        }
+        try {
+            for (PatientCollection lossy : lossyCollections) {
+                double threshold = (exact1 + lossy.getPatient("1").getLevel(99)) / 2;
+                Predictor.setModel(DecisionTreeModel.parseJ48(new StringReader(
+                        "P100 <= " + threshold + ": DP (10.0)\nP100 > " + threshold + ": CR (11.0)\n")));
+                doubles.rescoreAll();
+                // the rounded levels must not be scored; reopening keeps the new model's proteins exactly
+                boolean refused = false;
+                try {
+                    lossy.rescoreAll();
+                } catch (IllegalStateException e) {
+                    refused = true;
+                }
+                PatientCollection reopened = new PatientCollection("./src/backend/data.csv", false,
+                        lossy.getProteinPrecision());
+                reopened.addPatientsFromFile("./src/backend/newdata.csv");
+                reopened.rescoreAll();
+                boolean samePredictions = true;
+                for (String id : doubles.getIds()) {
+                    Patient p = reopened.getPatient(id);
+                    samePredictions &= p.getPredict().equals(doubles.getPatient(id).getPredict());
+                    p.predictResponse();
+                    samePredictions &= p.getPredict().equals(doubles.getPatient(id).getPredict());
+                }
+                swapped.append(' ').append(lossy.getProteinPrecision()).append(" refused ").append(refused)
+                        .append(" reopened ").append(samePredictions);
+            }
+        } catch (IOException e) {
+            swapped.append(" could not parse the model: ").append(e.getMessage());
+        } finally {
+            Predictor.setModel(DecisionTreeModel.DEFAULT);
+            doubles.rescoreAll();
+        }
+        System.out.println("Protein precisions keep predictions of a swapped model:" + swapped);
+
+        // an archive must give back every patient bit for bit, and a range scan skip blocks outside the range
+        try {
+            Path archive = Files.createTempFile("PatientCollection", PatientArchive.EXTENSION);
+            try {
+                doubles.writeArchive(archive.toString());
+                PatientCollection unarchived = new PatientCollection(archive.toString());
+                boolean sameArchive = unarchived.getIds().equals(doubles.getIds());
+                for (String id : doubles.getIds()) {
+                    Patient p = doubles.getPatient(id);
+                    Patient q = unarchived.getPatient(id);
+                    sameArchive &= p.getResponse().equals(q.getResponse()) && p.getPredict().equals(q.getPredict())
+                            && Arrays.equals(p.getProteins().toDoubleArray(), q.getProteins().toDoubleArray());
+                }
+                List<Patient> patients = new ArrayList<>();
+                for (String id : doubles.getIds()) {
+                    patients.add(doubles.getPatient(id));
+                }
+                PatientArchive.write(archive.toString(), 4776, patients, 8);
+                double highest = Double.NEGATIVE_INFINITY;
+                for (Patient p : patients) {
+                    highest = Math.max(highest, p.getLevel(3697));
+                }
+                int inRange = 0;
+                for (Patient p : patients) {
+                    inRange += p.getLevel(3697) >= highest - 0.1 ? 1 : 0;
+                }
+                try (PatientArchive opened = PatientArchive.open(archive.toString())) {
+                    int[] found = opened.findRows(3697, highest - 0.1, highest);
+                    System.out.println("Archive round trip is lossless: " + sameArchive + ", range scan finds "
+                            + (found.length == inRange) + " reading " + opened.getBlocksDecoded() + " of 4 blocks");
+                }
+            } finally {
+                Files.delete(archive);
+            }
+        } catch (IOException e) {
+            System.out.println("Could not test archives: " + e.getMessage());
+        }
+
+        // a sharded collection must behave like one collection, and keep each patient in its shard's file
+        List<Path> shardFiles = new ArrayList<>();
+        try {
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                shardFiles.add(Files.createTempFile("PatientCollection", ".csv"));
+                names.add(shardFiles.get(i).toString());
+            }
+            // every patient starts in the first file and is moved to its shard
+            Files.copy(Path.of("./src/backend/data.csv"), shardFiles.get(0), StandardCopyOption.REPLACE_EXISTING);
+            ShardedPatientCollection sharded = ShardedPatientCollection.ranged(names, List.of("10", "30"));
+            PatientCollection single = new PatientCollection("./src/backend/data.csv");
+            boolean sameSharded = true;
+            for (String file : new String[]{"./src/backend/newdata.csv", "./src/backend/newdata2.csv"}) {
+                sameSharded &= sharded.addPatientsFromFile(file).equals(single.addPatientsFromFile(file));
+            }
+            sharded.removePatient("5");
+            single.removePatient("5");
+            sharded.setResultForPatient("22", "CR");
+            single.setResultForPatient("22", "CR");
+            PatientQuery query = PatientQuery.parse("P3698 > 20.903959 AND response = unk").select(3698, 3259);
+            sameSharded &= sharded.toString().equals(single.toString())
+                    && sharded.query(query).toString().equals(single.query(query).toString());
+            sharded.writeFile();
+            ShardedPatientCollection reopened = ShardedPatientCollection.ranged(names, List.of("10", "30"));
+            StringBuilder shardSizes = new StringBuilder();
+            for (int shard = 0; shard < reopened.getShardCount(); shard++) {
+                PatientCollection file = new PatientCollection(reopened.getShardFile(shard), true);
+                for (String id : file.getIds()) {
+                    sameSharded &= reopened.getShard(id) == shard;
+                }
+                shardSizes.append(' ').append(reopened.getShardSize(shard));
+            }
+            System.out.println("Sharded collection matches PatientCollection: "
+                    + (sameSharded && reopened.toString().equals(single.toString())) + ", shard sizes" + shardSizes);
+        } catch (IOException e) {
+            System.out.println("Could not test sharding: " + e.getMessage());
+        } finally {
+            for (Path file : shardFiles) {
+                try {
+                    Files.deleteIfExists(file);
+                    Files.deleteIfExists(Path.of(file + ".log"));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        // a served collection must answer like the collection itself, with requests on the wire at once
+        PatientCollection served = new PatientCollection("./src/backend/data.csv");
+        PatientCollection local = new PatientCollection("./src/backend/data.csv");
+        try (PatientServer server = new PatientServer(served, 0);
+             PatientClient client = new PatientClient(server.getPort())) {
+            boolean sameServed = client.addPatientsFromFile("./src/backend/newdata.csv").join()
+                    .equals(local.addPatientsFromFile("./src/backend/newdata.csv"));
+            client.setResultForPatient("22", "CR");
+            local.setResultForPatient("22", "CR");
+            List<String> ids = client.getIds().join();
+            List<CompletableFuture<Patient>> patients = new ArrayList<>();
+            List<CompletableFuture<String>> predicted = new ArrayList<>();
+            for (String id : ids) {
+                patients.add(client.getPatient(id));
+                predicted.add(client.predict(local.getPatient(id).getProteins().toDoubleArray()));
+            }
+            sameServed &= ids.equals(local.getIds()) && client.getPatient("99").join() == null
+                    && client.getPrediction("1").join().equals(local.getPatient("1").getPredict());
+            for (int i = 0; i < ids.size(); i++) {
+                Patient p = local.getPatient(ids.get(i));
+                sameServed &= patients.get(i).join().toString().equals(p.toString())
+                        && predicted.get(i).join().equals(Predictor.predict(p.getProteins()));
+            }
+            List<String> exported = new ArrayList<>();
+            int exportedRows = client.exportProteins(new int[]{3698, 3259}, (id, levels) -> {
+                Patient p = local.getPatient(id);
+                if (levels[0] == p.getLevel(3697) && levels[1] == p.getLevel(3258)) {
+                    exported.add(id);
+                }
+            }).join();
+            // a bad request fails on its own and the connection goes on
+            boolean failed = true;
+            for (int protein : new int[]{0, 4777}) {
+                failed &= client.exportProteins(new int[]{protein}, (id, levels) -> {
+                }).handle((done, e) -> e != null).join() && client.getIds().join().equals(ids);
+            }
+            System.out.println("Server answers like the collection: " + sameServed + ", " + ids.size()
+                    + " pipelined, export rows " + exportedRows + " " + exported.equals(ids) + ", bad export fails " + failed);
+        } catch (IOException | CompletionException e) {
+            System.out.println("Could not test the server: " + e.getMessage());
+        }
+
+        // streamed exports must hold what the collection files hold, whatever the channel
+        PatientCollection streamed = new PatientCollection("./src/backend/data.csv");
+        List<Path> exports = new ArrayList<>();
+        try {
+            for (int i = 0; i < 4; i++) {
+                exports.add(Files.createTempFile("PatientCollection", i < 1 ? ".csv" : PatientBinaryFile.EXTENSION));
+            }
+            boolean sameSlices = streamed.stream().map(Patient::getId).collect(Collectors.toList())
+                    .equals(streamed.getIds()) && streamed.stream().parallel().count() == streamed.size();
+            for (ProteinSlice slice : (Iterable<ProteinSlice>) streamed.streamProteins(3698, 3259)::iterator) {
+                Patient p = streamed.getPatient(slice.getId());
+                sameSlices &= slice.getLevel(0) == p.getLevel(3697) && slice.getLevel(1) == p.getLevel(3258);
+            }
+            ByteArrayOutputStream csv = new ByteArrayOutputStream();
+            PatientExport.writeCsv(streamed.stream(), Channels.newChannel(csv));
+            streamed.writeFile(exports.get(0).toString());
+            // the collection file is written in no particular order
+            boolean sameCsv = csv.toString().lines().sorted().collect(Collectors.toList())
+                    .equals(Files.readAllLines(exports.get(0)).stream().sorted().collect(Collectors.toList()));
+            // a pipe cannot seek, so the sized stream must give the header its row count
+            ByteArrayOutputStream binary = new ByteArrayOutputStream();
+            PatientExport.writeBinary(streamed.stream(), Channels.newChannel(binary));
+            Files.write(exports.get(1), binary.toByteArray());
+            PatientCollection lazy = new PatientCollection(exports.get(1).toString(), 4);
+            boolean sameBinary = lazy.toString().equals(streamed.toString());
+            // levels of the lazily opened file go to the channel without being loaded
+            try (FileChannel out = FileChannel.open(exports.get(2), StandardOpenOption.WRITE)) {
+                PatientExport.writeBinary(lazy.stream(), out);
+            }
+            boolean sameLazy = Arrays.equals(binary.toByteArray(), Files.readAllBytes(exports.get(2)));
+            try (FileChannel out = FileChannel.open(exports.get(3), StandardOpenOption.WRITE)) {
+                PatientExport.writeBinary(lazy.stream().filter(p -> p.getResponse().equals("CR")), out, 3698, 3259);
+            }
+            try (PatientBinaryFile selected = PatientBinaryFile.open(exports.get(3).toString())) {
+                sameSlices &= selected.getProteinCount() == 2 && selected.getRowCount() > 0;
+                for (int row = 0; row < selected.getRowCount(); row++) {
+                    Patient p = streamed.getPatient(selected.getId(row));
+                    sameSlices &= p.getResponse().equals("CR") && selected.getLevel(row, 0) == p.getLevel(3697)
+                            && selected.getLevel(row, 1) == p.getLevel(3258);
+                }
+            }
+            System.out.println("Streamed exports match the collection files: csv " + sameCsv + ", binary " + sameBinary
+                    + ", lazy binary " + sameLazy + ", protein slices " + sameSlices);
+        } catch (IOException e) {
+            System.out.println("Could not test streamed exports: " + e.getMessage());
+        } finally {
+            for (Path file : exports) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        // a model testing a protein patients do not have must be rejected when it is read
+        boolean rejected = true;
+        for (String attribute : new String[]{"P0", "P4777", "P5000", "P99999999999"}) {
+            try {
+                DecisionTreeModel.parseJ48(new StringReader(attribute + " <= 1: DP\n" + attribute + " > 1: CR\n"));
+                rejected = false;
+            } catch (IOException e) {
+                rejected &= e.getMessage().contains(attribute);
+            }
+        }
+        System.out.println("Models testing missing proteins are rejected: " + rejected);
+
+        // a change made while a consumer reads the collection again after an overflow must still arrive
+        PatientCollection resynced = new PatientCollection("./src/backend/data.csv");
+        ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+        List<String> afterResync = new ArrayList<>();
+        PatientChangeFeed overflowing = resynced.subscribe(1, waiting::add, (batch, resync) -> {
+            if (resync) {
+                resynced.setResultForPatient("9", "DP");
+            }
+            afterResync.add(resync + " " + batch);
+        });
+        resynced.setResultForPatient("2", "DP");
+        resynced.setResultForPatient("3", "DP");
+        while (!waiting.isEmpty()) {
+            waiting.poll().run();
+        }
+        overflowing.close();
+        System.out.println("Changes made during a resync are delivered: " + afterResync);
+
+        // publishers racing a delivering thread through overflows and resyncs must leave the consumer
+        // with what the collection holds once the last change arrives
+        ConcurrentPatientCollection shared = new ConcurrentPatientCollection("./src/backend/data.csv");
+        List<String> sharedIds = shared.getIds();
+        Map<String, String> sharedMirror = new ConcurrentHashMap<>();
+        for (String id : sharedIds) {
+            sharedMirror.put(id, shared.getPatient(id).getResponse());
+        }
+        CompletableFuture<Void> lastChange = new CompletableFuture<>();
+        ExecutorService deliveries = Executors.newSingleThreadExecutor();
+        PatientChangeFeed racing = shared.subscribe(4, deliveries, (batch, resync) -> {
+            if (resync) {
+                for (String id : shared.getIds()) {
+                    sharedMirror.put(id, shared.getPatient(id).getResponse());
+                }
+            }
+            for (PatientChange change : batch) {
+                if (change.getType() == PatientChange.Type.RESPONSE_UPDATED) {
+                    sharedMirror.put(change.getId(), change.getValue());
+                }
+            }
+            if ("last".equals(sharedMirror.get(sharedIds.get(0)))) {
+                lastChange.complete(null);
+            }
+        });
+        List<Thread> publishers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int first = t;
+            publishers.add(new Thread(() -> {
+                for (int i = 0; i < 5000; i++) {
+                    shared.setResultForPatient(sharedIds.get((first + 4 * i) % sharedIds.size()), "R" + i);
+                }
+            }));
+        }
+        boolean sharedMatch = true;
+        try {
+            for (Thread publisher : publishers) {
+                publisher.start();
+            }
+            for (Thread publisher : publishers) {
+                publisher.join();
+            }
+            shared.setResultForPatient(sharedIds.get(0), "last");
+            lastChange.get(30, TimeUnit.SECONDS);
+            for (String id : sharedIds) {
+                sharedMatch &= shared.getPatient(id).getResponse().equals(sharedMirror.get(id));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            sharedMatch = false;
+        } finally {
+            racing.close();
+            deliveries.shutdown();
+        }
+        System.out.println("Racing publishers leave the consumer up to date: " + sharedMatch);
+
+        // compacting must keep the collection file's format, and rounded levels must not replace exact ones
+        List<Path> bases = new ArrayList<>();
+        try {
+            StringBuilder formats = new StringBuilder();
+            PatientCollection source = new PatientCollection("./src/backend/data.csv");
+            for (String format : new String[]{PatientBinaryFile.EXTENSION, PatientArchive.EXTENSION}) {
+                Path base = Files.createTempFile("PatientCollection", format);
+                bases.add(base);
+                Path log = Paths.get(base + ".log");
+                bases.add(log);
+                if (format.equals(PatientBinaryFile.EXTENSION)) {
+                    source.writeBinaryFile(base.toString());
+                } else {
+                    source.writeArchive(base.toString());
+                }
+                PatientCollection journaled = new PatientCollection(base.toString(), true);
+                journaled.removePatient("5");
+                journaled.setResultForPatient("2", "DP");
+                journaled.compact();
+                boolean sameFormat = format.equals(PatientBinaryFile.EXTENSION)
+                        ? PatientBinaryFile.isBinaryFile(base.toString()) : PatientArchive.isArchive(base.toString());
+                formats.append(' ').append(format).append(' ').append(sameFormat && Files.size(log) == 0
+                        && new PatientCollection(base.toString()).toString().equals(journaled.toString()));
+            }
+            boolean journalRefused = false;
+            try {
+                new PatientCollection(bases.get(0).toString(), true, ProteinPrecision.FLOAT32);
+            } catch (IllegalArgumentException e) {
+                journalRefused = true;
+            }
+            boolean rewriteRefused = false;
+            try {
+                new PatientCollection(bases.get(0).toString(), false, ProteinPrecision.QUANTIZED16).compact();
+            } catch (IllegalStateException e) {
+                rewriteRefused = true;
+            }
+            System.out.println("Compaction keeps the file format:" + formats + ", lossy rewrites refused "
+                    + (journalRefused && rewriteRefused));
+        } catch (IOException e) {
+            System.out.println("Could not test compaction: " + e.getMessage());
+        } finally {
+            for (Path file : bases) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        // reopening after a crash must keep every complete change, drop a torn or garbage tail, and
+        // replaying changes the collection file already holds must leave it as it was
+        List<Path> crashed = new ArrayList<>();
+        try {
+            Path base = Files.createTempFile("PatientCollection", ".csv");
+            Path log = Paths.get(base + ".log");
+            crashed.add(base);
+            crashed.add(log);
+            Files.copy(Paths.get("./src/backend/data.csv"), base, StandardCopyOption.REPLACE_EXISTING);
+            PatientCollection journaled = new PatientCollection(base.toString(), true);
+            journaled.addPatient(new Patient("99", journaled.getPatient("1").getProteins().toDoubleArray()));
+            journaled.setResultForPatient("99", "CR");
+            journaled.removePatient("5");
+            journaled.setResultForPatient("2", "DP");
+            String expectedState = journaled.toString();
+            byte[] validLog = Files.readAllBytes(log);
+            // the start of a record cut short, then bytes that were never a record
+            byte[][] tails = {Arrays.copyOf(validLog, 7), {0, 0, 0, 3, 3, 'x', 'y', 'z', 1, 2, 3, 4}};
+            boolean tailsDropped = true;
+            for (byte[] tail : tails) {
+                Files.write(log, validLog);
+                Files.write(log, tail, StandardOpenOption.APPEND);
+                PatientCollection reopened = new PatientCollection(base.toString(), true);
+                tailsDropped &= reopened.toString().equals(expectedState)
+                        && Arrays.equals(Files.readAllBytes(log), validLog);
+            }
+            // a crash between rewriting the collection file and truncating the log
+            journaled = new PatientCollection(base.toString(), true);
+            journaled.compact();
+            Files.write(log, validLog);
+            boolean idempotent = new PatientCollection(base.toString(), true).toString().equals(expectedState)
+                    && new PatientCollection(base.toString()).toString().equals(expectedState);
+            System.out.println("Change log recovery: torn and garbage tails dropped " + tailsDropped
+                    + ", replaying twice idempotent " + idempotent);
+        } catch (IOException e) {
+            System.out.println("Could not test change log recovery: " + e.getMessage());
+        } finally {
+            for (Path file : crashed) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        // shard files that do not exist yet are empty shards, and a shard whose change log cannot be
+        // opened saves to its own file rather than the default collection file
+        List<Path> missing = new ArrayList<>();
+        try {
+            Path dir = Files.createTempDirectory("shards");
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                missing.add(dir.resolve("shard" + i + ".csv"));
+                missing.add(dir.resolve("shard" + i + ".csv.log"));
+                names.add(missing.get(2 * i).toString());
+            }
+            missing.add(dir);
+            // a directory in place of the second shard's log
+            Files.createDirectory(missing.get(3));
+            Path defaultFile = Paths.get("./src/backend/PatientCollection.csv");
+            byte[] defaultBytes = Files.readAllBytes(defaultFile);
+            long unreadable = CollectionMetrics.get().getFilesUnreadable();
+            ShardedPatientCollection fresh = ShardedPatientCollection.hashed(names);
+            boolean emptyShards = fresh.getIds().isEmpty() && CollectionMetrics.get().getFilesUnreadable() == unreadable;
+            fresh.addPatientsFromFile("./src/backend/data.csv");
+            boolean saved = fresh.writeFile() && Files.exists(missing.get(2))
+                    && Arrays.equals(Files.readAllBytes(defaultFile), defaultBytes)
+                    && ShardedPatientCollection.hashed(names).toString().equals(fresh.toString());
+            System.out.println("Missing shard files start empty shards: " + emptyShards + ", saved to the shards " + saved);
+        } catch (IOException e) {
+            System.out.println("Could not test missing shard files: " + e.getMessage());
+        } finally {
+            for (Path file : missing) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        // ids and labels of any length must survive compacting a binary collection, and a file of
+        // new patients convert to the binary format
+        List<Path> longText = new ArrayList<>();
+        try {
+            longText.add(Files.createTempFile("PatientCollection", PatientBinaryFile.EXTENSION));
+            longText.add(Paths.get(longText.get(0) + ".log"));
+            longText.add(Files.createTempFile("newdata", PatientBinaryFile.EXTENSION));
+            String base = longText.get(0).toString();
+            new PatientCollection("./src/backend/data.csv").writeBinaryFile(base);
+            PatientCollection journaled = new PatientCollection(base, true);
+            String longId = "patient-with-an-id-longer-than-sixteen-bytes";
+            String longResponse = "partial response, longer than eight bytes";
+            journaled.addPatient(new Patient(longId, journaled.getPatient("1").getProteins().toDoubleArray()));
+            journaled.setResultForPatient(longId, longResponse);
+            journaled.setResultForPatient("2", longResponse);
+            journaled.compact();
+            boolean kept = true;
+            for (PatientCollection reopened : new PatientCollection[]{new PatientCollection(base),
+                    new PatientCollection(base, 4)}) {
+                kept &= reopened.toString().equals(journaled.toString())
+                        && reopened.getPatient(longId).getResponse().equals(longResponse)
+                        && reopened.getPatient("2").getResponse().equals(longResponse);
+            }
+            PatientBinaryFile.main(new String[]{"newToBinary", "./src/backend/newdata.csv", longText.get(2).toString()});
+            PatientCollection newPatients = new PatientCollection("./src/backend/data.csv");
+            newPatients.addPatientsFromFile("./src/backend/newdata.csv");
+            boolean converted = true;
+            try (PatientBinaryFile file = PatientBinaryFile.open(longText.get(2).toString())) {
+                converted = file.getRowCount() > 0;
+                for (int row = 0; row < file.getRowCount(); row++) {
+                    Patient p = newPatients.getPatient(file.getId(row));
+                    converted &= p != null && file.getResponse(row).equals("unk")
+                            && file.getPrediction(row).equals(p.getPredict())
+                            && Arrays.equals(file.readProteins(row), p.getProteins().toDoubleArray());
+                }
+            }
+            System.out.println("Binary files keep long ids and labels: " + kept + ", new patients converted " + converted);
+        } catch (IOException e) {
+            System.out.println("Could not test long ids and labels: " + e.getMessage());
+        } finally {
+            for (Path file : longText) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        // protein numbers past the last protein must be refused before any output
+        PatientCollection sliced = new PatientCollection("./src/backend/data.csv");
+        boolean refusedUpFront = true;
+        for (int format = 0; format < 3; format++) {
+            ByteArrayOutputStream partial = new ByteArrayOutputStream();
+            try {
+                if (format == 0) {
+                    PatientExport.writeCsv(sliced.stream(), Channels.newChannel(partial), 1, 4777);
+                } else if (format == 1) {
+                    PatientExport.writeBinary(sliced.stream(), Channels.newChannel(partial), 4777);
+                } else {
+                    sliced.streamProteins(3698, 4777);
+                }
+                refusedUpFront = false;
+            } catch (IllegalArgumentException e) {
+                refusedUpFront &= partial.size() == 0;
+            } catch (IOException e) {
+                refusedUpFront = false;
+            }
+        }
+        System.out.println("Protein numbers out of range are refused before any output: " + refusedUpFront);
+
+        // predicting a lazily loaded patient must read only the levels the model tests, and agree
+        // with the patient loaded in full
+        try {
+            Path binary = Files.createTempFile("PatientCollection", PatientBinaryFile.EXTENSION);
+            PatientCollection loaded = new PatientCollection("./src/backend/data.csv");
+            loaded.writeBinaryFile(binary.toString());
+            try (PatientBinaryFile file = PatientBinaryFile.open(binary.toString())) {
+                ProteinCache cache = new ProteinCache(file, 4);
+                boolean predictedInPlace = true;
+                for (int row = 0; row < file.getRowCount(); row++) {
+                    // no proteins held in memory, so every level tested comes from the file
+                    Patient lazy = new Patient(cache, row, new int[0]);
+                    lazy.predictResponse();
+                    Patient full = loaded.getPatient(lazy.getId());
+                    full.predictResponse();
+                    predictedInPlace &= lazy.getPredict().equals(full.getPredict());
+                }
+                System.out.println("Lazy patients predict without loading their levels: "
+                        + (predictedInPlace && cache.getHits() + cache.getMisses() == 0));
+            } finally {
+                Files.delete(binary);
+            }
+        } catch (IOException e) {
+            System.out.println("Could not test lazy predictions: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Compares the collection's statistics with means, variances, extremes and medians computed
+     * directly from the patients of each response
+     */
+    private static boolean statisticsMatch(PatientCollection c) {
+        CohortStatistics stats = c.getStatistics();
+        List<String> responses = new ArrayList<>(stats.getResponses());
+        responses.add(null);
+        boolean match = true;
+        for (String response : responses) {
+            for (int protein : new int[]{1, 3259, 3698, 4776}) {
+                List<Double> levels = new ArrayList<>();
+                for (String id : c.getIds()) {
+                    Patient p = c.getPatient(id);
+                    if (response == null || response.equals(p.getResponse())) {
+                        levels.add(p.getLevel(protein - 1));
+                    }
+                }
+                double[] sorted = levels.stream().mapToDouble(Double::doubleValue).sorted().toArray();
+                double mean = Arrays.stream(sorted).average().orElse(Double.NaN);
+                double variance = Arrays.stream(sorted).map(x -> (x - mean) * (x - mean)).sum() / (sorted.length - 1);
+                int n = sorted.length;
+                double median = n % 2 == 1 ? sorted[n / 2] : (sorted[n / 2 - 1] + sorted[n / 2]) / 2;
+                ProteinStats s = stats.getProteinStats(response, protein);
+                match &= s.getCount() == n && Math.abs(s.getMean() - mean) < 1e-9
+                        && Math.abs(s.getVariance() - variance) < 1e-9 && s.getMin() == sorted[0]
+                        && s.getMax() == sorted[n - 1] && Math.abs(s.getMedian() - median) < 1e-9;
+            }
+        }
+        return match;
+    }
+
+    /**
+     * Compares exact and approximate nearest neighbors of every patient with all other patients
+     * sorted by distance. The approximate search compares every patient of a collection this small.
+     */
+    private static boolean neighborsMatch(PatientCollection c) {
+        boolean match = true;
+        for (DistanceMetric metric : DistanceMetric.values()) {
+            for (String id : c.getIds()) {
+                double[] a = c.getPatient(id).getProteins().toDoubleArray();
+                List<Neighbor> expected = new ArrayList<>();
+                for (String other : c.getIds()) {
+                    if (!other.equals(id)) {
+                        double[] b = c.getPatient(other).getProteins().toDoubleArray();
+                        double squared = 0;
+                        double dot = 0;
+                        for (int i = 0; i < a.length; i++) {
+                            squared += (a[i] - b[i]) * (a[i] - b[i]);
+                            dot += a[i] * b[i];
+                        }
+                        double cosine = 1 - dot / Math.sqrt(Arrays.stream(a).map(x -> x * x).sum()
+                                * Arrays.stream(b).map(x -> x * x).sum());
+                        expected.add(new Neighbor(other, metric == DistanceMetric.EUCLIDEAN ? Math.sqrt(squared) : cosine));
+                    }
+                }
+                expected.sort((x, y) -> Double.compare(x.getDistance(), y.getDistance()));
+                for (boolean exact : new boolean[]{true, false}) {
+                    List<Neighbor> found = c.findNearest(id, 5, metric, exact);
+                    match &= found.size() == 5;
+                    for (int i = 0; i < found.size(); i++) {
+                        match &= found.get(i).getId().equals(expected.get(i).getId())
+                                && Math.abs(found.get(i).getDistance() - expected.get(i).getDistance()) < 1e-9;
+                    }
+                }
+            }
+        }
+        return match;
+    }
+
+    /**
+     * Mirrors the ids and responses of a collection from its change feed while the collection is
+     * exercised, and compares the mirror with the collection
+     */
+    private static boolean feedMatches(PatientCollectionADT c) {
+        Map<String, String> mirror = new HashMap<>();
+        for (String id : c.getIds()) {
+            mirror.put(id, c.getPatient(id).getResponse());
+        }
+        boolean[] resynced = new boolean[1];
+        PatientChangeFeed feed = c.subscribe(1000, Runnable::run, (changes, resync) -> {
+            resynced[0] |= resync;
+            for (PatientChange change : changes) {
+                if (change.getType() == PatientChange.Type.ADDED) {
+                    mirror.put(change.getId(), c.getPatient(change.getId()).getResponse());
+                } else if (change.getType() == PatientChange.Type.REMOVED) {
+                    mirror.remove(change.getId());
+                } else if (change.getType() == PatientChange.Type.RESPONSE_UPDATED) {
+                    mirror.put(change.getId(), change.getValue());
+                }
+            }
+        });
+        exercise(c);
+        boolean match = !resynced[0] && mirror.size() == c.getIds().size();
+        for (String id : c.getIds()) {
+            match &= c.getPatient(id).getResponse().equals(mirror.get(id));
+        }
+        feed.close();
+        c.removePatient("1");
+        return match && mirror.containsKey("1");
+    }
+
+    /**
+     * Runs the checks above against any collection and returns a transcript of the results
+     *
+     * @param c collection built from the original data set
+     * @return transcript of the results
+     */
+    private static String exercise(PatientCollectionADT c) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(c).append(c.getPatient("1")).append(c.getPatient("99"));
+        sb.append(c.addPatientsFromFile("./src/backend/newdata.csv")).append(c);
+        sb.append(c.addPatientsFromFile("./src/backend/newdata2.csv")).append(c.getIds());
+        sb.append(c.removePatient("30")).append(c.getIds()).append(c.getPatient("30")).append(c.removePatient("30"));
+        c.setResultForPatient("32", "DP");
+        sb.append(c.getPatient("32")).append(c);
+        return sb.toString();
     }
 
 }
\ No newline at end of file
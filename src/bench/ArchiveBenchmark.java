@@ -0,0 +1,91 @@
+package bench;
+
+import backend.PatientArchive;
+import backend.PatientBinaryFile;
+import backend.PatientCollection;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Compares the disk space of a generated cohort saved as a csv collection file, a binary collection
+ * file and an archive, times reading the archive back, and times a scan for the highest levels of
+ * one protein in the archive against reading the whole column.
+ * <p>
+ * Patients are generated in groups of similar profiles and added in id order, so the rows of a group
+ * are next to each other, as they are when a study enrolls patients by site.
+ * <p>
+ * Usage: java bench.ArchiveBenchmark [rows] [groupSize]
+ *
+ * @author Matt Ellis
+ */
+public class ArchiveBenchmark {
+
+    private static final int PROTEIN = 3697;
+
+    public static void main(String[] args) throws IOException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int groupSize = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+
+        Path file = Files.createTempFile("patients", ".csv");
+        Path empty = Files.createTempFile("collection", ".csv");
+        Path csv = Files.createTempFile("collection", ".csv");
+        Path binary = Files.createTempFile("collection", PatientBinaryFile.EXTENSION);
+        Path archive = Files.createTempFile("collection", PatientArchive.EXTENSION);
+        try {
+            SyntheticCohort cohort = new SyntheticCohort(42);
+            double[][] center = new double[1][];
+            int[] row = new int[1];
+            // ids are zero-padded so id order is generation order
+            cohort.writeNewPatientFile(file, 1_000_000, rows, () -> {
+                if (row[0]++ % groupSize == 0) {
+                    center[0] = cohort.nextProteins();
+                }
+                return cohort.nextProteinsNear(center[0], 0.25);
+            });
+            PatientCollection c = new PatientCollection(empty.toString());
+            c.addPatientsFromFile(file.toString(), true);
+
+            c.writeFile(csv.toString());
+            c.writeBinaryFile(binary.toString());
+            long start = System.nanoTime();
+            c.writeArchive(archive.toString());
+            long write = System.nanoTime() - start;
+            c = null;
+            long csvBytes = Files.size(csv);
+            System.out.printf("csv     %8d bytes per patient%n", csvBytes / rows);
+            System.out.printf("binary  %8d bytes per patient%n", Files.size(binary) / rows);
+            System.out.printf("archive %8d bytes per patient, %.1f%% of csv, written in %.0f ms%n",
+                    Files.size(archive) / rows, 100.0 * Files.size(archive) / csvBytes, write / 1e6);
+
+            start = System.nanoTime();
+            int loaded = new PatientCollection(archive.toString()).size();
+            System.out.printf("read %d patients from the archive in %.0f ms%n", loaded, (System.nanoTime() - start) / 1e6);
+
+            try (PatientArchive opened = PatientArchive.open(archive.toString())) {
+                start = System.nanoTime();
+                double[] column = opened.readColumn(PROTEIN);
+                long full = System.nanoTime() - start;
+                // the patients with the highest levels, as when looking for over-expression
+                double high = Double.NEGATIVE_INFINITY;
+                for (double level : column) {
+                    high = Math.max(high, level);
+                }
+                double low = high - 0.05;
+                long decoded = opened.getBlocksDecoded();
+                start = System.nanoTime();
+                int matches = opened.findRows(PROTEIN, low, high).length;
+                long scan = System.nanoTime() - start;
+                System.out.printf("column read %.3f ms (%d blocks), range scan %.3f ms (%d blocks, %d matches)%n",
+                        full / 1e6, decoded, scan / 1e6, opened.getBlocksDecoded() - decoded, matches);
+            }
+        } finally {
+            Files.delete(file);
+            Files.delete(empty);
+            Files.delete(csv);
+            Files.delete(binary);
+            Files.delete(archive);
+        }
+    }
+}
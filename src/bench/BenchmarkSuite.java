@@ -0,0 +1,330 @@
+package bench;
+
+import backend.Patient;
+import backend.PatientCollection;
+import backend.Predictor;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures the backend hot paths on generated cohorts of several sizes and writes the results as
+ * JSON, so a later change to storage or parsing can be compared with a saved baseline.
+ * <p>
+ * Every benchmark is run for a few warmup iterations and then measured over several more. An
+ * iteration repeats the operation until at least {@code iterationMillis} have passed, and scores the
+ * average time per operation. Operations are run in batches and the clock is read once per batch, so
+ * reading it does not add to the time of short operations; batches double in size until one takes
+ * about a tenth of the iteration. Alongside the time, the bytes allocated by all threads, the number of
+ * collections and the time spent collecting are recorded per iteration, like the JMH GC profiler.
+ * The JSON has the layout JMH writes (benchmark, mode, params, primaryMetric, secondaryMetrics with
+ * the gc profiler names), so the usual JMH result viewers can read it.
+ * <p>
+ * Cohorts are generated with a fixed seed, so every run measures the same data. A cohort of n
+ * patients takes about 57 MB per thousand patients on disk, three times over, and 38 MB of heap per
+ * thousand patients; 100000 patients needs about 17 GB of disk and -Xmx5g.
+ * <p>
+ * Usage: java bench.BenchmarkSuite [sizes] [output.json] [baseline.json] [warmups] [iterations] [iterationMillis]
+ * <br>
+ * e.g. java -Xmx5g bench.BenchmarkSuite 21,1000,10000,100000 results.json
+ *
+ * @author Matt Ellis
+ */
+public class BenchmarkSuite {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    // keeps results reachable so the operations are not optimized away
+    private static volatile Object sink;
+
+    private final int warmups;
+    private final int iterations;
+    private final long iterationNanos;
+    private final List<Result> results = new ArrayList<>();
+
+    private BenchmarkSuite(int warmups, int iterations, long iterationMillis) {
+        this.warmups = warmups;
+        this.iterations = iterations;
+        this.iterationNanos = iterationMillis * 1_000_000;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String sizes = args.length > 0 ? args[0] : "21,1000,10000";
+        Path output = Paths.get(args.length > 1 ? args[1] : "benchmark-results.json");
+        Path baseline = args.length > 2 && !args[2].equals("-") ? Paths.get(args[2]) : null;
+        int warmups = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+        int iterations = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+        long iterationMillis = args.length > 5 ? Long.parseLong(args[5]) : 1000;
+
+        BenchmarkSuite suite = new BenchmarkSuite(warmups, iterations, iterationMillis);
+        for (String size : sizes.split(",")) {
+            suite.runCohort(Integer.parseInt(size.trim()));
+        }
+        Files.write(output, suite.toJson().getBytes(StandardCharsets.UTF_8));
+        System.out.println("wrote " + output.toAbsolutePath());
+        if (baseline != null) {
+            suite.compare(new String(Files.readAllBytes(baseline), StandardCharsets.UTF_8));
+        }
+    }
+
+    private void runCohort(int patients) throws IOException {
+        Path dir = Files.createTempDirectory("benchmark");
+        Path newPatients = dir.resolve("new.csv");
+        Path collectionFile = dir.resolve("collection.csv");
+        Path saved = dir.resolve("saved.csv");
+        Path empty = dir.resolve("empty.csv");
+        try {
+            Files.createFile(empty);
+            new SyntheticCohort(42).writeNewPatientFile(newPatients, 1, patients);
+            PatientCollection loaded = new PatientCollection(empty.toString());
+            loaded.addPatientsFromFile(newPatients.toString());
+            loaded.writeFile(collectionFile.toString());
+            List<Patient> cohort = new ArrayList<>();
+            for (String id : loaded.getIds()) {
+                cohort.add(loaded.getPatient(id));
+            }
+            System.out.printf("cohort of %d patients%n", patients);
+
+            run("construct", patients, () -> sink = new PatientCollection(collectionFile.toString()));
+            run("addPatientsFromFile", patients, () -> {
+                PatientCollection c = new PatientCollection(empty.toString());
+                c.addPatientsFromFile(newPatients.toString());
+                sink = c;
+            });
+            run("getIds", patients, () -> sink = loaded.getIds());
+            run("toString", patients, () -> sink = loaded.toString());
+            run("writeFile", patients, () -> loaded.writeFile(saved.toString()));
+            // a long counter, as an int would overflow to a negative index within a long run
+            long[] next = {0};
+            run("predict", patients,
+                    () -> sink = Predictor.predict(cohort.get((int) (next[0]++ % patients)).getProteins()));
+            run("predictResponse", patients, () -> cohort.get((int) (next[0]++ % patients)).predictResponse());
+        } finally {
+            for (Path p : new Path[]{newPatients, collectionFile, saved, empty}) {
+                Files.deleteIfExists(p);
+                Files.deleteIfExists(Paths.get(p + ".log"));
+            }
+            Files.delete(dir);
+        }
+    }
+
+    private void run(String name, int patients, Runnable op) {
+        for (int i = 0; i < warmups; i++) {
+            iteration(op);
+        }
+        Result result = new Result(name, patients);
+        for (int i = 0; i < iterations; i++) {
+            double[] sample = iteration(op);
+            result.nanosPerOp.add(sample[0]);
+            result.bytesPerOp.add(sample[1]);
+            result.allocRate.add(sample[2]);
+            result.gcCount.add(sample[3]);
+            result.gcTime.add(sample[4]);
+        }
+        results.add(result);
+        System.out.printf("%-20s %7d patients %14.3f us/op +- %10.3f %14.0f B/op %8.1f MB/s alloc%n", name, patients,
+                mean(result.nanosPerOp) / 1e3, error(result.nanosPerOp) / 1e3, mean(result.bytesPerOp),
+                mean(result.allocRate));
+    }
+
+    /**
+     * Repeats an operation for one iteration
+     *
+     * @return ns/op, allocated B/op, allocated MB/s, collections, collection ms
+     */
+    private double[] iteration(Runnable op) {
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        long ops = 0;
+        long batch = 1;
+        long elapsed;
+        do {
+            for (long i = 0; i < batch; i++) {
+                op.run();
+            }
+            ops += batch;
+            elapsed = System.nanoTime() - start;
+            if (elapsed < iterationNanos / 10) {
+                batch *= 2;
+            }
+        } while (elapsed < iterationNanos);
+        double bytes = allocatedBytes() - allocated;
+        return new double[]{elapsed / (double) ops, bytes / ops, bytes / (1 << 20) / (elapsed / 1e9),
+                gcCount() - gcCount, gcMillis() - gcMillis};
+    }
+
+    /**
+     * Bytes allocated so far by all live threads, so work handed to pool threads is counted too
+     */
+    private static long allocatedBytes() {
+        if (!(THREADS instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+        long total = 0;
+        for (long bytes : ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(THREADS.getAllThreadIds())) {
+            total += Math.max(0, bytes);
+        }
+        return total;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    private static double mean(List<Double> samples) {
+        double sum = 0;
+        for (double s : samples) {
+            sum += s;
+        }
+        return sum / samples.size();
+    }
+
+    /**
+     * Half-width of the 99.9% confidence interval of the mean, as JMH reports it
+     */
+    private static double error(List<Double> samples) {
+        int n = samples.size();
+        if (n < 2) {
+            return 0;
+        }
+        double mean = mean(samples);
+        double squares = 0;
+        for (double s : samples) {
+            squares += (s - mean) * (s - mean);
+        }
+        // Student's t quantile for 0.9995 by degrees of freedom, approaching the normal quantile
+        double[] t = {636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587};
+        double quantile = n - 1 <= t.length ? t[n - 2] : 3.291 + 6.0 / (n - 1);
+        return quantile * Math.sqrt(squares / (n - 1) / n);
+    }
+
+    private String toJson() {
+        StringBuilder json = new StringBuilder("[\n");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            json.append("    {\n");
+            json.append("        \"benchmark\" : \"bench.BenchmarkSuite.").append(r.name).append("\",\n");
+            json.append("        \"mode\" : \"avgt\",\n");
+            json.append("        \"threads\" : 1,\n");
+            json.append("        \"forks\" : 1,\n");
+            json.append("        \"jvm\" : \"").append(System.getProperty("java.home").replace("\\", "\\\\")).append("\",\n");
+            json.append("        \"jdkVersion\" : \"").append(System.getProperty("java.version")).append("\",\n");
+            json.append("        \"warmupIterations\" : ").append(warmups).append(",\n");
+            json.append("        \"warmupTime\" : \"").append(iterationNanos / 1_000_000).append(" ms\",\n");
+            json.append("        \"measurementIterations\" : ").append(iterations).append(",\n");
+            json.append("        \"measurementTime\" : \"").append(iterationNanos / 1_000_000).append(" ms\",\n");
+            json.append("        \"params\" : {\n");
+            json.append("            \"patients\" : \"").append(r.patients).append("\"\n");
+            json.append("        },\n");
+            json.append("        \"primaryMetric\" : ");
+            appendMetric(json, scaled(r.nanosPerOp, 1e-6), "ms/op");
+            json.append(",\n        \"secondaryMetrics\" : {\n");
+            json.append("            \"\u00b7gc.alloc.rate\" : ");
+            appendMetric(json, r.allocRate, "MB/sec");
+            json.append(",\n            \"\u00b7gc.alloc.rate.norm\" : ");
+            appendMetric(json, r.bytesPerOp, "B/op");
+            json.append(",\n            \"\u00b7gc.count\" : ");
+            appendMetric(json, r.gcCount, "counts");
+            json.append(",\n            \"\u00b7gc.time\" : ");
+            appendMetric(json, r.gcTime, "ms");
+            json.append("\n        }\n    }").append(i < results.size() - 1 ? "," : "").append('\n');
+        }
+        return json.append("]\n").toString();
+    }
+
+    private static List<Double> scaled(List<Double> samples, double factor) {
+        List<Double> scaled = new ArrayList<>();
+        for (double s : samples) {
+            scaled.add(s * factor);
+        }
+        return scaled;
+    }
+
+    private static void appendMetric(StringBuilder json, List<Double> samples, String unit) {
+        json.append("{\n");
+        json.append("                \"score\" : ").append(number(mean(samples))).append(",\n");
+        json.append("                \"scoreError\" : ").append(number(error(samples))).append(",\n");
+        json.append("                \"scoreUnit\" : \"").append(unit).append("\",\n");
+        json.append("                \"rawData\" : [\n                    [\n");
+        for (int i = 0; i < samples.size(); i++) {
+            json.append("                        ").append(number(samples.get(i)))
+                    .append(i < samples.size() - 1 ? ",\n" : "\n");
+        }
+        json.append("                    ]\n                ]\n            }");
+    }
+
+    private static String number(double d) {
+        return String.format(Locale.ROOT, "%.6g", d);
+    }
+
+    /**
+     * Prints each benchmark's time and allocation next to the same benchmark in a baseline written
+     * by an earlier run
+     */
+    private void compare(String baseline) {
+        // the file is read back in the layout toJson writes
+        Pattern entry = Pattern.compile("\"benchmark\" : \"bench\\.BenchmarkSuite\\.(\\w+)\"[\\s\\S]*?"
+                + "\"patients\" : \"(\\d+)\"[\\s\\S]*?\"primaryMetric\" : \\{\\s*\"score\" : ([^,]+),[\\s\\S]*?"
+                + "\"\u00b7gc\\.alloc\\.rate\\.norm\" : \\{\\s*\"score\" : ([^,]+),");
+        Map<String, double[]> before = new HashMap<>();
+        Matcher m = entry.matcher(baseline);
+        while (m.find()) {
+            before.put(m.group(1) + "/" + m.group(2),
+                    new double[]{Double.parseDouble(m.group(3)), Double.parseDouble(m.group(4))});
+        }
+        System.out.println("compared with baseline (time and allocation per op, now / baseline)");
+        for (Result r : results) {
+            double[] old = before.get(r.name + "/" + r.patients);
+            if (old == null) {
+                System.out.printf("%-20s %7d patients   not in baseline%n", r.name, r.patients);
+            } else {
+                System.out.printf("%-20s %7d patients   time %6.2fx   alloc %6.2fx%n", r.name, r.patients,
+                        mean(r.nanosPerOp) / 1e6 / old[0], mean(r.bytesPerOp) / old[1]);
+            }
+        }
+    }
+
+    /**
+     * Samples of one benchmark at one cohort size, one per measured iteration
+     */
+    private static final class Result {
+        final String name;
+        final int patients;
+        final List<Double> nanosPerOp = new ArrayList<>();
+        final List<Double> bytesPerOp = new ArrayList<>();
+        final List<Double> allocRate = new ArrayList<>();
+        final List<Double> gcCount = new ArrayList<>();
+        final List<Double> gcTime = new ArrayList<>();
+
+        Result(String name, int patients) {
+            this.name = name;
+            this.patients = patients;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package bench;
+
+import backend.ConcurrentPatientCollection;
+import backend.Patient;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mixed read/write stress test and throughput benchmark for ConcurrentPatientCollection.
+ * <p>
+ * Reader threads call getPatient, getIds and toString while writer threads remove and re-add
+ * patients and update responses. Every snapshot is checked for consistency: ids strictly ascending,
+ * the number of ids within the possible range, and no line of toString for a missing patient.
+ * <p>
+ * Usage: java bench.ConcurrentCollectionBenchmark [patients] [readers] [writers] [seconds]
+ *
+ * @author Matt Ellis
+ */
+public class ConcurrentCollectionBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int patients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int readers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int writers = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        ConcurrentPatientCollection c = new ConcurrentPatientCollection();
+        SyntheticCohort cohort = new SyntheticCohort(42);
+        ArrayList<Patient> all = new ArrayList<>();
+        for (int i = 1; i <= patients; i++) {
+            Patient p = new Patient(Integer.toString(i), cohort.nextProteins());
+            all.add(p);
+            c.addPatient(p);
+        }
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong reads = new AtomicLong();
+        AtomicLong writes = new AtomicLong();
+        AtomicLong violations = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(readers + writers);
+
+        for (int r = 0; r < readers; r++) {
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long n = 0;
+                while (running.get()) {
+                    int op = random.nextInt(100);
+                    if (op < 90) {
+                        c.getPatient(Integer.toString(1 + random.nextInt(patients)));
+                    } else if (op < 98) {
+                        if (!isConsistent(c.getIds(), patients, writers)) {
+                            violations.incrementAndGet();
+                        }
+                    } else {
+                        String s = c.toString();
+                        if (s.contains("null") || s.split("\n").length < patients - writers) {
+                            violations.incrementAndGet();
+                        }
+                    }
+                    n++;
+                }
+                reads.addAndGet(n);
+                done.countDown();
+            }).start();
+        }
+
+        // each writer owns its own patients, so at most one patient per writer is missing at a time
+        for (int w = 0; w < writers; w++) {
+            final int writer = w;
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long n = 0;
+                while (running.get()) {
+                    int index = writer + writers * random.nextInt((patients - writer + writers - 1) / writers);
+                    Patient p = all.get(index);
+                    if (random.nextBoolean()) {
+                        c.removePatient(p.getId());
+                        c.addPatient(p);
+                    } else {
+                        c.setResultForPatient(p.getId(), random.nextBoolean() ? "CR" : "DP");
+                    }
+                    n++;
+                }
+                writes.addAndGet(n);
+                done.countDown();
+            }).start();
+        }
+
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        done.await();
+
+        System.out.printf("%d readers, %d writers, %d patients%n", readers, writers, patients);
+        System.out.printf("reads  %12.0f ops/s%n", reads.get() / (double) seconds);
+        System.out.printf("writes %12.0f ops/s%n", writes.get() / (double) seconds);
+        System.out.println(violations.get() == 0 ? "PASS: all snapshots consistent"
+                : "FAIL: " + violations.get() + " inconsistent snapshots");
+        System.out.println("final size " + c.getIds().size() + " (expected " + patients + ")");
+    }
+
+    private static boolean isConsistent(ArrayList<String> ids, int patients, int writers) {
+        if (ids.size() > patients || ids.size() < patients - writers) {
+            return false;
+        }
+        for (int i = 1; i < ids.size(); i++) {
+            if (Integer.parseInt(ids.get(i - 1)) >= Integer.parseInt(ids.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,84 @@
+package bench;
+
+import backend.PatientCsvReader;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Compares the String.split ingest path with PatientCsvReader on a generated new patient file.
+ * <p>
+ * Usage: java bench.CsvParseBenchmark [rows] [iterations]
+ * <p>
+ * Each iteration parses every line into a double[] and reports rows per second and bytes
+ * allocated per row by the parsing thread.
+ *
+ * @author Matt Ellis
+ */
+public class CsvParseBenchmark {
+    private static final int NO_PROTEINS = 4776;
+
+    public static void main(String[] args) throws IOException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Path file = Files.createTempFile("patients", ".csv");
+        try {
+            new SyntheticCohort(42).writeNewPatientFile(file, 1, rows);
+            System.out.println("generated " + rows + " rows, " + Files.size(file) / (1 << 20) + " MB");
+            for (int i = 0; i < iterations; i++) {
+                report("split", rows, file, CsvParseBenchmark::parseWithSplit);
+                report("reader", rows, file, CsvParseBenchmark::parseWithReader);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static double parseWithSplit(Path file) throws IOException {
+        double checksum = 0;
+        try (BufferedReader br = new BufferedReader(new FileReader(file.toFile()))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] patientData = line.split(",");
+                double[] proteins = new double[NO_PROTEINS];
+                for (int i = 0; i < NO_PROTEINS; i++) {
+                    proteins[i] = Double.parseDouble(patientData[i + 1]);
+                }
+                checksum += proteins[NO_PROTEINS - 1];
+            }
+        }
+        return checksum;
+    }
+
+    private static double parseWithReader(Path file) throws IOException {
+        double checksum = 0;
+        try (PatientCsvReader reader = new PatientCsvReader(new FileReader(file.toFile()))) {
+            while (reader.nextLine()) {
+                double[] proteins = new double[NO_PROTEINS];
+                reader.getDoubles(1, proteins);
+                checksum += proteins[NO_PROTEINS - 1];
+            }
+        }
+        return checksum;
+    }
+
+    private static void report(String name, int rows, Path file, Parser parser) throws IOException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocated = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        double checksum = parser.parse(file);
+        long nanos = System.nanoTime() - start;
+        allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+        System.out.printf("%-7s %10.0f rows/s %10d bytes allocated/row (checksum %.4f)%n",
+                name, rows / (nanos / 1e9), allocated / rows, checksum);
+    }
+
+    private interface Parser {
+        double parse(Path file) throws IOException;
+    }
+}
@@ -0,0 +1,43 @@
+package bench;
+
+import backend.PatientCollection;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Times sequential and parallel addPatientsFromFile on a generated new patient file.
+ * <p>
+ * Usage: java bench.ImportBenchmark [rows] [iterations]
+ *
+ * @author Matt Ellis
+ */
+public class ImportBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        Path file = Files.createTempFile("patients", ".csv");
+        Path empty = Files.createTempFile("collection", ".csv");
+        try {
+            new SyntheticCohort(42).writeNewPatientFile(file, 1, rows);
+            double mb = Files.size(file) / (double) (1 << 20);
+            System.out.printf("generated %d rows, %.0f MB, %d cores%n", rows, mb, Runtime.getRuntime().availableProcessors());
+            for (int i = 0; i < iterations; i++) {
+                for (boolean parallel : new boolean[]{false, true}) {
+                    PatientCollection c = new PatientCollection(empty.toString());
+                    long start = System.nanoTime();
+                    String errors = c.addPatientsFromFile(file.toString(), parallel);
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    System.out.printf("%-10s %8.0f rows/s %8.1f MB/s%s%n", parallel ? "parallel" : "sequential",
+                            rows / seconds, mb / seconds, errors.isEmpty() ? "" : " (errors)");
+                }
+            }
+        } finally {
+            Files.delete(file);
+            Files.delete(empty);
+        }
+    }
+}
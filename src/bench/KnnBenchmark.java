@@ -0,0 +1,79 @@
+package bench;
+
+import backend.DistanceMetric;
+import backend.Neighbor;
+import backend.PatientCollection;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Times exact and approximate nearest-neighbor searches on a generated cohort of patients grouped
+ * around a number of random profiles, and reports the share of the exact neighbors the approximate
+ * search finds.
+ * <p>
+ * Usage: java bench.KnnBenchmark [rows] [groups] [k] [queries]
+ *
+ * @author Matt Ellis
+ */
+public class KnnBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int groups = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int k = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int queries = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+
+        Path file = Files.createTempFile("patients", ".csv");
+        Path empty = Files.createTempFile("collection", ".csv");
+        try {
+            SyntheticCohort cohort = new SyntheticCohort(42);
+            double[][] centers = new double[groups][];
+            for (int i = 0; i < groups; i++) {
+                centers[i] = cohort.nextProteins();
+            }
+            int[] next = {0};
+            cohort.writeNewPatientFile(file, 1, rows, () -> cohort.nextProteinsNear(centers[next[0]++ % groups], 1.0));
+            PatientCollection c = new PatientCollection(empty.toString());
+            c.addPatientsFromFile(file.toString(), true);
+            System.out.printf("loaded %d rows in %d groups%n", rows, groups);
+
+            long start = System.nanoTime();
+            c.findNearest("1", k, DistanceMetric.EUCLIDEAN, false);
+            System.out.printf("index build %8.3f s%n", (System.nanoTime() - start) / 1e9);
+
+            for (DistanceMetric metric : DistanceMetric.values()) {
+                long exactNanos = 0;
+                long approximateNanos = 0;
+                int found = 0;
+                for (int q = 0; q < queries; q++) {
+                    String id = Integer.toString(1 + (int) ((long) q * rows / queries));
+                    start = System.nanoTime();
+                    List<Neighbor> exact = c.findNearest(id, k, metric, true);
+                    exactNanos += System.nanoTime() - start;
+                    start = System.nanoTime();
+                    List<Neighbor> approximate = c.findNearest(id, k, metric, false);
+                    approximateNanos += System.nanoTime() - start;
+
+                    Set<String> expected = new HashSet<>();
+                    for (Neighbor n : exact) {
+                        expected.add(n.getId());
+                    }
+                    for (Neighbor n : approximate) {
+                        found += expected.contains(n.getId()) ? 1 : 0;
+                    }
+                }
+                System.out.printf("%-9s exact %8.3f ms | approximate %8.3f ms | %.1fx | recall@%d %.3f%n", metric,
+                        exactNanos / 1e6 / queries, approximateNanos / 1e6 / queries,
+                        exactNanos / (double) approximateNanos, k, found / (double) (queries * k));
+            }
+        } finally {
+            Files.delete(file);
+            Files.delete(empty);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package bench;
+
+import backend.Patient;
+import backend.PatientBinaryFile;
+import backend.PatientCollection;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Times opening a generated binary collection file lazily and reports the heap it takes, then
+ * times protein lookups where most requests go to a small set of recently viewed patients.
+ * Optionally opens the same file eagerly for comparison, which needs a heap larger than the file.
+ * <p>
+ * Usage: java bench.LazyOpenBenchmark [rows] [cachedPatients] [eager]
+ *
+ * @author Matt Ellis
+ */
+public class LazyOpenBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int cached = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        boolean eager = args.length > 2 && args[2].equals("eager");
+
+        Path file = Files.createTempFile("patients", PatientBinaryFile.EXTENSION);
+        try {
+            SyntheticCohort cohort = new SyntheticCohort(42);
+            PatientBinaryFile.write(file.toString(), SyntheticCohort.NO_PROTEINS, () -> new Iterator<Patient>() {
+                private int next = 1;
+
+                @Override
+                public boolean hasNext() {
+                    return next <= rows;
+                }
+
+                @Override
+                public Patient next() {
+                    return new Patient(String.valueOf(next++), "unk", "predDP", cohort.nextProteins());
+                }
+            });
+            System.out.printf("generated %d rows, %.0f MB%n", rows, Files.size(file) / (double) (1 << 20));
+
+            long heapBefore = usedHeap();
+            long start = System.nanoTime();
+            PatientCollection lazy = new PatientCollection(file.toString(), cached);
+            report("lazy", System.nanoTime() - start, usedHeap() - heapBefore, lazy);
+            lookups(lazy, rows);
+
+            if (eager) {
+                lazy = null;
+                heapBefore = usedHeap();
+                start = System.nanoTime();
+                PatientCollection loaded = new PatientCollection(file.toString());
+                report("eager", System.nanoTime() - start, usedHeap() - heapBefore, loaded);
+                lookups(loaded, rows);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Requests proteins of random patients, 90% of them from a hot set of 100 patients
+     */
+    private static void lookups(PatientCollection c, int rows) {
+        Random random = new Random(7);
+        ArrayList<String> ids = c.getIds();
+        int lookups = 100000;
+        double sum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            int row = random.nextInt(10) < 9 ? random.nextInt(Math.min(100, rows)) : random.nextInt(rows);
+            sum += c.getPatient(ids.get(row)).getProteins().getLevel(i % SyntheticCohort.NO_PROTEINS);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("  %d lookups, %.0f lookups/s (checksum %.1f)%n", lookups, lookups / seconds, sum);
+    }
+
+    private static void report(String name, long nanos, long heapBytes, PatientCollection c) {
+        System.out.printf("%-6s opened %d patients in %.3f s, heap %.1f MB%n", name, c.getIds().size(), nanos / 1e9,
+                heapBytes / (double) (1 << 20));
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
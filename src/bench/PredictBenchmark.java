@@ -0,0 +1,60 @@
+package bench;
+
+import backend.DecisionTreeModel;
+import backend.Predictor;
+
+import java.util.Random;
+
+/**
+ * Compares scoring patients one at a time with Predictor.predict(double, double) against the batch
+ * classification collections are rescored with, DecisionTreeModel.classifyColumns, on the built-in tree.
+ * <p>
+ * Usage: java bench.PredictBenchmark [rows] [iterations]
+ *
+ * @author Matt Ellis
+ */
+public class PredictBenchmark {
+
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        // levels spread around both thresholds so a branchy predictor mispredicts often
+        Random random = new Random(42);
+        double[] p1 = new double[rows];
+        double[] p2 = new double[rows];
+        for (int i = 0; i < rows; i++) {
+            p1[i] = 20.0 + random.nextDouble() * 2.0;
+            p2[i] = 21.0 + random.nextDouble() * 2.0;
+        }
+        // only the columns of the tested proteins are read
+        double[][] columns = new double[SyntheticCohort.NO_PROTEINS][];
+        columns[3697] = p1;
+        columns[3258] = p2;
+        DecisionTreeModel model = DecisionTreeModel.DEFAULT;
+        String[] labels = new String[rows];
+        byte[] codes = new byte[rows];
+
+        for (int it = 0; it < iterations; it++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < rows; i++) {
+                labels[i] = Predictor.predict(p1[i], p2[i]);
+            }
+            long single = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            model.classifyColumns(columns, rows, codes);
+            long batch = System.nanoTime() - start;
+
+            int cr = 0;
+            boolean same = true;
+            for (int i = 0; i < rows; i++) {
+                String label = model.getLabel(codes[i]);
+                cr += label.equals("predCR") ? 1 : 0;
+                same &= label.equals(labels[i]);
+            }
+            System.out.printf("single %7.1f M rows/s   batch %7.1f M rows/s   (%d predCR, same %b)%n",
+                    rows / (single / 1e3), rows / (batch / 1e3), cr, same);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package bench;
+
+import backend.Patient;
+import backend.PatientCollection;
+import backend.ProteinPrecision;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+/**
+ * Compares the heap footprint of patients holding boxed ArrayList&lt;Double&gt; protein lists
+ * with patients holding primitive double[] protein vectors, then the heap footprint and the speed of
+ * reading every level of a collection kept at each {@link ProteinPrecision}.
+ * <p>
+ * Usage: java bench.ProteinStorageBenchmark [patients]
+ *
+ * @author Matt Ellis
+ */
+public class ProteinStorageBenchmark {
+
+    // keeps scan results reachable so the scans are not optimized away
+    private static volatile double sink;
+
+    public static void main(String[] args) throws IOException {
+        int patients = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+        long before = usedHeap();
+        ArrayList<ArrayList<Double>> boxed = new ArrayList<>();
+        SyntheticCohort cohort = new SyntheticCohort(42);
+        for (int i = 0; i < patients; i++) {
+            ArrayList<Double> list = new ArrayList<>();
+            for (double d : cohort.nextProteins()) {
+                list.add(d);
+            }
+            boxed.add(list);
+        }
+        long boxedBytes = usedHeap() - before;
+        System.out.println("ArrayList<Double>: " + boxedBytes / patients + " bytes per patient (" + boxed.size() + " patients)");
+        boxed = null;
+
+        before = usedHeap();
+        ArrayList<Patient> primitive = new ArrayList<>();
+        cohort = new SyntheticCohort(42);
+        for (int i = 0; i < patients; i++) {
+            primitive.add(new Patient(Integer.toString(i), cohort.nextProteins()));
+        }
+        long primitiveBytes = usedHeap() - before;
+        System.out.println("Patient (double[]): " + primitiveBytes / patients + " bytes per patient (" + primitive.size() + " patients)");
+        primitive = null;
+
+        Path file = Files.createTempFile("patients", ".csv");
+        Path empty = Files.createTempFile("collection", ".csv");
+        try {
+            new SyntheticCohort(42).writeNewPatientFile(file, 1, patients);
+            for (ProteinPrecision precision : ProteinPrecision.values()) {
+                before = usedHeap();
+                PatientCollection c = new PatientCollection(empty.toString(), false, precision);
+                c.addPatientsFromFile(file.toString());
+                long bytes = usedHeap() - before;
+                ArrayList<Patient> rows = new ArrayList<>();
+                for (String id : c.getIds()) {
+                    rows.add(c.getPatient(id));
+                }
+                scan(rows);
+                int passes = 5;
+                long start = System.nanoTime();
+                for (int i = 0; i < passes; i++) {
+                    scan(rows);
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("%-12s %8d bytes per patient, scan %8.1f million levels/s (%d patients)%n",
+                        precision, bytes / c.size(), (double) passes * c.size() * SyntheticCohort.NO_PROTEINS / seconds / 1e6,
+                        c.size());
+            }
+        } finally {
+            Files.delete(file);
+            Files.delete(empty);
+        }
+    }
+
+    /**
+     * Sums every protein level of every patient
+     */
+    private static void scan(ArrayList<Patient> rows) {
+        double sum = 0;
+        for (Patient p : rows) {
+            for (int i = 0; i < SyntheticCohort.NO_PROTEINS; i++) {
+                sum += p.getLevel(i);
+            }
+        }
+        sink = sum;
+    }
+
+    static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
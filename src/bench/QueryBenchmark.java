@@ -0,0 +1,73 @@
+package bench;
+
+import backend.ColumnarPatientCollection;
+import backend.PatientCollection;
+import backend.PatientQuery;
+import backend.QueryResult;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Times queries of different selectivity on a generated cohort: the first indexed query, which
+ * builds the protein indexes it needs, later indexed queries, a full scan over the patients and a
+ * scan over the columns of a columnar collection.
+ * <p>
+ * Usage: java bench.QueryBenchmark [rows] [repetitions]
+ *
+ * @author Matt Ellis
+ */
+public class QueryBenchmark {
+
+    private static final String[] QUERIES = {
+            "P100 <= 17.07 AND P200 >= 23.5",
+            "P3698 > 23.5 AND response = unk",
+            "P3698 > 20.903959 AND P3259 <= 22.058599",
+            "prediction = predCR",
+    };
+    // keeps results reachable so the queries are not optimized away
+    private static volatile QueryResult sink;
+
+    public static void main(String[] args) throws IOException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int repetitions = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        Path file = Files.createTempFile("patients", ".csv");
+        Path empty = Files.createTempFile("collection", ".csv");
+        try {
+            new SyntheticCohort(42).writeNewPatientFile(file, 1, rows);
+            PatientCollection c = new PatientCollection(empty.toString());
+            c.addPatientsFromFile(file.toString(), true);
+            ColumnarPatientCollection columnar = new ColumnarPatientCollection(empty.toString());
+            columnar.addPatientsFromFile(file.toString(), true);
+            System.out.printf("loaded %d rows%n", rows);
+
+            for (String text : QUERIES) {
+                PatientQuery query = PatientQuery.parse(text).select(3698, 3259);
+                long start = System.nanoTime();
+                int matches = c.query(query).size();
+                long first = System.nanoTime() - start;
+
+                long scan = time(() -> sink = query.scan(c), repetitions);
+                long indexed = time(() -> sink = c.query(query), repetitions);
+                long columns = time(() -> sink = columnar.query(query), repetitions);
+                System.out.printf("%-42s %6d matches | first %8.3f ms | indexed %8.3f ms | scan %8.3f ms"
+                                + " | columnar %8.3f ms | %.0fx%n", text, matches, first / 1e6, indexed / 1e6,
+                        scan / 1e6, columns / 1e6, scan / (double) indexed);
+            }
+        } finally {
+            Files.delete(file);
+            Files.delete(empty);
+        }
+    }
+
+    private static long time(Runnable query, int repetitions) {
+        query.run();
+        long start = System.nanoTime();
+        for (int i = 0; i < repetitions; i++) {
+            query.run();
+        }
+        return (System.nanoTime() - start) / repetitions;
+    }
+}
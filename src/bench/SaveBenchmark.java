@@ -0,0 +1,75 @@
+package bench;
+
+import backend.Patient;
+import backend.PatientCollection;
+import backend.ProteinVector;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Times saving a collection with writeFile against the previous BufferedWriter and
+ * string concatenation save, on a generated cohort.
+ * <p>
+ * Usage: java bench.SaveBenchmark [rows] [iterations]
+ *
+ * @author Matt Ellis
+ */
+public class SaveBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        Path input = Files.createTempFile("patients", ".csv");
+        Path empty = Files.createTempFile("collection", ".csv");
+        Path output = Files.createTempFile("saved", ".csv");
+        try {
+            new SyntheticCohort(42).writeNewPatientFile(input, 1, rows);
+            PatientCollection c = new PatientCollection(empty.toString());
+            c.addPatientsFromFile(input.toString(), true);
+            System.out.printf("loaded %d rows%n", c.getIds().size());
+            for (int i = 0; i < iterations; i++) {
+                long start = System.nanoTime();
+                writeWithBufferedWriter(c, output.toString());
+                report("buffered", rows, output, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                c.writeFile(output.toString());
+                report("writeFile", rows, output, System.nanoTime() - start);
+            }
+        } finally {
+            Files.delete(input);
+            Files.delete(empty);
+            Files.delete(output);
+        }
+    }
+
+    private static void report(String name, int rows, Path output, long nanos) throws IOException {
+        double seconds = nanos / 1e9;
+        double mb = Files.size(output) / (double) (1 << 20);
+        System.out.printf("%-10s %8.3f s %8.0f rows/s %8.1f MB/s%n", name, seconds, rows / seconds, mb / seconds);
+    }
+
+    /**
+     * The save used before writeFile streamed through PatientCsvWriter
+     */
+    private static void writeWithBufferedWriter(PatientCollection c, String fn) throws IOException {
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(fn))) {
+            for (String id : c.getIds()) {
+                Patient p = c.getPatient(id);
+                out.write(p.getResponse() + ",");
+                out.write(p.getPredict() + ",");
+                out.write(p.getId() + ",");
+                ProteinVector proteins = p.getProteins();
+                for (int i = 0; i < proteins.size(); i++) {
+                    out.write(proteins.getLevel(i) + ",");
+                }
+                out.newLine();
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package bench;
+
+import backend.LatencyHistogram;
+import backend.PatientCollection;
+import server.PatientClient;
+import server.PatientServer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads a generated cohort into a {@link PatientServer} and drives it over loopback from several
+ * client connections, each keeping a given number of requests on the wire. Nine requests in ten ask
+ * for a patient's prediction and one in ten for the whole patient. Reports throughput and latency
+ * percentiles for each pipeline depth, then times a bulk export of every patient's levels.
+ * <p>
+ * Usage: java bench.ServerLoadBenchmark [rows] [connections] [seconds] [depth...]
+ *
+ * @author Matt Ellis
+ */
+public class ServerLoadBenchmark {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int[] depths = {1, 16, 64};
+        if (args.length > 3) {
+            depths = new int[args.length - 3];
+            for (int i = 3; i < args.length; i++) {
+                depths[i - 3] = Integer.parseInt(args[i]);
+            }
+        }
+
+        Path file = Files.createTempFile("patients", ".csv");
+        Path empty = Files.createTempFile("collection", ".csv");
+        try {
+            new SyntheticCohort(42).writeNewPatientFile(file, 1, rows);
+            PatientCollection c = new PatientCollection(empty.toString());
+            c.addPatientsFromFile(file.toString(), true);
+            try (PatientServer server = new PatientServer(c, 0)) {
+                List<String> ids = c.getIds();
+                for (int depth : depths) {
+                    // the first pass warms up the server and the clients
+                    drive(server.getPort(), ids, connections, depth, 1);
+                    drive(server.getPort(), ids, connections, depth, seconds);
+                }
+                export(server.getPort());
+            }
+        } finally {
+            Files.delete(file);
+            Files.delete(empty);
+        }
+    }
+
+    private static void drive(int port, List<String> ids, int connections, int depth, int seconds)
+            throws IOException, InterruptedException {
+        LatencyHistogram latency = new LatencyHistogram();
+        AtomicLong failed = new AtomicLong();
+        Thread[] drivers = new Thread[connections];
+        PatientClient[] clients = new PatientClient[connections];
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        for (int t = 0; t < connections; t++) {
+            PatientClient client = clients[t] = new PatientClient(port);
+            Random random = new Random(t);
+            drivers[t] = new Thread(() -> {
+                Semaphore window = new Semaphore(depth);
+                try {
+                    while (System.nanoTime() < end) {
+                        window.acquire();
+                        String id = ids.get(random.nextInt(ids.size()));
+                        long start = System.nanoTime();
+                        CompletableFuture<?> answer = random.nextInt(10) == 0 ? client.getPatient(id)
+                                : client.getPrediction(id);
+                        answer.whenComplete((result, e) -> {
+                            if (e != null || result == null) {
+                                failed.incrementAndGet();
+                            }
+                            latency.record(System.nanoTime() - start);
+                            window.release();
+                        });
+                    }
+                    // the last answers
+                    window.acquire(depth);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread driver : drivers) {
+            driver.start();
+        }
+        for (Thread driver : drivers) {
+            driver.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        for (PatientClient client : clients) {
+            client.close();
+        }
+        if (seconds > 1) {
+            System.out.printf("depth %3d x %d connections: %8.0f requests/s, p50 %7.1f us, p99 %7.1f us, max %8.1f us, %d failed%n",
+                    depth, connections, latency.getCount() * 1e9 / elapsed, latency.getValueAtPercentile(50) / 1e3,
+                    latency.getValueAtPercentile(99) / 1e3, latency.getMax() / 1e3, failed.get());
+        }
+    }
+
+    private static void export(int port) throws IOException {
+        long[] values = new long[1];
+        try (PatientClient client = new PatientClient(port)) {
+            long start = System.nanoTime();
+            int rows = client.exportProteins(new int[0], (id, levels) -> values[0] += levels.length).join();
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("export of %d rows, %d levels: %.0f ms, %.0f MB/s%n", rows, values[0], elapsed / 1e6,
+                    values[0] * Double.BYTES * 1e3 / elapsed);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package bench;
+
+import backend.PatientCollection;
+import backend.ProteinStats;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Times the first full statistics pass over a generated cohort, keeping the statistics up to date
+ * while more patients are imported, and the rebuild a query triggers after a removal.
+ * <p>
+ * Usage: java bench.StatisticsBenchmark [rows] [addedRows]
+ *
+ * @author Matt Ellis
+ */
+public class StatisticsBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int added = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        Path cohortFile = Files.createTempFile("patients", ".csv");
+        Path addedFile = Files.createTempFile("added", ".csv");
+        Path empty = Files.createTempFile("collection", ".csv");
+        try {
+            SyntheticCohort cohort = new SyntheticCohort(42);
+            cohort.writeNewPatientFile(cohortFile, 1, rows);
+            cohort.writeNewPatientFile(addedFile, rows + 1, added);
+            PatientCollection c = new PatientCollection(empty.toString());
+            c.addPatientsFromFile(cohortFile.toString(), true);
+            System.out.printf("loaded %d rows, %d cores%n", rows, Runtime.getRuntime().availableProcessors());
+
+            long start = System.nanoTime();
+            c.getStatistics();
+            report("full pass", rows, System.nanoTime() - start);
+
+            PatientCollection baseline = new PatientCollection(empty.toString());
+            start = System.nanoTime();
+            baseline.addPatientsFromFile(addedFile.toString());
+            long importOnly = System.nanoTime() - start;
+            start = System.nanoTime();
+            c.addPatientsFromFile(addedFile.toString());
+            report("import + incremental", added, System.nanoTime() - start);
+            report("import alone", added, importOnly);
+
+            c.removePatient("1");
+            start = System.nanoTime();
+            ProteinStats stats = c.getStatistics().getProteinStats(null, 3698);
+            report("rebuild after remove", rows + added - 1, System.nanoTime() - start);
+            System.out.println(stats);
+        } finally {
+            Files.delete(cohortFile);
+            Files.delete(addedFile);
+            Files.delete(empty);
+        }
+    }
+
+    private static void report(String name, int rows, long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.printf("%-22s %8.3f s %10.0f patients/s%n", name, seconds, rows / seconds);
+    }
+}
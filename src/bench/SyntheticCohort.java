@@ -0,0 +1,86 @@
+package bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Generates synthetic patient data shaped like the research data set:
+ * 4776 normalized protein expression levels per patient, roughly 17 to 24.
+ *
+ * @author Matt Ellis
+ */
+public class SyntheticCohort {
+    public static final int NO_PROTEINS = 4776;
+    private final Random random;
+
+    public SyntheticCohort(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Returns a new vector of protein levels rounded to 8 decimal places like the source data
+     *
+     * @return protein levels, index 0 holding protein 1
+     */
+    public double[] nextProteins() {
+        double[] levels = new double[NO_PROTEINS];
+        for (int i = 0; i < NO_PROTEINS; i++) {
+            levels[i] = Math.round((17.0 + random.nextDouble() * 7.0) * 1e8) / 1e8;
+        }
+        return levels;
+    }
+
+    /**
+     * Returns a new vector of protein levels scattered normally around a given patient's, for cohorts
+     * in which patients form groups of similar profiles
+     *
+     * @param center protein levels to scatter around
+     * @param spread standard deviation of each level around the center
+     * @return protein levels, index 0 holding protein 1
+     */
+    public double[] nextProteinsNear(double[] center, double spread) {
+        double[] levels = new double[NO_PROTEINS];
+        for (int i = 0; i < NO_PROTEINS; i++) {
+            levels[i] = Math.round((center[i] + random.nextGaussian() * spread) * 1e8) / 1e8;
+        }
+        return levels;
+    }
+
+    /**
+     * Writes a new patient file with lines of the format id,protein1,protein2, ... ,protein4776
+     *
+     * @param file    file to write
+     * @param firstId id of the first patient, later patients count up from it
+     * @param rows    number of patients
+     * @throws IOException if the file cannot be written
+     */
+    public void writeNewPatientFile(Path file, int firstId, int rows) throws IOException {
+        writeNewPatientFile(file, firstId, rows, this::nextProteins);
+    }
+
+    /**
+     * Writes a new patient file with lines of the format id,protein1,protein2, ... ,protein4776
+     *
+     * @param file     file to write
+     * @param firstId  id of the first patient, later patients count up from it
+     * @param rows     number of patients
+     * @param proteins generates each patient's protein levels
+     * @throws IOException if the file cannot be written
+     */
+    public void writeNewPatientFile(Path file, int firstId, int rows, Supplier<double[]> proteins) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(file)) {
+            for (int row = 0; row < rows; row++) {
+                out.write(Integer.toString(firstId + row));
+                for (double d : proteins.get()) {
+                    out.write(',');
+                    out.write(Double.toString(d));
+                }
+                out.newLine();
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package gui;
+
+import backend.PatientCollection;
+import backend.PatientFileImport;
+
+import javax.swing.*;
+
+/**
+ * Imports new patients from a file without holding up the user interface.
+ * <p>
+ * Lines are read and predicted in batches on the background thread. Each batch is then added to the
+ * collection on the event dispatch thread, where the collection is always changed, so the collection
+ * can be browsed and edited while the import runs. Batches are handed over with invokeLater rather
+ * than publish, whose batches could still be waiting when {@link #done()} runs. Stopping keeps the
+ * patients already added.
+ *
+ * @author Matt Ellis
+ */
+class ImportWorker extends ProgressWorker<Boolean> {
+    private static final int BATCH_ROWS = 256;
+
+    private final PatientCollection collection;
+    private final String fileName;
+    private final Runnable onDone;
+    // only used on the event dispatch thread
+    private final StringBuilder errors = new StringBuilder();
+    private long rowsAdded;
+
+    /**
+     * @param collection collection to add the patients to
+     * @param fileName   a csv file with lines of the format id,protein1,protein2, ... ,protein4776
+     * @param onDone     run on the event dispatch thread after the import ends
+     */
+    ImportWorker(PatientCollection collection, String fileName, JProgressBar progressBar, JLabel statusLabel,
+                 Runnable onDone) {
+        super(progressBar, statusLabel);
+        this.collection = collection;
+        this.fileName = fileName;
+        this.onDone = onDone;
+    }
+
+    @Override
+    protected Boolean doInBackground() {
+        try (PatientFileImport file = new PatientFileImport(fileName)) {
+            PatientFileImport.Batch batch;
+            while (!isStopRequested() && (batch = file.next(BATCH_ROWS)) != null) {
+                PatientFileImport.Batch added = batch;
+                SwingUtilities.invokeLater(() -> add(added));
+                reportProgress(file.getRowsRead(), file.getBytesRead(), file.getBytesRead(), file.getTotalBytes());
+            }
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.err.println(
+                    "there was a problem with the file reader, try again.  either no such file or format error");
+            return false;
+        }
+    }
+
+    private void add(PatientFileImport.Batch batch) {
+        if (!isStopRequested()) {
+            errors.append(collection.addPatients(batch));
+            rowsAdded += batch.size();
+        }
+    }
+
+    @Override
+    protected void done() {
+        boolean read;
+        try {
+            read = get();
+        } catch (Exception e) {
+            read = false;
+        }
+        if (isStopRequested()) {
+            finish("Import stopped after<br>" + throughput(rowsAdded));
+        } else {
+            finish((read ? "Imported " : "Import failed after ") + throughput(rowsAdded));
+        }
+        // if addition of patients had errors, display them
+        if (!read) {
+            errors.append("Could not read ").append(fileName).append('\n');
+        }
+        if (errors.length() > 0) {
+            JOptionPane.showMessageDialog(null, errors.toString(), "Error", JOptionPane.ERROR_MESSAGE);
+        }
+        onDone.run();
+    }
+}
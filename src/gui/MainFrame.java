@@ -2,6 +2,8 @@ package gui;
 
 import java.awt.Dimension;
 
+import backend.CollectionMetrics;
+
 import javax.swing.JFrame;
 
 /**
@@ -12,6 +14,7 @@ import javax.swing.JFrame;
 public class MainFrame {
 
     public static void main(String[] args) {
+        CollectionMetrics.get().registerMBean();
         JFrame frame = new JFrame("Patient Collection Manager");
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         frame.setPreferredSize(new Dimension(815, 538));
@@ -1,5 +1,6 @@
 package gui;
 
+import backend.PatientChange;
 import backend.PatientCollection;
 
 import javax.swing.*;
@@ -11,6 +12,7 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.print.PrinterException;
 import java.awt.print.PrinterJob;
+import java.util.List;
 
 /**
  * Implements GUI for a patient collection
@@ -18,8 +20,10 @@ import java.awt.print.PrinterJob;
  * @author Matt Ellis
  */
 public class MainPanel extends JPanel {
+    // changes waiting for the event dispatch thread before the combo box is rebuilt from scratch
+    private static final int CHANGE_FEED_CAPACITY = 10000;
     private final PatientCollection patCollection;
-    private final JTextArea patientCollectionTextArea;
+    private final JTable patientCollectionTable;
     private final JScrollPane patientCollectionScrollPane;
     private final JComboBox<String> patientIdsComboBox;
     private final JPanel controlPanel;
@@ -34,9 +38,17 @@ public class MainPanel extends JPanel {
     private final JRadioButton dp_radioButton;
     private final JRadioButton cr_radioButton;
     private final JButton updatePatientResponseButton;
+    private final JButton addPatientsFromFileButton;
+    private final JMenuItem saveMenuItem;
+    private final JProgressBar progressBar;
+    private final JLabel progressLabel;
+    private final JButton stopButton;
+    private ProgressWorker<?> runningWorker;
 
     public MainPanel() {
         patCollection = new PatientCollection();
+        // the combo box and patient info follow every change to the collection, in batches on the EDT
+        patCollection.subscribe(CHANGE_FEED_CAPACITY, SwingUtilities::invokeLater, this::patientsChanged);
 
         setLayout(null);
         setPreferredSize(new Dimension(800, 500));
@@ -96,15 +108,12 @@ public class MainPanel extends JPanel {
                 displayCollectionPanel.setEnabled(true);
                 displayCollectionPanel.setVisible(true);
                 greetPanel.setVisible(false);
-
-                // prints patient collection
-                updatePatCollectionDisplay();
             }
         });
         controlPanel.add(displayPatientCollectionButton);
 
         // addPatientsFromFileButton: opens file chooser to import new patients to collection
-        JButton addPatientsFromFileButton = new JButton("Add Patients From File");
+        addPatientsFromFileButton = new JButton("Add Patients From File");
         addPatientsFromFileButton.setBounds(10, 130, 180, 23);
         addPatientsFromFileButton.setFont(new Font("Verdana", Font.PLAIN, 11));
         addPatientsFromFileButton.addActionListener(new ActionListener() {
@@ -116,18 +125,43 @@ public class MainPanel extends JPanel {
                 jfc.addChoosableFileFilter(filter);
                 int returnValue = jfc.showOpenDialog(null);
                 if (returnValue == JFileChooser.APPROVE_OPTION) {
-                    String err = patCollection.addPatientsFromFile(jfc.getSelectedFile().toString());
-                    // if addition of patients had errors, display them
-                    if (!err.equals("")) {
-                        JOptionPane.showMessageDialog(null, err, "Error", JOptionPane.ERROR_MESSAGE);
-                    }
+                    // patients are read in the background and shown as they are added
+                    startWorker(new ImportWorker(patCollection, jfc.getSelectedFile().toString(), progressBar,
+                            progressLabel, MainPanel.this::workerDone));
                 }
-                updatePatientListComboBox();
-                updatePatCollectionDisplay();
             }
         });
         controlPanel.add(addPatientsFromFileButton);
 
+        // label showing rows and bytes processed by an import or save, then its throughput
+        progressLabel = new JLabel();
+        progressLabel.setFont(new Font("Verdana", Font.PLAIN, 10));
+        progressLabel.setVerticalAlignment(SwingConstants.BOTTOM);
+        progressLabel.setBounds(10, 370, 180, 50);
+        controlPanel.add(progressLabel);
+
+        // progress of an import or save
+        progressBar = new JProgressBar(0, 100);
+        progressBar.setStringPainted(true);
+        progressBar.setBounds(10, 425, 180, 20);
+        progressBar.setVisible(false);
+        controlPanel.add(progressBar);
+
+        // stopButton: stops a running import or save
+        stopButton = new JButton("Stop");
+        stopButton.setBounds(10, 450, 180, 23);
+        stopButton.setFont(new Font("Verdana", Font.PLAIN, 11));
+        stopButton.setVisible(false);
+        stopButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                if (runningWorker != null) {
+                    runningWorker.stop();
+                    stopButton.setEnabled(false);
+                }
+            }
+        });
+        controlPanel.add(stopButton);
+
         /*
          * menu bar located at top of the controlPanel. It holds options for loading a patient collection,
          * saving a patient collection, and exiting the program
@@ -141,22 +175,35 @@ public class MainPanel extends JPanel {
         menuBar.add(fileMenu);
 
         // save the patient collection from the menu
-        JMenuItem saveMenuItem = new JMenuItem("Save");
+        saveMenuItem = new JMenuItem("Save");
         saveMenuItem.addMouseListener(new MouseAdapter() {
             @Override
             public void mousePressed(MouseEvent e) {
+                // a disabled menu item still hears the mouse
+                if (!saveMenuItem.isEnabled()) {
+                    return;
+                }
                 int response = JOptionPane.showConfirmDialog(null, "Do want to save?", "Confirm",
                         JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
                 if (response == JOptionPane.YES_OPTION) {
-                    patCollection.writeFile();
+                    // the file is written in the background from a copy of the collection
+                    startWorker(new SaveWorker(patCollection, progressBar, progressLabel, MainPanel.this::workerDone));
                 }
             }
         });
 
-        exitMenuItem = new JMenuItem("Exit (without saving)");
+        // changes are journaled as they are made, so exiting without saving keeps them
+        exitMenuItem = new JMenuItem("Exit");
         exitMenuItem.addMouseListener(new MouseAdapter() {
             @Override
             public void mousePressed(MouseEvent e) {
+                if (runningWorker != null) {
+                    int response = JOptionPane.showConfirmDialog(null, "An import or save is running. Exit anyway?",
+                            "Confirm", JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
+                    if (response != JOptionPane.YES_OPTION) {
+                        return;
+                    }
+                }
                 System.exit(0);
             }
         });
@@ -227,12 +274,10 @@ public class MainPanel extends JPanel {
             public void actionPerformed(ActionEvent e) {
                 String patId = patientIdsComboBox.getSelectedItem().toString();
                 if (cr_radioButton.isSelected()) {
-                    patCollection.getPatient(patId).setResponse("CR");
+                    patCollection.setResultForPatient(patId, "CR");
                 } else {
-                    patCollection.getPatient(patId).setResponse("DP");
+                    patCollection.setResultForPatient(patId, "DP");
                 }
-                setTextForSelectedPatientLabel();
-                updatePatCollectionDisplay();
             }
         });
         modifyPatientPanel.add(updatePatientResponseButton);
@@ -248,8 +293,6 @@ public class MainPanel extends JPanel {
                         JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
                 if (response == JOptionPane.YES_OPTION) {
                     patCollection.removePatient(id);
-                    updatePatientListComboBox();
-                    updatePatCollectionDisplay();
                 }
             }
         });
@@ -268,7 +311,7 @@ public class MainPanel extends JPanel {
 
         /*
          * displayCollectionPanel: shares space with modifyPatientPanel and greetPanel
-         * functionality: displays complete patient collection in a Jtextarea, and allows
+         * functionality: displays complete patient collection in a JTable, and allows
          * for printing of the patient collection
          */
         displayCollectionPanel = new JPanel();
@@ -282,12 +325,12 @@ public class MainPanel extends JPanel {
         patientCollectionScrollPane.setBounds(10, 60, 580, 429);
         displayCollectionPanel.add(patientCollectionScrollPane);
 
-        // textarea for patient collection data
-        patientCollectionTextArea = new JTextArea();
-        patientCollectionTextArea.setFont(new Font("Noto Sans", Font.PLAIN, 11));
-        patientCollectionTextArea.setEditable(false);
-        patientCollectionTextArea.setBackground(SystemColor.control);
-        patientCollectionScrollPane.setViewportView(patientCollectionTextArea);
+        // table for patient collection data, reading only the rows in view from the collection
+        patientCollectionTable = new JTable(new PatientTableModel(patCollection));
+        patientCollectionTable.setFont(new Font("Noto Sans", Font.PLAIN, 11));
+        patientCollectionTable.setFillsViewportHeight(true);
+        patientCollectionTable.setBackground(SystemColor.control);
+        patientCollectionScrollPane.setViewportView(patientCollectionTable);
 
         // title header at top of the displayCollectionPanel
         JLabel displayCollectionPanelHeader = new JLabel("Patient Collection");
@@ -303,7 +346,7 @@ public class MainPanel extends JPanel {
         printCollectionButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
                 PrinterJob job = PrinterJob.getPrinterJob();
-                job.setPrintable(patientCollectionTextArea.getPrintable(null, null));
+                job.setPrintable(patientCollectionTable.getPrintable(JTable.PrintMode.FIT_WIDTH, null, null));
                 boolean ok = job.printDialog();
                 if (ok) {
                     try {
@@ -323,9 +366,48 @@ public class MainPanel extends JPanel {
 
     }
 
+    private void startWorker(ProgressWorker<?> worker) {
+        // one import or save at a time
+        runningWorker = worker;
+        addPatientsFromFileButton.setEnabled(false);
+        saveMenuItem.setEnabled(false);
+        progressLabel.setText("");
+        progressBar.setVisible(true);
+        stopButton.setEnabled(true);
+        stopButton.setVisible(true);
+        worker.execute();
+    }
+
+    private void workerDone() {
+        runningWorker = null;
+        addPatientsFromFileButton.setEnabled(true);
+        saveMenuItem.setEnabled(true);
+        progressBar.setVisible(false);
+        stopButton.setVisible(false);
+    }
+
+    private void patientsChanged(List<PatientChange> changes, boolean resync) {
+        // refreshes the combo box and patient info from a batch of changes, whoever made them
+        boolean idsChanged = resync;
+        boolean selectedChanged = false;
+        for (PatientChange change : changes) {
+            idsChanged |= change.getType() == PatientChange.Type.ADDED || change.getType() == PatientChange.Type.REMOVED;
+            selectedChanged |= change.getId().equals(patientIdsComboBox.getSelectedItem());
+        }
+        if (idsChanged) {
+            updatePatientListComboBox();
+        } else if (selectedChanged) {
+            setTextForSelectedPatientLabel();
+        }
+    }
+
     private void updatePatientListComboBox() {
-        // updates the patient ids listed in the combo box
+        // updates the patient ids listed in the combo box, keeping the selected patient if still there
+        Object selected = patientIdsComboBox.getSelectedItem();
         patientIdsComboBox.setModel(new DefaultComboBoxModel(patCollection.getIds().toArray()));
+        if (selected != null && patCollection.getPatient(selected.toString()) != null) {
+            patientIdsComboBox.setSelectedItem(selected);
+        }
         setTextForSelectedPatientLabel();
     }
 
@@ -341,9 +423,4 @@ public class MainPanel extends JPanel {
             selectedPatientLabel.setText("");
         }
     }
-
-    private void updatePatCollectionDisplay() {
-        // updates the patient collection data displayed in the displayCollectionPanel
-        patientCollectionTextArea.setText(patCollection.toString());
-    }
 }
@@ -0,0 +1,89 @@
+package gui;
+
+import backend.Patient;
+import backend.PatientCollection;
+import backend.PatientCollectionListener;
+
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * Shows a patient collection as a table with one row per patient in ascending id order: id,
+ * response, prediction and the two proteins the predictor tests.
+ * <p>
+ * Rows are read from the collection when the table paints them, so only the visible rows are ever
+ * looked at, and each change to the collection updates just the row it touched. The collection must
+ * only be changed on the event dispatch thread while the model listens to it.
+ *
+ * @author Matt Ellis
+ */
+public class PatientTableModel extends AbstractTableModel implements PatientCollectionListener {
+    private static final long serialVersionUID = 1L;
+    private static final int PROTEIN1 = 3698;
+    private static final int PROTEIN2 = 3259;
+    private static final String[] COLUMNS = {"Id", "Response", "Predicted", "Protein " + PROTEIN1,
+            "Protein " + PROTEIN2};
+
+    private final PatientCollection collection;
+
+    /**
+     * Creates a model showing a collection and starts listening to its changes
+     *
+     * @param collection collection to show
+     */
+    public PatientTableModel(PatientCollection collection) {
+        this.collection = collection;
+        collection.addPatientCollectionListener(this);
+    }
+
+    @Override
+    public int getRowCount() {
+        return collection.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return column < 3 ? String.class : Double.class;
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        Patient p = collection.getPatient(collection.getId(row));
+        switch (column) {
+            case 0:
+                return p.getId();
+            case 1:
+                return p.getResponse();
+            case 2:
+                return p.getPredict();
+            case 3:
+                return p.getLevel(PROTEIN1 - 1);
+            default:
+                return p.getLevel(PROTEIN2 - 1);
+        }
+    }
+
+    @Override
+    public void patientAdded(String id, int row) {
+        fireTableRowsInserted(row, row);
+    }
+
+    @Override
+    public void patientRemoved(String id, int row) {
+        fireTableRowsDeleted(row, row);
+    }
+
+    @Override
+    public void patientChanged(String id, int row) {
+        fireTableRowsUpdated(row, row);
+    }
+}
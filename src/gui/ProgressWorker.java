@@ -0,0 +1,79 @@
+package gui;
+
+import javax.swing.*;
+
+/**
+ * Runs a long import or save off the event dispatch thread and shows its progress as rows and bytes
+ * done in a progress bar and a status label.
+ * <p>
+ * Stopping is a request the background work checks between blocks of rows, rather than
+ * SwingWorker.cancel, so {@link #done()} runs only once the work has really finished and can tell
+ * what was done.
+ *
+ * @param <T> result of the work
+ * @author Matt Ellis
+ */
+abstract class ProgressWorker<T> extends SwingWorker<T, Void> {
+    private final JProgressBar progressBar;
+    private final JLabel statusLabel;
+    private final long startNanos = System.nanoTime();
+    private volatile boolean stopRequested;
+    private volatile long rows;
+    private volatile long bytes;
+
+    ProgressWorker(JProgressBar progressBar, JLabel statusLabel) {
+        this.progressBar = progressBar;
+        this.statusLabel = statusLabel;
+        progressBar.setValue(0);
+        addPropertyChangeListener(e -> {
+            if ("progress".equals(e.getPropertyName())) {
+                progressBar.setValue((Integer) e.getNewValue());
+                statusLabel.setText(String.format("%,d rows, %,d KB", this.rows, this.bytes / 1024));
+            }
+        });
+    }
+
+    /**
+     * Asks the work to stop after the block of rows in hand
+     */
+    void stop() {
+        stopRequested = true;
+    }
+
+    boolean isStopRequested() {
+        return stopRequested;
+    }
+
+    /**
+     * Records progress from the background thread
+     *
+     * @param rows  rows done so far
+     * @param bytes bytes read or written so far
+     * @param done  work done so far, in any unit
+     * @param total work to do in all, in the same unit
+     */
+    void reportProgress(long rows, long bytes, long done, long total) {
+        this.rows = rows;
+        this.bytes = bytes;
+        setProgress(total > 0 ? (int) Math.min(100, done * 100 / total) : 0);
+    }
+
+    /**
+     * Shows a message in the status label when the work has finished
+     *
+     * @param message text to show, may contain html line breaks
+     */
+    void finish(String message) {
+        progressBar.setValue(progressBar.getMaximum());
+        statusLabel.setText("<html>" + message + "</html>");
+    }
+
+    /**
+     * @param rows rows done
+     * @return rows done, elapsed time and rows per second
+     */
+    String throughput(long rows) {
+        double seconds = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+        return String.format("%,d rows in %.1f s<br>(%,.0f rows/s)", rows, seconds, rows / seconds);
+    }
+}
@@ -0,0 +1,60 @@
+package gui;
+
+import backend.PatientCollection;
+import backend.SaveTask;
+
+import javax.swing.*;
+
+/**
+ * Saves a patient collection without holding up the user interface.
+ * <p>
+ * The save is prepared on the event dispatch thread, which copies the patients if the collection
+ * file is to be rewritten, and then run on the background thread, so the collection can be browsed
+ * and edited while it is written. Stopping a rewrite leaves the previous file in place.
+ *
+ * @author Matt Ellis
+ */
+class SaveWorker extends ProgressWorker<Boolean> {
+    private final SaveTask task;
+    private final Runnable onDone;
+
+    /**
+     * @param collection collection to save, read on the calling thread
+     * @param onDone     run on the event dispatch thread after the save ends
+     */
+    SaveWorker(PatientCollection collection, JProgressBar progressBar, JLabel statusLabel, Runnable onDone) {
+        super(progressBar, statusLabel);
+        this.task = collection.newSaveTask();
+        this.onDone = onDone;
+    }
+
+    @Override
+    protected Boolean doInBackground() {
+        long total = task.getRowCount();
+        return task.run((rows, bytes) -> {
+            // the size of the file is not known in advance, so rows measure the progress
+            reportProgress(rows, bytes, rows, total);
+            return !isStopRequested();
+        });
+    }
+
+    @Override
+    protected void done() {
+        boolean saved;
+        try {
+            saved = get();
+        } catch (Exception e) {
+            saved = false;
+        }
+        if (saved) {
+            finish(task.isRewrite() ? "Saved " + throughput(task.getRowCount()) : "Saved changes");
+        } else if (isStopRequested()) {
+            finish("Save stopped, previous file kept");
+        } else {
+            finish("Save failed");
+            JOptionPane.showMessageDialog(null, "The collection could not be saved.", "Error",
+                    JOptionPane.ERROR_MESSAGE);
+        }
+        onDone.run();
+    }
+}
@@ -0,0 +1,290 @@
+package server;
+
+import backend.Patient;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import static server.PatientProtocol.*;
+
+/**
+ * A connection to a {@link PatientServer}.
+ * <p>
+ * Every call sends its request at once and returns a future for the answer, so a caller can have
+ * many requests on the wire without waiting for each answer, which is what makes a stream of small
+ * requests fast. The futures are completed, and export rows handed over, on the connection's reader
+ * thread, in the order the requests were sent. A request the server could not run completes its
+ * future exceptionally with an IOException holding the server's message, and closing the
+ * connection, or losing it, does the same to every request still waiting.
+ * <p>
+ * A client can be used from several threads.
+ *
+ * @author Matt Ellis
+ */
+public class PatientClient implements Closeable {
+
+    private static final int BUFFER_BYTES = 64 << 10;
+
+    private final SocketChannel channel;
+    private final Thread reader;
+    private final Map<Integer, Pending<?>> pending = new ConcurrentHashMap<>();
+    private int nextRequestId;
+    private volatile boolean closed;
+    // why the reader stopped, set before it fails the requests waiting
+    private volatile IOException failure;
+
+    /**
+     * Receives the rows of an export
+     */
+    @FunctionalInterface
+    public interface RowHandler {
+        /**
+         * @param id     patient's id
+         * @param levels the selected protein levels, in the order they were asked for
+         */
+        void row(String id, double[] levels);
+    }
+
+    /**
+     * Connects to a server on this host
+     *
+     * @param port the server's port
+     * @throws IOException if the server cannot be reached
+     */
+    public PatientClient(int port) throws IOException {
+        channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        channel.socket().setTcpNoDelay(true);
+        reader = new Thread(this::read, "patient-client-" + port);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * @param id patient's id
+     * @return the Patient, or null if Patient does not exist
+     */
+    public CompletableFuture<Patient> getPatient(String id) {
+        return send(GET_PATIENT, stringBytes(id), out -> putString(out, id), in -> {
+            String patientId = getString(in);
+            String response = getString(in);
+            String prediction = getString(in);
+            double[] levels = new double[in.getInt()];
+            in.asDoubleBuffer().get(levels);
+            return new Patient(patientId, response, prediction, levels);
+        }, null);
+    }
+
+    /**
+     * @return the ids in ascending order
+     */
+    public CompletableFuture<List<String>> getIds() {
+        return send(GET_IDS, 0, out -> {
+        }, in -> {
+            int count = in.getInt();
+            List<String> ids = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                ids.add(getString(in));
+            }
+            return ids;
+        }, null);
+    }
+
+    /**
+     * Sets the treatment response field for the patient with given id.
+     *
+     * @param id     patient's id
+     * @param result patient's response
+     * @return completed once the response is set
+     */
+    public CompletableFuture<Void> setResultForPatient(String id, String result) {
+        return send(SET_RESULT, stringBytes(id) + stringBytes(result), out -> {
+            putString(out, id);
+            putString(out, result);
+        }, in -> null, null);
+    }
+
+    /**
+     * Imports patients from a csv file on the server's host
+     *
+     * @param fileName the file, as the server would open it
+     * @return the errors, empty if none
+     */
+    public CompletableFuture<String> addPatientsFromFile(String fileName) {
+        return send(ADD_FROM_FILE, stringBytes(fileName), out -> putString(out, fileName),
+                PatientProtocol::getString, null);
+    }
+
+    /**
+     * @param id patient's id
+     * @return the patient's predicted response, or null if Patient does not exist
+     */
+    public CompletableFuture<String> getPrediction(String id) {
+        return send(GET_PREDICTION, stringBytes(id), out -> putString(out, id), PatientProtocol::getString, null);
+    }
+
+    /**
+     * Predicts the response of a patient who is not in the collection with the server's current model
+     *
+     * @param levels protein levels, index 0 holding protein 1
+     * @return the prediction, e.g. "predCR" or "predDP"
+     */
+    public CompletableFuture<String> predict(double[] levels) {
+        return send(PREDICT, Integer.BYTES + levels.length * Double.BYTES, out -> {
+            out.putInt(levels.length);
+            out.asDoubleBuffer().put(levels);
+            out.position(out.position() + levels.length * Double.BYTES);
+        }, PatientProtocol::getString, null);
+    }
+
+    /**
+     * Streams protein levels of every patient in ascending id order. Rows are handed over as they
+     * arrive, so the whole cohort is never held by the client.
+     *
+     * @param proteins 1-based protein numbers to export, none for every protein
+     * @param handler  receives each patient's levels on the reader thread
+     * @return the number of rows, once every row has been handled
+     */
+    public CompletableFuture<Integer> exportProteins(int[] proteins, RowHandler handler) {
+        return send(EXPORT, Integer.BYTES + proteins.length * Integer.BYTES, out -> {
+            out.putInt(proteins.length);
+            for (int protein : proteins) {
+                out.putInt(protein);
+            }
+        }, ByteBuffer::getInt, handler);
+    }
+
+    /**
+     * Closes the connection, failing requests still waiting for an answer
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            channel.close();
+            reader.join();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private interface Writer {
+        void write(ByteBuffer out);
+    }
+
+    private <T> CompletableFuture<T> send(byte op, int payloadBytes, Writer payload, Function<ByteBuffer, T> answer,
+                                          RowHandler rows) {
+        Pending<T> request = new Pending<>(answer, rows);
+        ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + FRAME_HEADER_BYTES + payloadBytes);
+        synchronized (this) {
+            int requestId = nextRequestId++;
+            frame.putInt(FRAME_HEADER_BYTES + payloadBytes).putInt(requestId).put(op);
+            payload.write(frame);
+            frame.flip();
+            // registered first, as the answer can arrive before the write returns
+            pending.put(requestId, request);
+            try {
+                if (failure != null) {
+                    throw failure;
+                }
+                while (frame.hasRemaining()) {
+                    channel.write(frame);
+                }
+            } catch (IOException e) {
+                pending.remove(requestId);
+                request.future.completeExceptionally(e);
+            }
+        }
+        return request.future;
+    }
+
+    private void read() {
+        ByteBuffer in = ByteBuffer.allocate(BUFFER_BYTES);
+        IOException stopped = null;
+        try {
+            while (true) {
+                if (channel.read(in) < 0) {
+                    throw new EOFException("the server closed the connection");
+                }
+                in.flip();
+                while (in.remaining() >= Integer.BYTES && in.remaining() >= Integer.BYTES + in.getInt(in.position())) {
+                    int length = in.getInt();
+                    ByteBuffer frame = in.slice(in.position(), length);
+                    in.position(in.position() + length);
+                    answer(frame.getInt(), frame.get(), frame);
+                }
+                int needed = in.remaining() >= Integer.BYTES ? Integer.BYTES + in.getInt(in.position()) : 0;
+                in.compact();
+                if (needed > in.capacity()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(needed);
+                    in.flip();
+                    in = bigger.put(in);
+                }
+            }
+        } catch (IOException e) {
+            stopped = closed ? new IOException("the connection was closed") : e;
+        } finally {
+            failure = stopped != null ? stopped : new IOException("the connection's reader stopped");
+            for (Integer requestId : pending.keySet()) {
+                Pending<?> request = pending.remove(requestId);
+                if (request != null) {
+                    request.future.completeExceptionally(failure);
+                }
+            }
+        }
+    }
+
+    private void answer(int requestId, byte code, ByteBuffer frame) {
+        Pending<?> request = code == ROW ? pending.get(requestId) : pending.remove(requestId);
+        if (request != null) {
+            request.answer(code, frame);
+        }
+    }
+
+    private static final class Pending<T> {
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private final Function<ByteBuffer, T> answer;
+        private final RowHandler rows;
+
+        private Pending(Function<ByteBuffer, T> answer, RowHandler rows) {
+            this.answer = answer;
+            this.rows = rows;
+        }
+
+        private void answer(byte code, ByteBuffer frame) {
+            if (future.isDone()) {
+                // rows after a failed row handler
+                return;
+            }
+            try {
+                if (code == OK) {
+                    future.complete(answer.apply(frame));
+                } else if (code == NOT_FOUND) {
+                    future.complete(null);
+                } else if (code == ROW) {
+                    String id = getString(frame);
+                    double[] levels = new double[frame.getInt()];
+                    frame.asDoubleBuffer().get(levels);
+                    rows.row(id, levels);
+                } else {
+                    future.completeExceptionally(new IOException(getString(frame)));
+                }
+            } catch (RuntimeException e) {
+                // a bad answer or a failing row handler fails only its request
+                future.completeExceptionally(e);
+            }
+        }
+    }
+}
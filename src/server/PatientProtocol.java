@@ -0,0 +1,74 @@
+package server;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The wire format shared by {@link PatientServer} and {@link PatientClient}.
+ * <p>
+ * Every message is a frame: the length of the rest of the frame (int), a request id chosen by the
+ * client (int), a code (byte) and a payload. A request's code says what to do, a response's code
+ * whether it worked, and a response carries the id of its request. A client may send any number of
+ * requests without waiting; the server answers each connection's requests in the order they were
+ * sent. Values are big-endian; a string is its length in bytes (int) followed by UTF-8.
+ * <p>
+ * Requests and the payloads of their OK responses:
+ * <ul><li>{@link #GET_PATIENT} id: id, response, prediction, proteins (int), levels (doubles),
+ * or {@link #NOT_FOUND}</li>
+ * <li>{@link #GET_IDS}: count (int), ids in ascending order</li>
+ * <li>{@link #SET_RESULT} id, response: nothing</li>
+ * <li>{@link #ADD_FROM_FILE} file name on the server's host: the errors, empty if none</li>
+ * <li>{@link #GET_PREDICTION} id: the patient's prediction, or {@link #NOT_FOUND}</li>
+ * <li>{@link #PREDICT} count (int), levels (doubles): the current model's prediction</li>
+ * <li>{@link #EXPORT} count (int), 1-based protein numbers (ints), none for all: one {@link #ROW}
+ * response per patient in ascending id order, holding the id and the selected levels, then an OK
+ * response holding the number of rows (int)</li></ul>
+ * A request that fails is answered with {@link #ERROR} and a message.
+ *
+ * @author Matt Ellis
+ */
+final class PatientProtocol {
+
+    static final byte GET_PATIENT = 1;
+    static final byte GET_IDS = 2;
+    static final byte SET_RESULT = 3;
+    static final byte ADD_FROM_FILE = 4;
+    static final byte GET_PREDICTION = 5;
+    static final byte PREDICT = 6;
+    static final byte EXPORT = 7;
+
+    static final byte OK = 0;
+    static final byte NOT_FOUND = 1;
+    static final byte ERROR = 2;
+    static final byte ROW = 3;
+
+    // request id and code
+    static final int FRAME_HEADER_BYTES = 5;
+    static final int MAX_FRAME_BYTES = 64 << 20;
+
+    private PatientProtocol() {
+    }
+
+    static void putString(ByteBuffer buf, String s) {
+        byte[] bytes = String.valueOf(s).getBytes(StandardCharsets.UTF_8);
+        buf.putInt(bytes.length).put(bytes);
+    }
+
+    static String getString(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0 || length > buf.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return s;
+    }
+
+    /**
+     * @return bytes {@link #putString(ByteBuffer, String)} takes for the string
+     */
+    static int stringBytes(String s) {
+        return Integer.BYTES + String.valueOf(s).getBytes(StandardCharsets.UTF_8).length;
+    }
+}
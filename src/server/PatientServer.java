@@ -0,0 +1,451 @@
+package server;
+
+import backend.CollectionMetrics;
+import backend.Patient;
+import backend.PatientCollection;
+import backend.PatientCollectionADT;
+import backend.Predictor;
+import backend.ProteinVector;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static server.PatientProtocol.*;
+
+/**
+ * Serves a patient collection to clients on the same host, so that several analysis programs can
+ * share one loaded cohort. The protocol is described in {@link PatientProtocol}; {@link PatientClient}
+ * speaks it.
+ * <p>
+ * One thread waits on a selector for all connections and runs every request itself, one at a time,
+ * so the collection needs no locking as long as nothing else in the process uses it while the server
+ * is open. A connection may send many requests without waiting for the answers: all complete
+ * requests that have arrived are answered in one go, and the answers leave in as few writes as the
+ * socket allows. A bulk export is written a chunk at a time as the client takes it in, between the
+ * requests of other connections, and the connection's later requests wait until it is done. Once
+ * about a megabyte of a connection's answers is waiting to be sent, its further requests are
+ * neither run nor read until the client takes them in, so a slow client holds up nobody but itself
+ * and the server buffers a bounded amount for it.
+ * <p>
+ * Since requests run one at a time, a long request holds up every client: an import with
+ * {@link PatientClient#addPatientsFromFile(String)} reads the whole file before any other request runs.
+ * <p>
+ * An export is not a snapshot: the ids are listed when it starts, and changes other connections
+ * make while it runs may show in the rows that follow.
+ * <p>
+ * Usage: java server.PatientServer [collectionFile] [port]
+ *
+ * @author Matt Ellis
+ */
+public class PatientServer implements Closeable {
+
+    public static final int DEFAULT_PORT = 4776;
+    private static final int BUFFER_BYTES = 64 << 10;
+    // answers buffered for a connection before its requests are no longer run or read
+    private static final int OUT_LIMIT_BYTES = 1 << 20;
+    // export rows written for a connection each time its socket takes the last chunk
+    private static final int EXPORT_CHUNK_BYTES = 256 << 10;
+
+    private final PatientCollectionADT collection;
+    private final Selector selector;
+    private final ServerSocketChannel listener;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Starts serving a collection on the loopback interface
+     *
+     * @param collection collection to serve
+     * @param port       port to listen on, 0 for any free port
+     * @throws IOException if the port cannot be opened
+     */
+    public PatientServer(PatientCollectionADT collection, int port) throws IOException {
+        this.collection = collection;
+        selector = Selector.open();
+        listener = ServerSocketChannel.open();
+        try {
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            listener.configureBlocking(false);
+            listener.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            listener.close();
+            selector.close();
+            throw e;
+        }
+        thread = new Thread(this::run, "patient-server");
+        thread.start();
+    }
+
+    /**
+     * @return port the server listens on
+     */
+    public int getPort() {
+        return listener.socket().getLocalPort();
+    }
+
+    /**
+     * Stops the server, closing every connection, and waits for a request being run to finish
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    try {
+                        Connection c = (Connection) key.attachment();
+                        if (key.isReadable()) {
+                            read(c);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(c);
+                        }
+                        if (key.isValid()) {
+                            key.interestOps(c.interestOps());
+                        }
+                    } catch (IOException e) {
+                        // the client went away or broke the protocol, which ends only its connection
+                        key.cancel();
+                        closeQuietly(key.channel());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("the patient server stopped");
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key.channel());
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Accepts a pending connection. A failure drops only that connection and leaves the server listening.
+     */
+    private void accept() {
+        SocketChannel channel;
+        try {
+            channel = listener.accept();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("could not accept a connection");
+            return;
+        }
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("could not set up a connection");
+            closeQuietly(channel);
+        }
+    }
+
+    private static void closeQuietly(Closeable channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void read(Connection c) throws IOException {
+        if (c.channel.read(c.in) < 0) {
+            throw new IOException("closed by the client");
+        }
+        process(c);
+    }
+
+    private void write(Connection c) throws IOException {
+        c.out.flip();
+        c.channel.write(c.out);
+        c.out.compact();
+        if (c.out.position() == 0 && c.out.capacity() > OUT_LIMIT_BYTES) {
+            // a large answer is sent, the buffer goes back to its usual size
+            c.out = ByteBuffer.allocate(BUFFER_BYTES);
+        }
+        if (c.out.position() == 0 && c.export != null) {
+            exportChunk(c);
+        }
+        if (c.export == null && c.out.position() < OUT_LIMIT_BYTES) {
+            // requests that arrived behind an export or a full output buffer
+            process(c);
+        }
+    }
+
+    /**
+     * Runs the complete requests in the connection's input buffer, stopping at an export or once
+     * the answers waiting to be sent reach {@link #OUT_LIMIT_BYTES}, to go on when they are sent
+     */
+    private void process(Connection c) throws IOException {
+        ByteBuffer in = c.in;
+        in.flip();
+        int needed = 0;
+        while (c.export == null && c.out.position() < OUT_LIMIT_BYTES && in.remaining() >= Integer.BYTES) {
+            int length = in.getInt(in.position());
+            if (length < FRAME_HEADER_BYTES || length > MAX_FRAME_BYTES) {
+                throw new IOException("bad frame length " + length);
+            }
+            if (in.remaining() < Integer.BYTES + length) {
+                needed = Integer.BYTES + length;
+                break;
+            }
+            ByteBuffer frame = in.slice(in.position() + Integer.BYTES, length);
+            in.position(in.position() + Integer.BYTES + length);
+            handle(c, frame.getInt(), frame.get(), frame);
+        }
+        in.compact();
+        if (needed > in.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocate(needed);
+            in.flip();
+            c.in = bigger.put(in);
+        }
+    }
+
+    private void handle(Connection c, int requestId, byte op, ByteBuffer request) {
+        int start = c.out.position();
+        try {
+            switch (op) {
+                case GET_PATIENT: {
+                    Patient p = collection.getPatient(getString(request));
+                    if (p == null) {
+                        c.begin(requestId, NOT_FOUND, 0);
+                        break;
+                    }
+                    ProteinVector levels = p.getProteins();
+                    ByteBuffer out = c.begin(requestId, OK, stringBytes(p.getId()) + stringBytes(p.getResponse())
+                            + stringBytes(p.getPredict()) + Integer.BYTES + levels.size() * Double.BYTES);
+                    putString(out, p.getId());
+                    putString(out, p.getResponse());
+                    putString(out, p.getPredict());
+                    out.putInt(levels.size());
+                    for (int i = 0; i < levels.size(); i++) {
+                        out.putDouble(levels.getLevel(i));
+                    }
+                    break;
+                }
+                case GET_IDS: {
+                    List<String> ids = collection.getIds();
+                    int bytes = Integer.BYTES;
+                    for (String id : ids) {
+                        bytes += stringBytes(id);
+                    }
+                    ByteBuffer out = c.begin(requestId, OK, bytes).putInt(ids.size());
+                    for (String id : ids) {
+                        putString(out, id);
+                    }
+                    break;
+                }
+                case SET_RESULT: {
+                    String id = getString(request);
+                    collection.setResultForPatient(id, getString(request));
+                    c.begin(requestId, OK, 0);
+                    break;
+                }
+                case ADD_FROM_FILE: {
+                    String errors = collection.addPatientsFromFile(getString(request));
+                    putString(c.begin(requestId, OK, stringBytes(errors)), errors);
+                    break;
+                }
+                case GET_PREDICTION: {
+                    Patient p = collection.getPatient(getString(request));
+                    if (p == null) {
+                        c.begin(requestId, NOT_FOUND, 0);
+                    } else {
+                        putString(c.begin(requestId, OK, stringBytes(p.getPredict())), p.getPredict());
+                    }
+                    break;
+                }
+                case PREDICT: {
+                    double[] levels = new double[count(request, Double.BYTES)];
+                    request.asDoubleBuffer().get(levels);
+                    String prediction = Predictor.predict(new ProteinVector(levels));
+                    putString(c.begin(requestId, OK, stringBytes(prediction)), prediction);
+                    break;
+                }
+                case EXPORT: {
+                    int[] proteins = new int[count(request, Integer.BYTES)];
+                    request.asIntBuffer().get(proteins);
+                    List<String> ids = collection.getIds();
+                    // every patient has as many proteins as the first
+                    Patient first = ids.isEmpty() ? null : collection.getPatient(ids.get(0));
+                    int proteinCount = first != null ? first.getProteins().size() : Integer.MAX_VALUE;
+                    for (int i = 0; i < proteins.length; i++) {
+                        if (proteins[i] < 1 || proteins[i] > proteinCount) {
+                            throw new IllegalArgumentException("no protein " + proteins[i]);
+                        }
+                        proteins[i]--;
+                    }
+                    c.export = new Export(requestId, proteins.length > 0 ? proteins : null, ids);
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("unknown request " + op);
+            }
+        } catch (RuntimeException e) {
+            // nothing of a failed answer is sent, only the error
+            c.out.position(start);
+            error(c, requestId, e);
+        }
+    }
+
+    /**
+     * Writes the next rows of the connection's export, and its end once every row is written
+     */
+    private void exportChunk(Connection c) {
+        Export export = c.export;
+        int rowStart = c.out.position();
+        try {
+            while (export.next < export.ids.size() && c.out.position() < EXPORT_CHUNK_BYTES) {
+                rowStart = c.out.position();
+                Patient p = collection.getPatient(export.ids.get(export.next++));
+                if (p == null) {
+                    // removed since the export started
+                    continue;
+                }
+                ProteinVector levels = p.getProteins();
+                int count = export.proteins != null ? export.proteins.length : levels.size();
+                ByteBuffer out = c.begin(export.requestId, ROW,
+                        stringBytes(p.getId()) + Integer.BYTES + count * Double.BYTES);
+                putString(out, p.getId());
+                out.putInt(count);
+                for (int i = 0; i < count; i++) {
+                    out.putDouble(levels.getLevel(export.proteins != null ? export.proteins[i] : i));
+                }
+                export.rows++;
+            }
+            if (export.next == export.ids.size()) {
+                c.begin(export.requestId, OK, Integer.BYTES).putInt(export.rows);
+                c.export = null;
+            }
+        } catch (RuntimeException e) {
+            // the rows before are sent, the failed one is not
+            c.out.position(rowStart);
+            c.export = null;
+            error(c, export.requestId, e);
+        }
+    }
+
+    /**
+     * Reads the number of values that follow in a request
+     */
+    private static int count(ByteBuffer request, int valueBytes) {
+        int count = request.getInt();
+        if (count < 0 || count > request.remaining() / valueBytes) {
+            throw new IllegalArgumentException("the request holds fewer than " + count + " values");
+        }
+        return count;
+    }
+
+    private static void error(Connection c, int requestId, RuntimeException e) {
+        String message = e.getMessage() != null ? e.getMessage() : e.toString();
+        putString(c.begin(requestId, ERROR, stringBytes(message)), message);
+    }
+
+    /**
+     * Serves a collection file until the process is stopped, then saves the collection
+     */
+    public static void main(String[] args) {
+        PatientCollection c = args.length > 0 ? new PatientCollection(args[0], true) : new PatientCollection();
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        CollectionMetrics.get().registerMBean();
+        try {
+            PatientServer server = new PatientServer(c, port);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.close();
+                c.writeFile();
+            }));
+            System.out.println("serving " + c.getIds().size() + " patients on port " + server.getPort());
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("could not listen on port " + port);
+        }
+    }
+
+    private static final class Connection {
+        private final SocketChannel channel;
+        // both in fill mode between calls: position is the end of the buffered bytes
+        private ByteBuffer in = ByteBuffer.allocate(BUFFER_BYTES);
+        private ByteBuffer out = ByteBuffer.allocate(BUFFER_BYTES);
+        private Export export;
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Starts an answer in the output buffer, growing it to fit
+         *
+         * @return the output buffer, to put exactly payloadBytes into
+         */
+        private ByteBuffer begin(int requestId, byte code, int payloadBytes) {
+            int frame = Integer.BYTES + FRAME_HEADER_BYTES + payloadBytes;
+            if (out.remaining() < frame) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + frame));
+                out.flip();
+                out = bigger.put(out);
+            }
+            return out.putInt(FRAME_HEADER_BYTES + payloadBytes).putInt(requestId).put(code);
+        }
+
+        private int interestOps() {
+            int ops = out.position() > 0 || export != null ? SelectionKey.OP_WRITE : 0;
+            if (export == null && out.position() < OUT_LIMIT_BYTES) {
+                ops |= SelectionKey.OP_READ;
+            }
+            return ops;
+        }
+    }
+
+    private static final class Export {
+        private final int requestId;
+        // 0-based indexes of the selected proteins, null for all
+        private final int[] proteins;
+        private final List<String> ids;
+        private int next;
+        private int rows;
+
+        private Export(int requestId, int[] proteins, List<String> ids) {
+            this.requestId = requestId;
+            this.proteins = proteins;
+            this.ids = new ArrayList<>(ids);
+        }
+    }
+}